@@ -0,0 +1,33 @@
+package sample.custom_log.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * JMHを起動するクラス。
+ * 結果の出力先が指定されていない場合は、実行日時を名前にしたJSONファイルを
+ * results/に出力するよう引数を補う。その他の引数はそのままJMHに渡す。
+ * 例: 「-prof gc」でアロケーション量、「LogParser」で対象の絞り込み。
+ */
+public class BenchmarkMain {
+    private static final String RESULT_DIR = "results";
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rff")) {
+            new File(RESULT_DIR).mkdirs();
+            String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+            jmhArgs.add("-rff");
+            jmhArgs.add(new File(RESULT_DIR, "jmh-" + name + ".json").getPath());
+        }
+        Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+    }
+}
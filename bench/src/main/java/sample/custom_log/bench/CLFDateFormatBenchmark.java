@@ -0,0 +1,55 @@
+package sample.custom_log.bench;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sample.custom_log.core.CLFDateFormat;
+
+/**
+ * CLFDateFormat.parse()の処理時間を計測する。
+ * warmは日付のキャッシュが効いた状態、coldは新しいインスタンスで初めて日付をパースする場合。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CLFDateFormatBenchmark {
+    private static final String[] DATES = {
+        "01/Nov/2011:00:00:01 +0900", "01/Nov/2011:12:34:56 +0900",
+        "02/Nov/2011:23:59:59 +0900", "03/Nov/2011:08:15:00 +0900",
+    };
+    private int index = 0;
+    private CLFDateFormat warmFormat;
+
+    @Setup
+    public void setUp() throws ParseException {
+        warmFormat = new CLFDateFormat();
+        for (String date : DATES) {
+            warmFormat.parse(date);
+        }
+    }
+
+    @Benchmark
+    public Date warm() throws ParseException {
+        return warmFormat.parse(DATES[index++ & (DATES.length - 1)]);
+    }
+
+    @Benchmark
+    public Date cold() throws ParseException {
+        return new CLFDateFormat().parse(DATES[index++ & (DATES.length - 1)]);
+    }
+}
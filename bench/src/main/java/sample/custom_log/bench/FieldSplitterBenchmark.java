@@ -0,0 +1,58 @@
+package sample.custom_log.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sample.custom_log.core.FieldSplitter;
+import sample.custom_log.core.FieldSplitter.FieldSplitterHandler;
+import sample.custom_log.core.LogParseException;
+
+/** FieldSplitter.splitLine()の一行あたりの処理時間を計測する */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldSplitterBenchmark {
+    private static final int LINE_COUNT = 1024;
+    /** trueならcombined形式、falseならcommon形式 */
+    @Param({"false", "true"})
+    public boolean combined;
+    private String[] lines;
+    private int index = 0;
+    private final FieldSplitter fieldSplitter = new FieldSplitter();
+    private final BlackholeHandler handler = new BlackholeHandler();
+
+    @Setup
+    public void setUp() {
+        lines = SampleLines.generate(LINE_COUNT, combined, 0.3);
+    }
+
+    @Benchmark
+    public void splitLine(Blackhole blackhole) throws LogParseException {
+        handler.blackhole = blackhole;
+        fieldSplitter.splitLine(lines[index++ & (LINE_COUNT - 1)], handler);
+    }
+
+    /** フィールド値をBlackholeに渡すだけのハンドラ */
+    private static class BlackholeHandler implements FieldSplitterHandler {
+        Blackhole blackhole;
+
+        public void handleFieldValue(String fieldValue) {
+            blackhole.consume(fieldValue);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package sample.custom_log.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogRecord;
+
+/** LogParser.parseLine()の一行あたりの処理時間を、common形式とcombined形式で計測する */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogParserBenchmark {
+    private static final int LINE_COUNT = 1024;
+    /** trueならcombined形式、falseならcommon形式 */
+    @Param({"false", "true"})
+    public boolean combined;
+    private String[] lines;
+    private int index = 0;
+    private LogParser parser;
+
+    @Setup
+    public void setUp() {
+        lines = SampleLines.generate(LINE_COUNT, combined, 0.3);
+        parser = new LogParser(combined ? SampleLines.COMBINED_FORMAT : SampleLines.COMMON_FORMAT);
+    }
+
+    @Benchmark
+    public LogRecord parseLine() throws LogParseException {
+        return parser.parseLine(lines[index++ & (LINE_COUNT - 1)]);
+    }
+}
@@ -0,0 +1,101 @@
+package sample.custom_log.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+
+/**
+ * combined形式のログをまとめてパースし、1秒あたりの行数を計測する。
+ * 1操作=1行として集計するため、「-prof gc」のgc.alloc.rate.normが一行あたりのアロケーション量となる。
+ * parseLine()による一行ずつの処理と、parse()によるLogRecordを使い回す処理を比較する。
+ * structuralIndexがtrueの場合は構造文字の索引(StructuralIndex)を使用する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseThroughputBenchmark {
+    private static final int LINE_COUNT = 10000;
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    @Param({"false", "true"})
+    public boolean structuralIndex;
+    private String[] lines;
+    /** linesを改行で連結したもの */
+    private String text;
+    private ByteBuffer bytes;
+    private LogParser parser;
+
+    @Setup
+    public void setUp() {
+        lines = SampleLines.generate(LINE_COUNT, true, 0.3);
+        parser = new LogParser(SampleLines.COMBINED_FORMAT);
+        parser.setStructuralIndexEnabled(structuralIndex);
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        text = builder.toString();
+        bytes = ByteBuffer.wrap(text.getBytes(CHARSET));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void parseLines(Blackhole blackhole) throws LogParseException {
+        for (String line : lines) {
+            blackhole.consume(parser.parseLine(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void streamReader(Blackhole blackhole) throws IOException {
+        parser.parse(new StringReader(text), new BlackholeHandler(blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void streamBuffer(Blackhole blackhole) {
+        parser.parse(bytes, CHARSET, new BlackholeHandler(blackhole));
+    }
+
+    /** ステータスとサイズのみを参照する(件数の集計やフィルタを想定した)LogRecordHandler */
+    private static class BlackholeHandler implements LogRecordHandler {
+        private final Blackhole blackhole;
+
+        BlackholeHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+        public boolean handleLogRecord(LogRecord logRecord) {
+            blackhole.consume(logRecord.getStatus());
+            blackhole.consume(logRecord.getResponseSize());
+            return true;
+        }
+        public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+            blackhole.consume(e);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package sample.custom_log.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sample.custom_log.core.LogRecord;
+
+/** LogRecord.setRequestLine()によるリクエスト行の分解の処理時間を、クエリ文字列の有無で計測する */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLineBenchmark {
+    private static final String WITHOUT_QUERY = "GET /api/v1/items/0a1b2c3d4e5f HTTP/1.1";
+    private static final String WITH_QUERY = "GET /a.cgi?category=aaa&page=2&sort=desc HTTP/1.1";
+    private final LogRecord logRecord = new LogRecord();
+
+    @Benchmark
+    public String withoutQuery() {
+        logRecord.setRequestLine(WITHOUT_QUERY);
+        return logRecord.getRequestPath();
+    }
+
+    @Benchmark
+    public Object withQuery() {
+        logRecord.setRequestLine(WITH_QUERY);
+        return logRecord.getParam();
+    }
+}
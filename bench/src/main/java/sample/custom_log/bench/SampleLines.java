@@ -0,0 +1,63 @@
+package sample.custom_log.bench;
+
+import java.util.Random;
+
+/**
+ * ベンチマーク用のログ行を生成するクラス。
+ * 乱数の種を固定しているため、毎回同じ内容の行が生成される。
+ */
+public class SampleLines {
+    /** Apacheのcommon形式 */
+    public static final String COMMON_FORMAT = "%h %l %u %t \"%r\" %>s %b";
+    /** Apacheのcombined形式 */
+    public static final String COMBINED_FORMAT =
+        "%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" \"%{User-Agent}i\"";
+    private static final long SEED = 20111125L;
+    private static final String[] PATHS = {
+        "/", "/index.html", "/img/logo.png", "/css/site.css", "/user/12345",
+        "/search", "/a.cgi", "/api/v1/items/0a1b2c3d4e5f",
+    };
+    private static final String[] QUERIES = {
+        "q=apache+log", "category=aaa&page=2", "id=42&sort=desc&limit=100",
+    };
+    private static final String[] AGENTS = {
+        "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.2 (KHTML, like Gecko) Chrome/15.0.874.121 Safari/535.2",
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+        "curl/7.21.4 (x86_64-unknown-linux-gnu) \\\"quoted\\\"",
+    };
+    private static final int[] STATUSES = {200, 200, 200, 304, 404, 500};
+
+    private SampleLines() {
+    }
+
+    /**
+     * ログ行を生成する。
+     * @param count 行数
+     * @param combined trueならcombined形式、falseならcommon形式
+     * @param queryRatio クエリ文字列を付けるリクエストの割合(0～1)
+     * @return 生成した行の配列
+     */
+    public static String[] generate(int count, boolean combined, double queryRatio) {
+        Random random = new Random(SEED);
+        String[] lines = new String[count];
+        for (int index = 0; index < count; index++) {
+            StringBuilder line = new StringBuilder(256);
+            line.append("192.168.").append(random.nextInt(256)).append('.').append(random.nextInt(256));
+            line.append(" - - [").append(String.format("%02d", 1 + index % 28))
+                .append("/Nov/2011:").append(String.format("%02d:%02d:%02d",
+                        random.nextInt(24), random.nextInt(60), random.nextInt(60)))
+                .append(" +0900] \"GET ").append(PATHS[random.nextInt(PATHS.length)]);
+            if (random.nextDouble() < queryRatio) {
+                line.append('?').append(QUERIES[random.nextInt(QUERIES.length)]);
+            }
+            line.append(" HTTP/1.1\" ").append(STATUSES[random.nextInt(STATUSES.length)])
+                .append(' ').append(random.nextInt(100000));
+            if (combined) {
+                line.append(" \"http://www.example.com/\" \"")
+                    .append(AGENTS[random.nextInt(AGENTS.length)]).append('"');
+            }
+            lines[index] = line.toString();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,130 @@
+package sample.custom_log.tools;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import sample.custom_log.tools.PipelineMetrics.EventSink;
+import sample.custom_log.tools.PipelineMetrics.Stage;
+
+/**
+ * PipelineMetricsの各段階の処理を、JDK Flight Recorderのイベントとして記録するクラス。
+ * jdk.jfrを使うため、本体とは別のjfrサブプロジェクトでビルドする(Build.scalaを参照)。
+ * jdk.jfrが使え、このクラスがクラスパスにある場合のみPipelineMetricsから読み込まれる。
+ * イベントは記録中(-XX:StartFlightRecording、jcmd JFR.start等)のみ保存される。
+ */
+class PipelineEvents implements EventSink {
+    private static final String CATEGORY = "Custom Log";
+
+    public Object begin(Stage stage) {
+        Event event;
+        switch (stage) {
+            case PARSE:
+                event = new ParseEvent();
+                break;
+            case QUERY:
+                event = new QueryEvent();
+                break;
+            case OUTPUT:
+                event = new OutputEvent();
+                break;
+            default:
+                event = new ReplayEvent();
+                break;
+        }
+        event.begin();
+        return event;
+    }
+    public void commitParse(Object event, String path, long bytes, long records, long errors) {
+        ParseEvent parseEvent = (ParseEvent) event;
+        if (parseEvent.shouldCommit()) {
+            parseEvent.path = path;
+            parseEvent.bytes = bytes;
+            parseEvent.records = records;
+            parseEvent.errors = errors;
+            parseEvent.commit();
+        }
+    }
+    public void commitQuery(Object event, long records, long rows) {
+        QueryEvent queryEvent = (QueryEvent) event;
+        if (queryEvent.shouldCommit()) {
+            queryEvent.records = records;
+            queryEvent.rows = rows;
+            queryEvent.commit();
+        }
+    }
+    public void commitOutput(Object event, long rows) {
+        OutputEvent outputEvent = (OutputEvent) event;
+        if (outputEvent.shouldCommit()) {
+            outputEvent.rows = rows;
+            outputEvent.commit();
+        }
+    }
+    public void commitReplay(Object event, String uri, long lagMillis, int status, long responseBytes) {
+        ReplayEvent replayEvent = (ReplayEvent) event;
+        if (replayEvent.shouldCommit()) {
+            replayEvent.uri = uri;
+            replayEvent.lag = lagMillis;
+            replayEvent.status = status;
+            replayEvent.responseBytes = responseBytes;
+            replayEvent.commit();
+        }
+    }
+
+    @Name("sample.custom_log.Parse")
+    @Label("Log Parse")
+    @Description("ログの読み込みとパース(ファイルまたは範囲一つ分)")
+    @Category(CATEGORY)
+    static class ParseEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Records")
+        long records;
+        @Label("Parse Errors")
+        long errors;
+    }
+
+    @Name("sample.custom_log.Query")
+    @Label("Query Evaluation")
+    @Description("JoSQLによるクエリの評価")
+    @Category(CATEGORY)
+    static class QueryEvent extends Event {
+        @Label("Records")
+        long records;
+        @Label("Rows")
+        long rows;
+    }
+
+    @Name("sample.custom_log.Output")
+    @Label("Result Output")
+    @Description("クエリの結果の書き出し")
+    @Category(CATEGORY)
+    static class OutputEvent extends Event {
+        @Label("Rows")
+        long rows;
+    }
+
+    @Name("sample.custom_log.Replay")
+    @Label("Request Replay")
+    @Description("リクエスト一件の再生(送信から応答を読み終えるまで)")
+    @Category(CATEGORY)
+    static class ReplayEvent extends Event {
+        @Label("URI")
+        String uri;
+        @Label("Dispatch Lag")
+        @Timespan(Timespan.MILLISECONDS)
+        long lag;
+        @Label("Status")
+        int status;
+        @Label("Response Bytes")
+        @DataAmount
+        long responseBytes;
+    }
+}
@@ -31,5 +31,32 @@ object CustomLogToolBuild extends Build {
 
    lazy val root = Project("custom-log-tool", file("."), settings = buildSettings)
 
+   // JMHによるベンチマーク。実行例:
+   //   sbt "project custom-log-tool-bench" "run -prof gc"
+   // 結果はbench/results/にJSONで保存される(BenchmarkMainを参照)
+   val jmhVersion = "1.37"
+
+   val benchSettings = buildSettings ++ Seq(
+      unmanagedBase <<= baseDirectory { base => base / ".." / "lib" },
+
+      libraryDependencies ++= Seq(
+         "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+         "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+      ),
+      mainClass in (Compile, run) := Some("sample.custom_log.bench.BenchmarkMain"),
+      fork in run := true
+   )
+
+   lazy val bench = Project("custom-log-tool-bench", file("bench"), settings = benchSettings) dependsOn(root)
+
+   // JDK Flight Recorderのイベント(PipelineEvents)。jdk.jfrを含むJDK(8u272以降または11以降)でのみビルドする。
+   // 本体はjdk.jfrなしでビルドでき、このjarがクラスパスにない場合はイベントを記録しない。実行例:
+   //   sbt "project custom-log-tool-jfr" package
+   val jfrSettings = buildSettings ++ Seq(
+      unmanagedBase <<= baseDirectory { base => base / ".." / "lib" }
+   )
+
+   lazy val jfr = Project("custom-log-tool-jfr", file("jfr"), settings = jfrSettings) dependsOn(root)
+
 }
 
@@ -2,7 +2,6 @@ package sample.custom_log.core;
 
 import java.text.DateFormat;
 import java.text.FieldPosition;
-import java.text.ParseException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -17,10 +16,27 @@ import org.apache.commons.lang.NotImplementedException;
  * スレッドセーフではない！
  */
 public class CLFDateFormat extends DateFormat {
+    /** parseMillis()で日時として読み取れなかったことを示す値 */
+    public static final long INVALID = Long.MIN_VALUE;
     private static final String DEFAULT_DATE_FORMAT = "dd/MMM/yyyy:HH:mm:ss Z";
     private static final long serialVersionUID = 4124093846593771052L;
+    /** 「dd/MMM/yyyy:HH:mm:ss Z」の長さ */
+    private static final int CLF_LENGTH = 26;
+    /** 日付部分(「dd/MMM/yyyy:」)の長さ */
+    private static final int DAY_LENGTH = 12;
+    /** タイムゾーン部分(「+0900」)の長さ */
+    private static final int ZONE_LENGTH = 5;
+    /** dayTimesに保持する件数の上限。壊れた行で読み取れない日付が大量に続いても増え続けないようにする */
+    private static final int MAX_DAY_TIMES = 4096;
+    /** キー=日付部分とタイムゾーン部分を連結したもの、値=0時0分0秒(エポックミリ秒)。読み取れない場合はINVALID */
     private Map<String, Long>dayTimes = new TreeMap<String, Long>();
     final DateFormat formatter = new SimpleDateFormat(DEFAULT_DATE_FORMAT, Locale.ENGLISH);
+    /** 直前にparseMillis()で使用した日付部分とタイムゾーン部分(「19/Dec/2008:」と「+0900」を連結したもの) */
+    private final char[] lastDay = new char[DAY_LENGTH + ZONE_LENGTH];
+    /** lastDayが設定済みの場合true */
+    private boolean hasLastDay = false;
+    /** lastDayの0時0分0秒(エポックミリ秒)。読み取れない日付の場合はINVALID */
+    private long lastDayTime;
     public CLFDateFormat() {
         
     }
@@ -35,11 +51,9 @@ public class CLFDateFormat extends DateFormat {
         int pos = parseposition.getIndex();
         String dayString = s.substring(pos, pos + 12);
         String zoneString = s.substring(pos + 21, pos + 26);
-        long dayTime;
-        try {
-            dayTime = getDayTime(dayString, zoneString);
-        } catch (ParseException e) {
-            e.printStackTrace();
+        long dayTime = getDayTime(dayString, zoneString);
+        if (dayTime == INVALID) {
+            // DateFormat.parse(String)はnullが戻るとParseExceptionを投げる
             return null;
         }
         // dd/MMM/yyyy:HH:mm:ss Z
@@ -58,12 +72,71 @@ public class CLFDateFormat extends DateFormat {
         Date d = new Date(dayTime);
         return d;
     }
-    private long getDayTime(String dayString, String zoneString) throws ParseException {
-        Long daytime = dayTimes.get(dayString);
+    /**
+     * char配列の範囲からCLF形式の日時を読み取る。
+     * ログは同じ日付の行が続くため、直前と同じ日付であればオブジェクトを生成せずに処理する。
+     * 読み取れない場合は例外を投げずにINVALIDを戻す(壊れた行が続く場合に例外の生成で遅くならないよう)。
+     * 読み取れない日付も記録し、同じ日付を再び読み取ろうとしない。
+     * @param chars 日時を含む配列
+     * @param start 開始位置
+     * @param end 終了位置(この位置の文字は含まない)
+     * @return 日時(エポックミリ秒)。日時として読み取れない場合はINVALID
+     */
+    public long parseMillis(char[] chars, int start, int end) {
+        if (end - start < CLF_LENGTH) {
+            return INVALID;
+        }
+        int zoneStart = start + CLF_LENGTH - ZONE_LENGTH;
+        if (!hasLastDay || !isLastDay(chars, start, zoneStart)) {
+            String dayString = new String(chars, start, DAY_LENGTH);
+            String zoneString = new String(chars, zoneStart, ZONE_LENGTH);
+            lastDayTime = getDayTime(dayString, zoneString);
+            System.arraycopy(chars, start, lastDay, 0, DAY_LENGTH);
+            System.arraycopy(chars, zoneStart, lastDay, DAY_LENGTH, ZONE_LENGTH);
+            hasLastDay = true;
+        }
+        int hour = twoDigits(chars, start + 12);
+        int minute = twoDigits(chars, start + 15);
+        int second = twoDigits(chars, start + 18);
+        if (lastDayTime == INVALID || hour < 0 || minute < 0 || second < 0) {
+            return INVALID;
+        }
+        return lastDayTime + ((hour * 60 + minute) * 60 + second) * 1000L;
+    }
+    // chars上の日付部分とタイムゾーン部分がlastDayと一致するか
+    private boolean isLastDay(char[] chars, int start, int zoneStart) {
+        for (int i = 0; i < DAY_LENGTH; i++) {
+            if (chars[start + i] != lastDay[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < ZONE_LENGTH; i++) {
+            if (chars[zoneStart + i] != lastDay[DAY_LENGTH + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // posから2桁の数字を読み取る。数字でない場合は-1を戻す
+    private static int twoDigits(char[] chars, int pos) {
+        int high = chars[pos] - '0';
+        int low = chars[pos + 1] - '0';
+        if (high < 0 || high > 9 || low < 0 || low > 9) {
+            return -1;
+        }
+        return high * 10 + low;
+    }
+    // 日付の0時0分0秒(エポックミリ秒)。読み取れない場合はINVALID(例外は生成しない)
+    private long getDayTime(String dayString, String zoneString) {
+        String key = dayString + zoneString;
+        Long daytime = dayTimes.get(key);
         if (daytime == null) {
-            String dateString = dayString + "00:00:00 " + zoneString;
-            daytime = formatter.parse(dateString).getTime();
-            dayTimes.put(dayString, daytime);
+            Date date = formatter.parse(dayString + "00:00:00 " + zoneString, new ParsePosition(0));
+            daytime = (date != null) ? date.getTime() : INVALID;
+            if (dayTimes.size() >= MAX_DAY_TIMES) {
+                dayTimes.clear();
+            }
+            dayTimes.put(key, daytime);
         }
         return daytime.longValue();
     }
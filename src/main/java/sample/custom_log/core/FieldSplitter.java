@@ -6,6 +6,8 @@ package sample.custom_log.core;
  */
 public class FieldSplitter {
     private static final int DEFAULT_BUFFER_SIZE = 1024;
+    /** 構造文字の間の文字列をこの長さ以上の場合はSystem.arraycopy()でコピーする */
+    private static final int BULK_COPY_THRESHOLD = 16;
     /** エスケープ文字(「\\」) */
     private static final char ESCAPE_CHAR = '\\';
     /** セパレータ(半角空白) */
@@ -16,10 +18,27 @@ public class FieldSplitter {
     private static final char DATE_OPENNER = '[';
     /** 括弧終了(「]」) */
     private static final char DATE_CLOSER = ']';
-    /** thisが共用するStringBuilder */
-    private StringBuilder buffer = new StringBuilder(DEFAULT_BUFFER_SIZE);
+    /** エスケープを解除したフィールド値を書き込む配列。次の行を分割するまで内容を保持する */
+    private char[] values = new char[DEFAULT_BUFFER_SIZE];
+    /** splitLine(String, FieldSplitterHandler)で行の文字列をコピーするための配列 */
+    private char[] lineChars = new char[DEFAULT_BUFFER_SIZE];
+    /** 構造文字の位置を探すための索引。nullの場合は1文字ずつ判定する */
+    private StructuralIndex structuralIndex = null;
     public FieldSplitter() {
         
+    }
+    /**
+     * 構造文字の索引を使用するか設定する。
+     * 索引を使用する場合、行の内容を先にStructuralIndexで索引化し、構造文字の位置だけを順にたどる。
+     * 分割結果は索引を使用しない場合と同じになる。
+     * @param structuralIndex 使用する索引。nullの場合は使用しない
+     */
+    public void setStructuralIndex(StructuralIndex structuralIndex) {
+        this.structuralIndex = structuralIndex;
+    }
+    /** @return 使用する構造文字の索引。使用しない場合はnull */
+    public StructuralIndex getStructuralIndex() {
+        return structuralIndex;
     }
     /**
      * Apacheログの一件分(一行)からフィールドを読み込み、順次fieldSplitterHandlerのhandleFieldValue()を呼び出す。
@@ -28,81 +47,170 @@ public class FieldSplitter {
      * @param fieldSplitterHandler 読み取ったフィールドを処理するFieldSplitterHandler
      * @throws LogParseException 引用符が閉じていない等、フォーマットがおかしい場合の例外
      */
-    public void splitLine(String lineString, FieldSplitterHandler fieldSplitterHandler)
+    public void splitLine(String lineString, final FieldSplitterHandler fieldSplitterHandler)
             throws LogParseException {
         int length = lineString.length();
+        if (lineChars.length < length) {
+            lineChars = new char[Math.max(length, lineChars.length * 2)];
+        }
+        lineString.getChars(0, length, lineChars, 0);
+        splitLine(lineChars, 0, length, new FieldRangeHandler() {
+            public void handleField(char[] chars, int start, int end) throws LogParseException {
+                fieldSplitterHandler.handleFieldValue(new String(chars, start, end - start));
+            }
+        });
+    }
+    /**
+     * char配列の範囲を一行として読み込み、順次fieldRangeHandlerのhandleField()を呼び出す。
+     * フィールド値はエスケープを解除してthisが持つ配列に書き込んだ上で、その範囲を渡す。
+     * 渡した配列の内容は、次にsplitLine()を呼び出すまで変更しない。
+     * 文字列を生成しないため、一行あたりのオブジェクト生成は発生しない。
+     * 構造文字の索引を使用する場合、その範囲が索引化済みであれば索引をそのまま使用し、
+     * そうでなければこの行だけを索引化する。
+     * 
+     * @param line 行を含む配列
+     * @param offset 行の開始位置
+     * @param length 行の長さ(改行文字は含まない)
+     * @param fieldRangeHandler 読み取ったフィールドを処理するFieldRangeHandler
+     * @throws LogParseException 引用符が閉じていない等、フォーマットがおかしい場合の例外
+     */
+    public void splitLine(char[] line, int offset, int length, FieldRangeHandler fieldRangeHandler)
+            throws LogParseException {
+        // エスケープ解除後の値は元の行より長くならないため、先に確保しておけば途中で配列が変わる事はない
+        if (values.length < length) {
+            values = new char[Math.max(length, values.length * 2)];
+        }
+        if (structuralIndex != null) {
+            splitIndexedLine(line, offset, length, fieldRangeHandler);
+            return;
+        }
+        char[] values = this.values;
+        int end = offset + length;
         Mode mode = Mode.NORMAL;
         boolean isEscaping = false;
-        buffer.setLength(0);
-        int pos = 0;
+        // 読み取り中のフィールド値はvalues[start]～values[pos - 1]
         int start = 0;
-        for (pos = 0; pos < length; pos++) {
-            char c = lineString.charAt(pos);
+        int pos = 0;
+        for (int index = offset; index < end; index++) {
+            char c = line[index];
             if (isEscaping) {
                 isEscaping = false;
-                start = pos;
+                values[pos++] = c;
             } else if (c == ESCAPE_CHAR) {
                 isEscaping = true;
-                if (pos - start > 0) {
-                    buffer.append(lineString, start, pos);
+            } else if (mode == Mode.NORMAL) {
+                if (c == SEPARATOR) {
+                    if (pos > start) {
+                        fieldRangeHandler.handleField(values, start, pos);
+                    }
+                    start = pos;
+                } else if (c == QUOTE) {
+                    mode = Mode.QUOTING;
+                    start = pos;
+                } else if (c == DATE_OPENNER) {
+                    mode = Mode.IN_DATE_PART;
+                    start = pos;
+                } else {
+                    values[pos++] = c;
+                }
+            } else if (mode == Mode.QUOTING) {
+                if (c == QUOTE) {
+                    mode = Mode.NORMAL;
+                    fieldRangeHandler.handleField(values, start, pos);
+                    start = pos;
+                } else {
+                    values[pos++] = c;
+                }
+            } else if (mode == Mode.IN_DATE_PART) {
+                if (c == DATE_CLOSER) {
+                    mode = Mode.NORMAL;
+                    fieldRangeHandler.handleField(values, start, pos);
+                    start = pos;
+                } else {
+                    values[pos++] = c;
+                }
+            }
+        }
+        if (mode != Mode.NORMAL) {
+            throw new LogParseException(LogParseException.Reason.UNBALANCED_QUOTE, "Unbalance spchar.");
+        }
+        if (pos > start) {
+            fieldRangeHandler.handleField(values, start, pos);
+        }
+    }
+    // 構造文字の索引を使用してsplitLine()と同じ分割をおこなう
+    private void splitIndexedLine(char[] line, int offset, int length, FieldRangeHandler fieldRangeHandler)
+            throws LogParseException {
+        StructuralIndex structuralIndex = this.structuralIndex;
+        int end = offset + length;
+        boolean built = !structuralIndex.covers(line, offset, end);
+        if (built) {
+            structuralIndex.build(line, offset, end);
+        }
+        try {
+            char[] values = this.values;
+            Mode mode = Mode.NORMAL;
+            int start = 0;
+            int pos = 0;
+            int index = offset;
+            while (index < end) {
+                // 次の構造文字までは、どのモードでもそのままフィールド値の一部となる
+                int next = structuralIndex.next(index, end);
+                int run = next - index;
+                if (run >= BULK_COPY_THRESHOLD) {
+                    System.arraycopy(line, index, values, pos, run);
+                    pos += run;
+                } else {
+                    for (; index < next; index++) {
+                        values[pos++] = line[index];
+                    }
+                }
+                if (next == end) {
+                    break;
                 }
-                start = pos + 1;
-            } else {
-                if (mode == Mode.NORMAL) {
+                char c = line[next];
+                index = next + 1;
+                if (c == ESCAPE_CHAR) {
+                    // 行末のエスケープ文字は無視する
+                    if (index < end) {
+                        values[pos++] = line[index++];
+                    }
+                } else if (mode == Mode.NORMAL) {
                     if (c == SEPARATOR) {
                         if (pos > start) {
-                            String value = fullFieldValue(buffer, lineString, start, pos);
-                            fieldSplitterHandler.handleFieldValue(value);
+                            fieldRangeHandler.handleField(values, start, pos);
                         }
-                        start = pos + 1;
+                        start = pos;
                     } else if (c == QUOTE) {
                         mode = Mode.QUOTING;
-                        start = pos + 1;
+                        start = pos;
                     } else if (c == DATE_OPENNER) {
                         mode = Mode.IN_DATE_PART;
-                        start = pos + 1;
-                    }
-                } else if (mode == Mode.QUOTING) {
-                    if (c == QUOTE) {
-                        mode = Mode.NORMAL;
-                        String value = fullFieldValue(buffer, lineString, start, pos);
-                        fieldSplitterHandler.handleFieldValue(value);
-                        start = pos + 1;
-                    }
-                } else if (mode == Mode.IN_DATE_PART) {
-                    if (c == DATE_CLOSER) {
-                        mode = Mode.NORMAL;
-                        String value = fullFieldValue(buffer, lineString, start, pos);
-                        fieldSplitterHandler.handleFieldValue(value);
-                        start = pos + 1;
+                        start = pos;
+                    } else {
+                        values[pos++] = c;
                     }
+                } else if (mode == Mode.QUOTING && c == QUOTE
+                        || mode == Mode.IN_DATE_PART && c == DATE_CLOSER) {
+                    mode = Mode.NORMAL;
+                    fieldRangeHandler.handleField(values, start, pos);
+                    start = pos;
+                } else {
+                    values[pos++] = c;
                 }
             }
-        }
-        if (mode != Mode.NORMAL) {
-            throw new LogParseException("Unbalance spchar.");
-        }
-        if (pos > start) {
-            String value = fullFieldValue(buffer, lineString, start, pos);
-            fieldSplitterHandler.handleFieldValue(value);
-        }
-    }
-    /**
-     * bufferの内容およびstartからposまでの間の文字列を連結したものを戻す。
-     */
-    private static String fullFieldValue(
-            StringBuilder buffer, String lineString, int start, int pos) {
-        String value;
-        if (buffer.length() > 0) {
-            if (pos - start > 0) {
-                buffer.append(lineString, start, pos);
+            if (mode != Mode.NORMAL) {
+                throw new LogParseException(LogParseException.Reason.UNBALANCED_QUOTE, "Unbalance spchar.");
+            }
+            if (pos > start) {
+                fieldRangeHandler.handleField(values, start, pos);
+            }
+        } finally {
+            // この行だけのために索引化した場合、配列の内容が変わる前に破棄する
+            if (built) {
+                structuralIndex.clear();
             }
-            value = buffer.toString();
-            buffer.setLength(0);
-        } else {
-            value = lineString.substring(start, pos);
         }
-        return value;
     }
     private enum Mode {
         /** 通常 */
@@ -116,4 +224,15 @@ public class FieldSplitter {
     public interface FieldSplitterHandler {
         void handleFieldValue(String fieldValue) throws LogParseException;
     }
+    
+    public interface FieldRangeHandler {
+        /**
+         * 一つのフィールド値を処理する。
+         * @param chars フィールド値を含む配列
+         * @param start フィールド値の開始位置
+         * @param end フィールド値の終了位置(この位置の文字は含まない)
+         * @throws LogParseException フィールド値が不正な場合の例外
+         */
+        void handleField(char[] chars, int start, int end) throws LogParseException;
+    }
 }
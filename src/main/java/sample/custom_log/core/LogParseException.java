@@ -1,10 +1,47 @@
 package sample.custom_log.core;
 
+/**
+ * ログのパース時の例外。
+ * 壊れた行が大量に続くログでも処理速度が落ちないよう、スタックトレースは取得しない。
+ */
 public class LogParseException extends Exception {
     /** シリアルバージョン番号 */
     private static final long serialVersionUID = -3318103984912270740L;
+    /** パースに失敗した理由 */
+    public enum Reason {
+        /** 引用符または日付括弧が閉じていない */
+        UNBALANCED_QUOTE,
+        /** フィールド数がフォーマットより多い */
+        TOO_MANY_FIELDS,
+        /** 日時(%t)が読み取れない */
+        INVALID_TIME,
+        /** ステータス(%s)が読み取れない */
+        INVALID_STATUS,
+        /** サイズ(%b)が読み取れない */
+        INVALID_SIZE,
+        /** 数値の項目(%D、%T、%I、%O、%k)が読み取れない */
+        INVALID_NUMBER,
+        /** エラー率が上限を超えた */
+        TOO_MANY_ERRORS,
+        /** その他 */
+        OTHER
+    }
+    private final Reason reason;
 
     public LogParseException(String message) {
+        this(Reason.OTHER, message);
+    }
+    public LogParseException(Reason reason, String message) {
         super(message);
+        this.reason = reason;
+    }
+    /** @return パースに失敗した理由 */
+    public Reason getReason() {
+        return reason;
+    }
+    /** スタックトレースを取得しない */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
     }
-}
\ No newline at end of file
+}
@@ -1,22 +1,54 @@
 package sample.custom_log.core;
 
-import java.text.DateFormat;
-import java.text.ParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import sample.custom_log.core.FieldSplitter.FieldRangeHandler;
 import sample.custom_log.core.FieldSplitter.FieldSplitterHandler;
+import sample.custom_log.core.LogParseException.Reason;
 
 /**
- * Apacheのログ文字列を読み込んでLogRecord化するためのクラス
+ * Apacheのログ文字列を読み込んでLogRecord化するためのクラス。
+ * 一行ずつ処理するparseLine()の他に、Reader/チャネル/バッファから読み込んだ各行を
+ * LogRecordHandlerに渡すparse()を持つ。parse()は一つのLogRecordを全行で使い回し、
+ * 行ごとのオブジェクト生成をおこなわない。
+ * スレッドセーフではない！
  */
 public class LogParser {
     private static final String DEFAULT_LOG_FORMAT = "%h %l %u %t \"%r\" %>s %b";
+    /** parse()で使用する読み込みバッファの初期サイズ */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
     private String logFormat;
     /** フィールドに分割するためのもの */
     private FieldSplitter fieldSplitter = new FieldSplitter();
     /** 各フィールドの値をLogRecordにセットする為のもの */
     private FieldHandler[] handlers;
+    /**
+     * %{X}iで記録されるリクエストヘッダ名の表(Referer、User-Agentを除く)。各ヘッダにはフォーマットの
+     * 初期化時にこの表での位置(スロット)を割り当て、LogRecordはスロットごとにヘッダ値を保持する。
+     * 全LogRecordで共有するため変更しない事。
+     */
+    private String[] headerNames;
+    /** 初期化中に割り当てたヘッダ名。initializeHandlers()の終了時にheaderNamesに変換する */
+    private final List<String> headerNameList = new ArrayList<String>();
+    /** 分割したフィールドを順にhandlersに渡すもの。行ごとに生成しないよう使い回す */
+    private final RecordFiller recordFiller = new RecordFiller();
+    /** parseLine(String)で行の文字列をコピーするための配列 */
+    private char[] lineChars = new char[1024];
+    /** parse()で全行に使い回すLogRecord */
+    private final LogRecord sharedRecord = new LogRecord();
+    /** parse()で読み込んだバッファの構造文字の索引。nullの場合は使用しない */
+    private StructuralIndex structuralIndex = null;
     
     /**
      * デフォルトコンストラクタ。フォーマットはDEFAULT_FORMAT(Apacheのcommon)を使用する。
@@ -38,11 +70,31 @@ public class LogParser {
         try {
             initializeHandlers();
         } catch (LogParseException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException("Illegal format specified: " + logFormat);
+            throw new IllegalArgumentException("Illegal format specified: " + logFormat, e);
         }
     }
 
+    /** @return ログのフォーマット文字列 */
+    public String getLogFormat() {
+        return logFormat;
+    }
+
+    /**
+     * 構造文字の索引(StructuralIndex)を使用するか設定する。デフォルトは使用しない。
+     * 使用する場合、parse()は読み込んだバッファ全体を先に索引化し、行の区切りとフィールドの区切りを
+     * 索引からたどる。パース結果は使用しない場合と同じになる。
+     * StructuralIndex.isSupported()がfalseの環境ではenabledに関わらず使用しない。
+     * @param enabled 使用する場合true
+     */
+    public void setStructuralIndexEnabled(boolean enabled) {
+        structuralIndex = (enabled && StructuralIndex.isSupported()) ? new StructuralIndex() : null;
+        fieldSplitter.setStructuralIndex(structuralIndex);
+    }
+    /** @return 構造文字の索引を使用する場合true */
+    public boolean isStructuralIndexEnabled() {
+        return structuralIndex != null;
+    }
+
     /**
      * 一行分のログをパースし、内容を新規に生成したLogRecordオブジェクトに設定して戻す。
      * @param logLine 一行分のログを含む文字列
@@ -53,20 +105,138 @@ public class LogParser {
         if (logLine == null) {
             throw new LogParseException("Null input specified.");
         }
-        final LogRecord logRecord = new LogRecord();
-        this.fieldSplitter.splitLine(logLine, new FieldSplitterHandler() {
-            private int fieldCount = 0;
-            public void handleFieldValue(String fieldValue) throws LogParseException {
-                if (fieldCount < handlers.length) {
-                    handlers[fieldCount++].setFieldValue(logRecord, fieldValue);
-                } else {
-                    throw new LogParseException("Too Many fields.　Over " + fieldCount);
-                }
-            }
-        });
+        int length = logLine.length();
+        if (lineChars.length < length) {
+            lineChars = new char[Math.max(length, lineChars.length * 2)];
+        }
+        logLine.getChars(0, length, lineChars, 0);
+        LogRecord logRecord = new LogRecord();
+        parseLine(lineChars, 0, length, logRecord);
+        logRecord.materialize();
         return logRecord;
     }
-    
+    /**
+     * char配列の範囲を一行分のログとしてパースし、内容をlogRecordに設定する。logRecordは事前に初期化される。
+     * 文字列の項目はgetterが呼ばれるまで生成しないため、logRecordの内容は
+     * このLogParserで次の行をパースするまでの間のみ有効。
+     * @param chars 一行分のログを含む配列
+     * @param offset 行の開始位置
+     * @param length 行の長さ(改行文字は含まない)
+     * @param logRecord 内容を設定するLogRecord
+     * @throws LogParseException フォーマットの不整合等、パース時の例外
+     */
+    public void parseLine(char[] chars, int offset, int length, LogRecord logRecord) throws LogParseException {
+        logRecord.reset();
+        logRecord.setHeaderNames(headerNames);
+        recordFiller.start(logRecord);
+        fieldSplitter.splitLine(chars, offset, length, recordFiller);
+    }
+
+    /**
+     * readerから読み込んだログを一行ずつパースし、handlerに渡す。空行は無視する。
+     * handlerに渡すLogRecordは全行で同じオブジェクトを使い回すため、
+     * コールバックの中でのみ有効である(保持する場合はLogRecord.copy()を使用する事)。
+     * readerはcloseしない。
+     * @param reader 読み込み元
+     * @param handler パースしたLogRecordとパースエラーを処理するLogRecordHandler
+     * @return 読み込んだ行数(空行、エラー行を含む)
+     * @throws IOException 読み込み時のIO例外
+     */
+    public long parse(Reader reader, LogRecordHandler handler) throws IOException {
+        RecordStream stream = new RecordStream(handler, null, -1);
+        while (!stream.stopped) {
+            int count = reader.read(stream.chars);
+            stream.drain(count == -1);
+            if (count == -1) {
+                break;
+            }
+        }
+        return stream.lineNumber;
+    }
+    /**
+     * channelから読み込んだログを一行ずつパースし、handlerに渡す。
+     * 不正なバイト列は置換文字として扱う。その他はparse(Reader, LogRecordHandler)と同様。
+     * channelはcloseしない。
+     * @param channel 読み込み元
+     * @param charset ログの文字コード
+     * @param handler パースしたLogRecordとパースエラーを処理するLogRecordHandler
+     * @return 読み込んだ行数(空行、エラー行を含む)
+     * @throws IOException 読み込み時のIO例外
+     */
+    public long parse(ReadableByteChannel channel, Charset charset, LogRecordHandler handler) throws IOException {
+        return parse(channel, charset, 0, handler);
+    }
+    /**
+     * ファイルの途中から読み込むchannelのログを一行ずつパースし、handlerに渡す。
+     * handleParseError()に渡す位置は、offsetにchannelから読み込んだバイト数を加えたものになる。
+     * 位置はデコード前のバイト列の改行(0x0A)の位置から求めるため、不正なバイト列があってもずれない
+     * (改行が0x0Aの1バイトでない文字コード(UTF-16等)では-1を渡す)。
+     * その他はparse(ReadableByteChannel, Charset, LogRecordHandler)と同様。
+     * @param channel 読み込み元
+     * @param charset ログの文字コード
+     * @param offset channelの先頭の、ファイル内の位置(バイト)
+     * @param handler パースしたLogRecordとパースエラーを処理するLogRecordHandler
+     * @return 読み込んだ行数(空行、エラー行を含む)
+     * @throws IOException 読み込み時のIO例外
+     */
+    public long parse(ReadableByteChannel channel, Charset charset, long offset, LogRecordHandler handler)
+            throws IOException {
+        RecordStream stream = new RecordStream(handler, charset, offset);
+        CharsetDecoder decoder = newDecoder(charset);
+        ByteBuffer bytes = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        while (!stream.stopped) {
+            boolean endOfInput = channel.read(bytes) == -1;
+            bytes.flip();
+            decode(bytes, endOfInput, decoder, stream);
+            bytes.compact();
+            if (endOfInput) {
+                break;
+            }
+        }
+        finishDecoding(decoder, stream);
+        return stream.lineNumber;
+    }
+    /**
+     * bufferのpositionからlimitまでのログを一行ずつパースし、handlerに渡す。
+     * bufferのpositionは変更しない。メモリマップしたファイルの処理に使用できる。
+     * その他はparse(ReadableByteChannel, Charset, LogRecordHandler)と同様。
+     * @param buffer 読み込み元
+     * @param charset ログの文字コード
+     * @param handler パースしたLogRecordとパースエラーを処理するLogRecordHandler
+     * @return 読み込んだ行数(空行、エラー行を含む)
+     */
+    public long parse(ByteBuffer buffer, Charset charset, LogRecordHandler handler) {
+        RecordStream stream = new RecordStream(handler, charset, 0);
+        CharsetDecoder decoder = newDecoder(charset);
+        decode(buffer.duplicate(), true, decoder, stream);
+        finishDecoding(decoder, stream);
+        return stream.lineNumber;
+    }
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    // bytesの内容をデコードしながら、完結した行を処理する
+    private static void decode(ByteBuffer bytes, boolean endOfInput, CharsetDecoder decoder, RecordStream stream) {
+        while (!stream.stopped) {
+            int position = bytes.position();
+            CoderResult result = decoder.decode(bytes, stream.chars, endOfInput);
+            stream.consumed(bytes, position, bytes.position());
+            stream.drain(false);
+            if (!result.isOverflow()) {
+                break;
+            }
+        }
+    }
+    // デコーダに残っている内容と最後の行を処理する
+    private static void finishDecoding(CharsetDecoder decoder, RecordStream stream) {
+        while (!stream.stopped && decoder.flush(stream.chars).isOverflow()) {
+            stream.drain(false);
+        }
+        stream.drain(true);
+    }
+
     /**
      * this.formatの内容にあわせてhandlersを初期化する。
      * フォーマット文字列のフィールド数と出力ログのフィールド数は一致する事が期待出来るため、
@@ -107,6 +277,7 @@ public class LogParser {
             }
             this.handlers[index] = handler;
         }
+        this.headerNames = headerNameList.toArray(new String[headerNameList.size()]);
     }
 
     /**
@@ -121,92 +292,371 @@ public class LogParser {
         switch (type) {
             case 'h':   // Remote host
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
-                        logRecord.setRemoteHost(value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                        logRecord.setRange(LogRecord.REMOTE_HOST, chars, start, end);
                     }};
             case 'l':   // Remote logname (from identd, if supplied). 
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
-                        logRecord.setRemoteLogname(value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                        logRecord.setRange(LogRecord.REMOTE_LOGNAME, chars, start, end);
                     }};
             case 'u':   // Remote user. 
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
-                        logRecord.setRemoteUser(value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                        logRecord.setRange(LogRecord.REMOTE_USER, chars, start, end);
                     }};
             case 't':   // Time the request was received
                 // TODO: paramが空でない場合はstrftimeフォーマットとして使用
-                final DateFormat formatter = 
+                final CLFDateFormat formatter = 
                     new CLFDateFormat();
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) throws LogParseException {
-                        try {
-                            logRecord.setRequestTime(formatter.parse(value));
-                        } catch (ParseException e) {
-                            e.printStackTrace();
-                            throw new LogParseException("Failed to parse requestTime:" + value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end)
+                            throws LogParseException {
+                        long millis = formatter.parseMillis(chars, start, end);
+                        if (millis == CLFDateFormat.INVALID) {
+                            throw new LogParseException(Reason.INVALID_TIME, "Failed to parse requestTime:"
+                                    + new String(chars, start, end - start));
                         }
+                        logRecord.setRequestTimeMillis(millis);
                     }};
             case 'r':   // First line of request
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
-                        logRecord.setRequestLine(value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                        logRecord.setRange(LogRecord.REQUEST_LINE, chars, start, end);
                     }};
             case 's':   // Status
                 // この実装では%sと%>sの区別はつけない
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) throws LogParseException {
-                        try {
-                            logRecord.setStatus(Integer.parseInt(value));
-                        } catch (NumberFormatException e) {
-                            throw new LogParseException("Failed to parse status:" + value);
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end)
+                            throws LogParseException {
+                        int status = parseInt(chars, start, end);
+                        if (status < 0) {
+                            throw new LogParseException(Reason.INVALID_STATUS, "Failed to parse status:"
+                                    + new String(chars, start, end - start));
                         }
+                        logRecord.setStatus(status);
                     }};
             case 'b':   // Size of response in bytes
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) throws LogParseException {
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end)
+                            throws LogParseException {
                         int responseSize = 0;
-                        if (!value.equals("-")) {
-                            try {
-                                responseSize = Integer.parseInt(value);
-                            } catch (NumberFormatException e) {
-                                e.printStackTrace();
-                                throw new LogParseException("Failed to parse status:" + value);
+                        if (end - start != 1 || chars[start] != '-') {
+                            responseSize = parseInt(chars, start, end);
+                            if (responseSize < 0) {
+                                throw new LogParseException(Reason.INVALID_SIZE, "Failed to parse responseSize:"
+                                        + new String(chars, start, end - start));
                             }
                         }
                         logRecord.setResponseSize(responseSize);
                     }};
+            case 'D':   // The time taken to serve the request, in microseconds.
+                return new LongFieldHandler("timeTaken") {
+                    void setValue(LogRecord logRecord, long value) {
+                        logRecord.setTimeTaken(value);
+                    }};
+            case 'T':   // The time taken to serve the request, in seconds.
+                // %{ms}T、%{us}Tの単位指定にも対応する。%Dと両方ある場合は%Dを優先する
+                final long unit = param.equals("ms") ? 1000 : param.equals("us") ? 1 : 1000000;
+                return new LongFieldHandler("timeTaken") {
+                    void setValue(LogRecord logRecord, long value) {
+                        if (logRecord.getTimeTaken() == LogRecord.NOT_LOGGED) {
+                            logRecord.setTimeTaken(value * unit);
+                        }
+                    }};
+            case 'I':   // Bytes received, including request and headers (mod_logio)
+                return new LongFieldHandler("bytesReceived") {
+                    void setValue(LogRecord logRecord, long value) {
+                        logRecord.setBytesReceived(value);
+                    }};
+            case 'O':   // Bytes sent, including headers (mod_logio)
+                return new LongFieldHandler("bytesSent") {
+                    void setValue(LogRecord logRecord, long value) {
+                        logRecord.setBytesSent(value);
+                    }};
+            case 'k':   // Number of keepalive requests handled on this connection.
+                return new LongFieldHandler("keepAliveRequests") {
+                    void setValue(LogRecord logRecord, long value) {
+                        logRecord.setKeepAliveRequests(value);
+                    }};
             case 'i':   // The contents of Foobar: header line(s) in the request sent to the server. 
                 if (param.equalsIgnoreCase("referer")) {
                     return new FieldHandler() {
-                        public void setFieldValue(LogRecord logRecord, String value) {
-                           logRecord.setReferer(value);
+                        public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                           logRecord.setRange(LogRecord.REFERER, chars, start, end);
                         }};
                 } else if (param.equalsIgnoreCase("user-agent")) {
                     return new FieldHandler() {
-                        public void setFieldValue(LogRecord logRecord, String value) {
-                           logRecord.setUserAgent(value);
+                        public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                           logRecord.setRange(LogRecord.USER_AGENT, chars, start, end);
                         }};
-                } else
-                
-                return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
-                       logRecord.setRequestHeader(param, value);
-                    }};
+                } else {
+                    // 同じヘッダが複数回指定された場合は同じスロットとし、後のフィールドの値を優先する
+                    int index = headerNameList.indexOf(param);
+                    if (index < 0) {
+                        index = headerNameList.size();
+                        headerNameList.add(param);
+                    }
+                    final int slot = index;
+                    return new FieldHandler() {
+                        public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
+                           logRecord.setHeaderRange(slot, chars, start, end);
+                        }};
+                }
                     // 他の項目の対応も必要ならここに付け足す
             default: // 未対応のフォーマットについては、何もしないFieldHandlerを戻す
                 return new FieldHandler() {
-                    public void setFieldValue(LogRecord logRecord, String value) {
+                    public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) {
                 }};
         }
     }
+    /**
+     * 10進の非負整数を読み取る。文字列を生成しないためInteger.parseInt()の代わりに使用する。
+     * @return 読み取った値。数字以外を含む場合、空の場合、intの範囲を超える場合は-1
+     */
+    private static int parseInt(char[] chars, int start, int end) {
+        long value = parseLong(chars, start, end);
+        return (value > Integer.MAX_VALUE) ? -1 : (int) value;
+    }
+    /**
+     * 10進の非負整数を読み取る。文字列を生成しないためLong.parseLong()の代わりに使用する。
+     * @return 読み取った値。数字以外を含む場合、空の場合、18桁を超える場合は-1
+     */
+    private static long parseLong(char[] chars, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int pos = start; pos < end; pos++) {
+            int digit = chars[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
     public interface FieldHandler {
         /**
          * ログの各フィールドの値をlogRecordの該当する項目にセットする。
+         * 文字列の項目は範囲のみをセットし、文字列の生成はLogRecordのgetterが呼ばれるまで遅らせる事。
          * @param logRecord LogRecordオブジェクト
-         * @param value フィールド値(文字列)
+         * @param chars フィールド値を含む配列
+         * @param start フィールド値の開始位置
+         * @param end フィールド値の終了位置(この位置の文字は含まない)
          * @throws LogParseException パース時にフォーマットの不一致などの例外が発生した場合、この例外を投げる事
          */
-        void setFieldValue(LogRecord logRecord, String value) throws LogParseException;
+        void setFieldValue(LogRecord logRecord, char[] chars, int start, int end) throws LogParseException;
+    }
+    /**
+     * 数値の項目をLogRecordにセットするFieldHandler。「-」の場合は何もしない(NOT_LOGGEDのまま)。
+     */
+    private static abstract class LongFieldHandler implements FieldHandler {
+        /** エラーメッセージに使う項目名 */
+        private final String name;
+
+        LongFieldHandler(String name) {
+            this.name = name;
+        }
+        public void setFieldValue(LogRecord logRecord, char[] chars, int start, int end)
+                throws LogParseException {
+            if (end - start == 1 && chars[start] == '-') {
+                return;
+            }
+            long value = parseLong(chars, start, end);
+            if (value < 0) {
+                throw new LogParseException(Reason.INVALID_NUMBER, "Failed to parse " + name + ":"
+                        + new String(chars, start, end - start));
+            }
+            setValue(logRecord, value);
+        }
+        /** valueをlogRecordの該当する項目にセットする */
+        abstract void setValue(LogRecord logRecord, long value);
+    }
+    /**
+     * parse()で読み込んだ各行を処理するインターフェース。
+     */
+    public interface LogRecordHandler {
+        /**
+         * パースした一行分のLogRecordを処理する。
+         * logRecordはLogParserが次の行で再利用するため、このメソッドの中でのみ有効。
+         * @param logRecord パース結果
+         * @return 読み込みを続ける場合はtrue、中止する場合はfalse
+         */
+        boolean handleLogRecord(LogRecord logRecord);
+        /**
+         * パースに失敗した行を処理する。
+         * @param lineNumber 行番号(parse()で読み込んだ範囲の先頭を1行目とする)
+         * @param offset 行の先頭の位置(バイト)。Readerから読み込んだ場合や、改行が0x0Aの1バイトでない文字コードの場合は-1
+         * @param line 行の内容
+         * @param e パース時の例外
+         * @return 読み込みを続ける場合はtrue、中止する場合はfalse
+         */
+        boolean handleParseError(long lineNumber, long offset, String line, LogParseException e);
+    }
+
+    /** 分割したフィールドを順にhandlersに渡すFieldRangeHandler */
+    private class RecordFiller implements FieldRangeHandler {
+        private LogRecord logRecord;
+        private int fieldCount;
+
+        void start(LogRecord logRecord) {
+            this.logRecord = logRecord;
+            this.fieldCount = 0;
+        }
+        public void handleField(char[] chars, int start, int end) throws LogParseException {
+            if (fieldCount < handlers.length) {
+                handlers[fieldCount++].setFieldValue(logRecord, chars, start, end);
+            } else {
+                throw new LogParseException(Reason.TOO_MANY_FIELDS, "Too Many fields.　Over " + fieldCount);
+            }
+        }
+    }
+
+    /** parse()一回分の状態。読み込んだ文字を溜め、完結した行からパースしてhandlerに渡す */
+    private class RecordStream {
+        private final LogRecordHandler handler;
+        /** 読み込んだ文字(書き込みモード)。一行が収まらない場合は拡張する */
+        CharBuffer chars = CharBuffer.allocate(STREAM_BUFFER_SIZE);
+        long lineNumber = 0;
+        /** 行の位置を数える場合true */
+        private final boolean tracksOffset;
+        /** 次の行の先頭の位置(バイト)。数えない場合は-1 */
+        private long offset;
+        /** デコーダが読み込んだバイト列の終わりの位置(バイト) */
+        private long consumedOffset;
+        /**
+         * デコーダが読み込んだ改行の次の位置(バイト)のキュー。newlineHead～newlineTail - 1が有効。
+         * デコードした'\n'とバイト列の0x0Aは順に一対一で対応するため、行を処理するごとに先頭から取り出す
+         */
+        private long[] newlineOffsets = new long[256];
+        private int newlineHead = 0;
+        private int newlineTail = 0;
+        /** handlerが中止を指示した場合true */
+        boolean stopped = false;
+
+        /**
+         * @param handler パース結果を渡すもの
+         * @param charset 読み込むバイト列の文字コード。Readerから読み込む場合(位置を数えない場合)はnull
+         * @param offset 最初の行の位置(バイト)
+         */
+        RecordStream(LogRecordHandler handler, Charset charset, long offset) {
+            this.handler = handler;
+            // 改行が0x0Aの1バイトになる文字コード(ASCII互換)でのみ、バイト列の0x0Aを改行とみなせる
+            this.tracksOffset = (charset != null) && Arrays.equals("\n".getBytes(charset), new byte[] {'\n'});
+            this.offset = tracksOffset ? offset : -1;
+            this.consumedOffset = offset;
+        }
+        /**
+         * デコーダが読み込んだbytes[from]～bytes[to - 1]から改行を探し、次の行の先頭の位置を記録する。
+         * @param bytes デコーダが読み込んだバイト列
+         * @param from 読み込んだ範囲の開始位置
+         * @param to 読み込んだ範囲の終了位置
+         */
+        void consumed(ByteBuffer bytes, int from, int to) {
+            if (!tracksOffset) {
+                return;
+            }
+            long base = consumedOffset - from;
+            for (int index = from; index < to; index++) {
+                if (bytes.get(index) == '\n') {
+                    if (newlineTail == newlineOffsets.length) {
+                        newlineOffsets = (newlineHead > 0) ? newlineOffsets
+                                : Arrays.copyOf(newlineOffsets, newlineOffsets.length * 2);
+                        System.arraycopy(newlineOffsets, newlineHead, newlineOffsets, 0, newlineTail - newlineHead);
+                        newlineTail -= newlineHead;
+                        newlineHead = 0;
+                    }
+                    newlineOffsets[newlineTail++] = base + index + 1;
+                }
+            }
+            consumedOffset = base + to;
+        }
+        /**
+         * charsに溜まっている完結した行を全て処理し、未完の行をcharsの先頭に詰める。
+         * @param endOfInput 入力の終わりであればtrue。末尾の改行のない行も処理する
+         */
+        void drain(boolean endOfInput) {
+            chars.flip();
+            char[] array = chars.array();
+            int base = chars.arrayOffset();
+            int limit = base + chars.limit();
+            int lineStart = base + chars.position();
+            if (structuralIndex != null) {
+                lineStart = drainIndexed(array, lineStart, limit);
+            } else {
+                for (int pos = lineStart; pos < limit && !stopped; pos++) {
+                    if (array[pos] == '\n') {
+                        handleLine(array, lineStart, pos, true);
+                        lineStart = pos + 1;
+                    }
+                }
+            }
+            if (endOfInput && lineStart < limit && !stopped) {
+                handleLine(array, lineStart, limit, false);
+                lineStart = limit;
+            }
+            chars.position(lineStart - base);
+            chars.compact();
+            if (!chars.hasRemaining()) {
+                CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+                chars.flip();
+                larger.put(chars);
+                chars = larger;
+            }
+        }
+        /**
+         * array[start]～array[limit - 1]をまとめて索引化し、構造文字の位置から改行を探して完結した行を処理する。
+         * 各行のフィールド分割にも同じ索引を使用する。
+         * @return 未完の行の開始位置
+         */
+        private int drainIndexed(char[] array, int start, int limit) {
+            int lineStart = start;
+            structuralIndex.build(array, start, limit);
+            try {
+                int pos = structuralIndex.next(start, limit);
+                while (pos < limit && !stopped) {
+                    if (array[pos] == '\n') {
+                        handleLine(array, lineStart, pos, true);
+                        lineStart = pos + 1;
+                    }
+                    pos = structuralIndex.next(pos + 1, limit);
+                }
+            } finally {
+                // compact()で配列の内容が変わるため破棄する
+                structuralIndex.clear();
+            }
+            return lineStart;
+        }
+        /**
+         * 一行をパースしてhandlerに渡す。
+         * @param start 行の先頭
+         * @param end 行の終わり(改行の位置)
+         * @param newline 改行で終わる行の場合true(入力の終わりの改行のない行はfalse)
+         */
+        private void handleLine(char[] array, int start, int end, boolean newline) {
+            lineNumber++;
+            long lineOffset = offset;
+            if (tracksOffset && newline && newlineHead < newlineTail) {
+                offset = newlineOffsets[newlineHead++];
+            }
+            if (end > start && array[end - 1] == '\r') {
+                end--;
+            }
+            if (end == start) {
+                return;
+            }
+            try {
+                parseLine(array, start, end - start, sharedRecord);
+            } catch (LogParseException e) {
+                if (!handler.handleParseError(lineNumber, lineOffset, new String(array, start, end - start), e)) {
+                    stopped = true;
+                }
+                return;
+            }
+            if (!handler.handleLogRecord(sharedRecord)) {
+                stopped = true;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,17 @@
 package sample.custom_log.core;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeMap;
 
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 
 /** 
@@ -12,71 +19,289 @@ import org.apache.commons.lang.builder.ToStringBuilder;
  * cf: http://httpd.apache.org/docs/2.2/en/mod/mod_log_config.html
  */
 public class LogRecord {
+    /** 遅延生成する文字列項目の番号 */
+    static final int REMOTE_HOST = 0;
+    static final int REMOTE_LOGNAME = 1;
+    static final int REMOTE_USER = 2;
+    static final int REQUEST_LINE = 3;
+    static final int REFERER = 4;
+    static final int USER_AGENT = 5;
+    private static final int LAZY_FIELD_COUNT = 6;
+    /** requestTimeMillisが未設定であることを示す値 */
+    private static final long NO_TIME = Long.MIN_VALUE;
+    /** 数値項目(timeTaken等)がログに記録されていないことを示す値 */
+    public static final long NOT_LOGGED = -1;
+    /** リクエストヘッダがない場合の空の表 */
+    private static final String[] NO_HEADER_NAMES = new String[0];
+    private static final int[] NO_HEADER_RANGES = new int[0];
+
     public String toString() {
-        return ToStringBuilder.reflectionToString(this);
+        materialize();
+        return ReflectionToStringBuilder.toStringExclude(this, new String[] {"source", "starts", "ends",
+                "headerNames", "headerValues", "headerStarts", "headerEnds"});
     }
     private String remoteHost;
     private String remoteLogname;
     private String remoteUser;
     private Date requestTime;
+    private long requestTimeMillis = NO_TIME;
     private String requestLine;
     private int status;
     private int responseSize;
     private String referer;
     private String userAgent;
-    /** リクエストヘッダの内容を保持するMap。キー=ヘッダフィールド名、値=ヘッダ値 */
-    private Map<String, String> requestHeaders = Collections.emptyMap();
-    /** Method/Request-URI/Protocol-VersonおよびURIのパラメータを保持するオブジェクト */
+    /** リクエストの処理時間(マイクロ秒。%Dまたは%T) */
+    private long timeTaken = NOT_LOGGED;
+    /** リクエストヘッダを含む受信バイト数(%I) */
+    private long bytesReceived = NOT_LOGGED;
+    /** レスポンスヘッダを含む送信バイト数(%O) */
+    private long bytesSent = NOT_LOGGED;
+    /** keep-alive接続で処理したリクエスト数(%k) */
+    private long keepAliveRequests = NOT_LOGGED;
+    /**
+     * リクエストヘッダ名の表。ヘッダ値は表と同じ位置(スロット)のheaderValues等に保持する。
+     * LogParserがフォーマットごとに一つ生成し、同じフォーマットのLogRecordで共有する(変更しない事)。
+     */
+    private String[] headerNames = NO_HEADER_NAMES;
+    /** 各スロットのヘッダ値。nullのスロットは未生成または未設定 */
+    private String[] headerValues = NO_HEADER_NAMES;
+    /** 各スロットのヘッダ値のsource上の範囲。headerStartsが-1のスロットは未設定 */
+    private int[] headerStarts = NO_HEADER_RANGES;
+    private int[] headerEnds = NO_HEADER_RANGES;
+    /** リクエストヘッダをMapとして参照する為のビュー。キー=ヘッダフィールド名、値=ヘッダ値 */
+    private final Map<String, String> requestHeaders = new HeaderMap();
+    /** Method/Request-URI/Protocol-VersonおよびURIのパラメータを保持するオブジェクト。必要になった時点で生成する */
     private RequestLine requestLineObject = null;
+    /**
+     * 文字列項目の切り出し元。LogParserがパース中の行の内容で、文字列項目はgetterが呼ばれるまで生成しない。
+     * nullの場合は全ての文字列項目が生成済み。
+     */
+    private char[] source;
+    /** 各文字列項目のsource上の範囲。startsが-1の項目は未設定 */
+    private final int[] starts = new int[LAZY_FIELD_COUNT];
+    private final int[] ends = new int[LAZY_FIELD_COUNT];
     /** デフォルトコンストラクタ */
     public LogRecord() {
+        Arrays.fill(starts, -1);
+    }
+    /**
+     * 全項目を未設定の状態に戻す。LogParserが一つのLogRecordを使い回す際に使用する。
+     */
+    void reset() {
+        remoteHost = null;
+        remoteLogname = null;
+        remoteUser = null;
+        requestTime = null;
+        requestTimeMillis = NO_TIME;
+        requestLine = null;
+        status = 0;
+        responseSize = 0;
+        referer = null;
+        userAgent = null;
+        timeTaken = NOT_LOGGED;
+        bytesReceived = NOT_LOGGED;
+        bytesSent = NOT_LOGGED;
+        keepAliveRequests = NOT_LOGGED;
+        Arrays.fill(headerValues, null);
+        Arrays.fill(headerStarts, -1);
+        requestLineObject = null;
+        source = null;
+        Arrays.fill(starts, -1);
+    }
+    /**
+     * リクエストヘッダ名の表を設定する。表が変わった場合はヘッダ値を全て未設定にする。
+     * 同じ表を設定し続ける限り、ヘッダ値を保持する配列は使い回す。
+     * @param names ヘッダ名の表(変更しない事)
+     */
+    void setHeaderNames(String[] names) {
+        if (headerNames == names) {
+            return;
+        }
+        headerNames = names;
+        headerValues = new String[names.length];
+        headerStarts = new int[names.length];
+        headerEnds = new int[names.length];
+        Arrays.fill(headerStarts, -1);
+    }
+    /**
+     * ヘッダ値として、chars上の範囲を設定する。条件はsetRange()と同様。
+     * @param slot ヘッダ名の表での位置
+     * @param chars 切り出し元の配列
+     * @param start 開始位置
+     * @param end 終了位置(この位置の文字は含まない)
+     */
+    void setHeaderRange(int slot, char[] chars, int start, int end) {
+        source = chars;
+        headerValues[slot] = null;
+        headerStarts[slot] = start;
+        headerEnds[slot] = end;
+    }
+    /**
+     * 文字列項目の値として、chars上の範囲を設定する。文字列はgetterが呼ばれた時点で生成する。
+     * charsの内容は、materialize()が呼ばれるかreset()されるまで変更されない事。
+     * @param field 項目の番号(REMOTE_HOST等)
+     * @param chars 切り出し元の配列(一行の中では全項目で同じ配列であること)
+     * @param start 開始位置
+     * @param end 終了位置(この位置の文字は含まない)
+     */
+    void setRange(int field, char[] chars, int start, int end) {
+        source = chars;
+        starts[field] = start;
+        ends[field] = end;
+    }
+    /**
+     * 未生成の文字列項目を全て生成し、切り出し元の配列への参照を捨てる。
+     * 以降はLogParserが次の行をパースしても内容が変わらない。
+     */
+    void materialize() {
+        if (source == null) {
+            return;
+        }
+        getRemoteHost();
+        getRemoteLogname();
+        getRemoteUser();
+        getRequestLine();
+        getReferer();
+        getUserAgent();
+        for (int slot = 0; slot < headerNames.length; slot++) {
+            headerValue(slot);
+        }
+        source = null;
+    }
+    /**
+     * このLogRecordの内容を複製する。
+     * LogParser.parse()のLogRecordHandlerに渡されたLogRecordを、コールバックの外で保持したい場合に使用する。
+     * @return 複製したLogRecord
+     */
+    public LogRecord copy() {
+        LogRecord copy = new LogRecord();
+        copy.remoteHost = getRemoteHost();
+        copy.remoteLogname = getRemoteLogname();
+        copy.remoteUser = getRemoteUser();
+        copy.requestTimeMillis = requestTimeMillis;
+        copy.requestLine = getRequestLine();
+        copy.status = status;
+        copy.responseSize = responseSize;
+        copy.referer = getReferer();
+        copy.userAgent = getUserAgent();
+        copy.timeTaken = timeTaken;
+        copy.bytesReceived = bytesReceived;
+        copy.bytesSent = bytesSent;
+        copy.keepAliveRequests = keepAliveRequests;
+        copy.setHeaderNames(headerNames);
+        for (int slot = 0; slot < headerNames.length; slot++) {
+            copy.headerValues[slot] = headerValue(slot);
+        }
+        return copy;
+    }
+    // 文字列項目fieldの値を、未生成ならsourceから生成して戻す。未設定ならnullを戻す
+    private String lazyValue(int field) {
+        if (source == null || starts[field] < 0) {
+            return null;
+        }
+        return new String(source, starts[field], ends[field] - starts[field]);
+    }
+    // スロットのヘッダ値を、未生成ならsourceから生成して戻す。未設定ならnullを戻す
+    private String headerValue(int slot) {
+        if (headerValues[slot] == null && source != null && headerStarts[slot] >= 0) {
+            headerValues[slot] = new String(source, headerStarts[slot], headerEnds[slot] - headerStarts[slot]);
+        }
+        return headerValues[slot];
+    }
+    // nameのスロットを戻す。表にない場合は-1
+    private int headerSlot(Object name) {
+        for (int slot = 0; slot < headerNames.length; slot++) {
+            if (headerNames[slot].equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    // requestLineObjectを、未生成ならリクエスト行から生成して戻す
+    private RequestLine getRequestLineObject() {
+        if (requestLineObject == null) {
+            String line = getRequestLine();
+            if (line != null) {
+                requestLineObject = new RequestLine(line);
+            }
+        }
+        return requestLineObject;
     }
     /* 検索/情報取得用の便利メソッド */
     /** @return リクエストメソッドを戻す */
     public String getMethod() {
-        return (this.requestLineObject != null) 
+        return (getRequestLineObject() != null) 
                 ? this.requestLineObject.getMethod() : null;
     }
     /** @return リクエストURIを戻す */
     public String getRequestUri() {
-        return (this.requestLineObject != null) 
+        return (getRequestLineObject() != null) 
                 ? this.requestLineObject.getRequestUri() : null;
     }
     /** @return プロトコルバージョンを戻す */
     public String getProtocolVersion() {
-        return (this.requestLineObject != null) 
+        return (getRequestLineObject() != null) 
                 ? this.requestLineObject.getProtocolVersion() : null;
     }
     /** @return リクエストパスを戻す */
     public String getRequestPath() {
-        return (this.requestLineObject != null) 
+        return (getRequestLineObject() != null) 
                 ? this.requestLineObject.getRequestPath() :null;
     }
+    /**
+     * @return リクエストパスのIDやハッシュ値のセグメントをプレースホルダに置き換えたパスを戻す
+     * (例:「/user/{id}/profile」。PathNormalizer.getDefault()で変換する)
+     */
+    public String getNormalizedPath() {
+        return PathNormalizer.getDefault().normalize(getRequestPath());
+    }
     /** @return リクエストパラメータのMapを戻す */
     public Map<String, String> getParam() {
-        return (this.requestLineObject != null) 
+        return (getRequestLineObject() != null) 
                 ? this.requestLineObject.getParamMap()
                         :Collections.<String, String>emptyMap();
     }
-    /** @return リクエストヘッダのMapを戻す */
+    /** @return リクエストヘッダのMap(読み取り専用のビュー。内容はこのLogRecordの変更に追従する)を戻す */
     public Map<String, String> getHeader() {
         return this.requestHeaders;
     }
 
     /* getters */
     public String getRemoteHost() {
+        if (remoteHost == null) {
+            remoteHost = lazyValue(REMOTE_HOST);
+        }
         return remoteHost;
     }
     public String getRemoteLogname() {
+        if (remoteLogname == null) {
+            remoteLogname = lazyValue(REMOTE_LOGNAME);
+        }
         return remoteLogname;
     }
     public String getRemoteUser() {
+        if (remoteUser == null) {
+            remoteUser = lazyValue(REMOTE_USER);
+        }
         return remoteUser;
     }
     public Date getRequestTime() {
+        if (requestTime == null && requestTimeMillis != NO_TIME) {
+            requestTime = new Date(requestTimeMillis);
+        }
         return requestTime;
     }
+    /**
+     * Dateを生成せずにリクエスト時刻を取得する。
+     * @return リクエスト時刻(エポックミリ秒)。未設定の場合はLong.MIN_VALUE
+     */
+    public long getRequestTimeMillis() {
+        return requestTimeMillis;
+    }
     public String getRequestLine() {
+        if (requestLine == null) {
+            requestLine = lazyValue(REQUEST_LINE);
+        }
         return requestLine;
     }
     public int getStatus() {
@@ -86,11 +311,33 @@ public class LogRecord {
         return responseSize;
     }
     public String getReferer() {
+        if (referer == null) {
+            referer = lazyValue(REFERER);
+        }
         return referer;
     }
     public String getUserAgent() {
+        if (userAgent == null) {
+            userAgent = lazyValue(USER_AGENT);
+        }
         return userAgent;
     }
+    /** @return リクエストの処理時間(マイクロ秒)。記録されていない場合はNOT_LOGGED */
+    public long getTimeTaken() {
+        return timeTaken;
+    }
+    /** @return 受信バイト数。記録されていない場合はNOT_LOGGED */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+    /** @return 送信バイト数。記録されていない場合はNOT_LOGGED */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+    /** @return keep-alive接続で処理したリクエスト数。記録されていない場合はNOT_LOGGED */
+    public long getKeepAliveRequests() {
+        return keepAliveRequests;
+    }
     /* setters */
     protected void setRemoteHost(String remoteHost) {
         this.remoteHost = remoteHost;
@@ -103,14 +350,20 @@ public class LogRecord {
     }
     protected void setRequestTime(Date requestTime) {
         this.requestTime = requestTime;
+        this.requestTimeMillis = (requestTime != null) ? requestTime.getTime() : NO_TIME;
+    }
+    void setRequestTimeMillis(long requestTimeMillis) {
+        this.requestTime = null;
+        this.requestTimeMillis = requestTimeMillis;
     }
     /**
-     * リクエスト行をセットする。同時にrequestLineObjectを更新する
+     * リクエスト行をセットする。requestLineObjectは必要になった時点で生成し直す
      * @param requestLine リクエスト行(例:「GET / HTTP/1.0」)
      */
     public void setRequestLine(String requestLine) {
         this.requestLine = requestLine;
-        this.requestLineObject = new RequestLine(requestLine);
+        this.requestLineObject = null;
+        starts[REQUEST_LINE] = -1;
     }
     protected void setStatus(int status) {
         this.status = status;
@@ -124,16 +377,90 @@ public class LogRecord {
     protected void setResponseSize(int responseSize) {
         this.responseSize = responseSize;
     }
+    protected void setTimeTaken(long timeTaken) {
+        this.timeTaken = timeTaken;
+    }
+    protected void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+    protected void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+    protected void setKeepAliveRequests(long keepAliveRequests) {
+        this.keepAliveRequests = keepAliveRequests;
+    }
     /**
      * リクエストヘッダをセットする
      * @param name ヘッダフィールド名
      * @param value ヘッダフィールド値
      */
     public void setRequestHeader(String name, String value) {
-        if (requestHeaders == Collections.<String,String>emptyMap()) {
-            requestHeaders = new TreeMap<String, String>();
+        int slot = headerSlot(name);
+        if (slot < 0) {
+            // 表にないヘッダ名の場合は、表を拡張してこのLogRecord専用にする
+            slot = headerNames.length;
+            headerNames = Arrays.copyOf(headerNames, slot + 1);
+            headerNames[slot] = name;
+            headerValues = Arrays.copyOf(headerValues, slot + 1);
+            headerStarts = Arrays.copyOf(headerStarts, slot + 1);
+            headerEnds = Arrays.copyOf(headerEnds, slot + 1);
+        }
+        headerValues[slot] = value;
+        headerStarts[slot] = -1;
+    }
+    /**
+     * ヘッダ名の表とスロットの値をMapとして参照させるビュー。値が未設定のスロットは含まない。
+     * エントリの順序はヘッダ名の表の順序(LogParserの場合はフォーマット中の順序)となる。
+     */
+    private class HeaderMap extends AbstractMap<String, String> {
+        public String get(Object key) {
+            int slot = headerSlot(key);
+            return (slot < 0) ? null : headerValue(slot);
+        }
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                public int size() {
+                    int size = 0;
+                    for (int slot = 0; slot < headerNames.length; slot++) {
+                        if (headerValue(slot) != null) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next = nextSlot(0);
+
+                        public boolean hasNext() {
+                            return next < headerNames.length;
+                        }
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int slot = next;
+                            next = nextSlot(slot + 1);
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(
+                                    headerNames[slot], headerValue(slot));
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+        // slot以降で値が設定されている最初のスロットを戻す。ない場合はheaderNames.length
+        private int nextSlot(int slot) {
+            while (slot < headerNames.length && headerValue(slot) == null) {
+                slot++;
+            }
+            return slot;
         }
-        requestHeaders.put(name, value);
     }
     /**
      * リクエスト行から情報を取り出し保持する為のクラス
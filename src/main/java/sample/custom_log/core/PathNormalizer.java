@@ -0,0 +1,192 @@
+package sample.custom_log.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * リクエストパスに含まれるIDやハッシュ値のセグメントをプレースホルダに置き換え、
+ * group byで扱える程度の種類に集約するクラス(例:「/user/123/profile」→「/user/{id}/profile」)。
+ * <ul>
+ * <li>数字のみのセグメント → {id}</li>
+ * <li>UUID(8-4-4-4-12桁の16進数) → {uuid}</li>
+ * <li>数字を含む8文字以上の16進数 → {hex}</li>
+ * <li>設定した正規表現にセグメント全体が一致する場合 → 対応するプレースホルダ(組み込みの判定より優先)</li>
+ * </ul>
+ * 変換結果は元のパスをキーとして、最近使われた順に最大cacheSize件まで保持する。
+ * 同じパスの二回目以降の変換はMapの参照一回で済む。スレッドセーフ。
+ */
+public class PathNormalizer {
+    /** 保持する変換結果の件数の既定値 */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final String ID = "{id}";
+    public static final String UUID = "{uuid}";
+    public static final String HEX = "{hex}";
+    /** 16進数とみなすセグメントの最小の長さ */
+    private static final int MIN_HEX_LENGTH = 8;
+
+    private static volatile PathNormalizer defaultNormalizer = new PathNormalizer(
+            Collections.<Pattern>emptyList(), Collections.<String>emptyList(), DEFAULT_CACHE_SIZE);
+
+    private final Pattern[] patterns;
+    private final String[] placeholders;
+    private final Map<String, String> cache;
+
+    /**
+     * @param patterns セグメント全体と照合する正規表現
+     * @param placeholders patternsそれぞれに一致した場合のプレースホルダ
+     * @param cacheSize 保持する変換結果の件数
+     */
+    public PathNormalizer(List<Pattern> patterns, List<String> placeholders, final int cacheSize) {
+        if (patterns.size() != placeholders.size()) {
+            throw new IllegalArgumentException("patterns and placeholders must have the same size.");
+        }
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+        this.placeholders = placeholders.toArray(new String[placeholders.size()]);
+        this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    /**
+     * 設定文字列からPathNormalizerを生成する。
+     * @param definitions 「プレースホルダ=正規表現」を空白区切りで並べた文字列(例:「{sku}=SKU-[0-9]+」)。nullの場合は組み込みの判定のみ
+     * @param cacheSize 保持する変換結果の件数
+     * @return 生成したPathNormalizer
+     */
+    public static PathNormalizer parse(String definitions, int cacheSize) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<String> placeholders = new ArrayList<String>();
+        if (definitions != null) {
+            for (String definition : definitions.trim().split("\\s+")) {
+                if (definition.length() == 0) {
+                    continue;
+                }
+                int separator = definition.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Expected placeholder=regex: " + definition);
+                }
+                placeholders.add(definition.substring(0, separator));
+                patterns.add(Pattern.compile(definition.substring(separator + 1)));
+            }
+        }
+        return new PathNormalizer(patterns, placeholders, cacheSize);
+    }
+
+    /** @return LogRecord.getNormalizedPath()で使用するPathNormalizer */
+    public static PathNormalizer getDefault() {
+        return defaultNormalizer;
+    }
+    /**
+     * LogRecord.getNormalizedPath()で使用するPathNormalizerを設定する。
+     * @param normalizer 使用するPathNormalizer
+     */
+    public static void setDefault(PathNormalizer normalizer) {
+        if (normalizer == null) {
+            throw new IllegalArgumentException("normalizer is null.");
+        }
+        defaultNormalizer = normalizer;
+    }
+
+    /**
+     * パスを変換する。
+     * @param path リクエストパス
+     * @return 変換したパス。pathがnullの場合はnull
+     */
+    public String normalize(String path) {
+        if (path == null) {
+            return null;
+        }
+        synchronized (cache) {
+            String normalized = cache.get(path);
+            if (normalized != null) {
+                return normalized;
+            }
+        }
+        String normalized = normalizeSegments(path);
+        synchronized (cache) {
+            cache.put(path, normalized);
+        }
+        return normalized;
+    }
+    // 「/」で区切った各セグメントを変換する
+    private String normalizeSegments(String path) {
+        StringBuilder builder = null;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            String placeholder = (start < end) ? placeholderOf(path, start, end) : null;
+            if (placeholder != null && builder == null) {
+                builder = new StringBuilder(path.length()).append(path, 0, start);
+            }
+            if (builder != null) {
+                if (placeholder != null) {
+                    builder.append(placeholder);
+                } else {
+                    builder.append(path, start, end);
+                }
+                if (end < path.length()) {
+                    builder.append('/');
+                }
+            }
+            start = end + 1;
+        }
+        return (builder == null) ? path : builder.toString();
+    }
+    // path[start]～path[end - 1]のセグメントを置き換えるプレースホルダ。置き換えない場合はnull
+    private String placeholderOf(String path, int start, int end) {
+        if (patterns.length > 0) {
+            String segment = path.substring(start, end);
+            for (int index = 0; index < patterns.length; index++) {
+                if (patterns[index].matcher(segment).matches()) {
+                    return placeholders[index];
+                }
+            }
+        }
+        int length = end - start;
+        boolean digitsOnly = true;
+        boolean hexOnly = true;
+        boolean hasDigit = false;
+        for (int pos = start; pos < end && hexOnly; pos++) {
+            char c = path.charAt(pos);
+            boolean digit = c >= '0' && c <= '9';
+            hasDigit |= digit;
+            digitsOnly &= digit;
+            hexOnly &= digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+        }
+        if (digitsOnly) {
+            return ID;
+        }
+        if (hexOnly && hasDigit && length >= MIN_HEX_LENGTH) {
+            return HEX;
+        }
+        return isUuid(path, start, end) ? UUID : null;
+    }
+    // 8-4-4-4-12桁の16進数か
+    private static boolean isUuid(String path, int start, int end) {
+        if (end - start != 36) {
+            return false;
+        }
+        for (int offset = 0; offset < 36; offset++) {
+            char c = path.charAt(start + offset);
+            if (offset == 8 || offset == 13 || offset == 18 || offset == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
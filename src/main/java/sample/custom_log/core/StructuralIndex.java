@@ -0,0 +1,145 @@
+package sample.custom_log.core;
+
+/**
+ * char配列の範囲に含まれる構造文字(改行、半角空白、「"」「[」「]」「\\」)の位置をビットマップとして保持するクラス。
+ * バッファ全体を先に索引化しておく事で、行の区切りやフィールドの区切りを探す際に
+ * 構造文字の位置だけを順にたどれるようにする(simdjsonの構造索引と同様の考え方)。
+ * 索引化はcharを4つずつlongに詰め、各16bitレーンを同時に比較するSWAR(SIMD within a register)でおこなう。
+ * スレッドセーフではない！
+ */
+public final class StructuralIndex {
+    /** 各16bitレーンの最上位ビット */
+    private static final long HIGH_BITS = 0x8000800080008000L;
+    /** 各16bitレーンの最上位ビット以外 */
+    private static final long LOW_BITS = 0x7FFF7FFF7FFF7FFFL;
+    /** 各16bitレーンが1 */
+    private static final long LANE_ONES = 0x0001000100010001L;
+    /** 4レーン分の最上位ビット(15, 31, 47, 63ビット目)を45～48ビット目に集める乗数 */
+    private static final long GATHER_MULTIPLIER = 1L | (1L << 15) | (1L << 30) | (1L << 45);
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /** 構造文字のビットマップ。bits[i / 64]の(i % 64)ビット目がchars[start + i]に対応する */
+    private long[] bits = new long[DEFAULT_CAPACITY / 64];
+    /** 索引化した配列 */
+    private char[] chars;
+    /** 索引化した範囲 */
+    private int start;
+    private int end;
+
+    /**
+     * この実行環境で索引化を使用すべきか判定する。
+     * longの演算を1命令で処理できない32bit環境ではSWARの効果がないため使用しない。
+     * @return 64bitのJVMであればtrue
+     */
+    public static boolean isSupported() {
+        return "64".equals(System.getProperty("sun.arch.data.model"))
+                || System.getProperty("os.arch", "").contains("64");
+    }
+
+    /**
+     * 構造文字であるか1文字ずつ判定する。4文字に満たない端数の判定に使用する。
+     * @param c 判定する文字
+     * @return 構造文字であればtrue
+     */
+    public static boolean isStructural(char c) {
+        return c == '\n' || c == ' ' || c == '"' || c == '[' || c == ']' || c == '\\';
+    }
+
+    /**
+     * chars[start]～chars[end - 1]を索引化する。以前の索引の内容は破棄する。
+     * 索引化した後でcharsの内容を変更した場合、索引の内容は不正となる。
+     * @param chars 索引化する配列
+     * @param start 開始位置
+     * @param end 終了位置(この位置の文字は含まない)
+     */
+    public void build(char[] chars, int start, int end) {
+        int length = end - start;
+        int wordCount = (length + 63) >>> 6;
+        if (bits.length < wordCount) {
+            bits = new long[Math.max(wordCount, bits.length * 2)];
+        }
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+        int pos = start;
+        for (int word = 0; word < wordCount; word++) {
+            long mask = 0;
+            int wordEnd = Math.min(pos + 64, end);
+            int shift = 0;
+            // 4文字ずつSWARで判定する
+            for (; pos + 4 <= wordEnd; pos += 4, shift += 4) {
+                long lanes = chars[pos]
+                        | ((long) chars[pos + 1] << 16)
+                        | ((long) chars[pos + 2] << 32)
+                        | ((long) chars[pos + 3] << 48);
+                mask |= structuralLanes(lanes) << shift;
+            }
+            // 端数は1文字ずつ判定する
+            for (; pos < wordEnd; pos++, shift++) {
+                if (isStructural(chars[pos])) {
+                    mask |= 1L << shift;
+                }
+            }
+            bits[word] = mask;
+        }
+    }
+    /**
+     * 4レーン分の文字のうち、構造文字であるレーンのビットを立てた4bitの値を戻す。
+     * 「 」と「"」は(c | 0x02) == 0x22、「\\」と「]」は(c | 0x01) == 0x5D でまとめて判定する。
+     */
+    private static long structuralLanes(long lanes) {
+        long nonZero = nonZeroLanes((lanes | (LANE_ONES * 0x02)) ^ (LANE_ONES * 0x22))
+                & nonZeroLanes((lanes | LANE_ONES) ^ (LANE_ONES * 0x5D))
+                & nonZeroLanes(lanes ^ (LANE_ONES * '['))
+                & nonZeroLanes(lanes ^ (LANE_ONES * '\n'));
+        long zero = ~nonZero & HIGH_BITS;
+        return ((zero >>> 15) * GATHER_MULTIPLIER) >>> 45 & 0xF;
+    }
+    /**
+     * 値が0でないレーンの最上位ビットを立てた値を戻す(他のビットは不定)。
+     * 下位15bitの加算で桁上がりを最上位ビットに集めるため、レーン間で桁上がりが伝播しない。
+     */
+    private static long nonZeroLanes(long value) {
+        return ((value & LOW_BITS) + LOW_BITS) | value;
+    }
+
+    /**
+     * pos以降で最初の構造文字の位置を戻す。
+     * @param pos 検索開始位置(索引化した範囲内であること)
+     * @param limit 検索終了位置(この位置は含まない。索引化した範囲の終了位置以下であること)
+     * @return 構造文字の位置。ない場合はlimit
+     */
+    public int next(int pos, int limit) {
+        if (pos >= limit) {
+            return limit;
+        }
+        int offset = pos - start;
+        int word = offset >>> 6;
+        long mask = bits[word] & (-1L << (offset & 63));
+        int lastWord = (limit - start - 1) >>> 6;
+        while (mask == 0) {
+            if (++word > lastWord) {
+                return limit;
+            }
+            mask = bits[word];
+        }
+        int found = start + (word << 6) + Long.numberOfTrailingZeros(mask);
+        return Math.min(found, limit);
+    }
+    /**
+     * 指定された範囲が、この索引で索引化済みか判定する。
+     * @param chars 配列
+     * @param start 開始位置
+     * @param end 終了位置
+     * @return 索引化済みであればtrue
+     */
+    public boolean covers(char[] chars, int start, int end) {
+        return this.chars == chars && this.start <= start && end <= this.end;
+    }
+    /**
+     * 索引を破棄する。索引化した配列の内容を変更する前に呼び出す事。
+     */
+    public void clear() {
+        this.chars = null;
+    }
+}
@@ -0,0 +1,283 @@
+package sample.custom_log.tools;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.josql.Query;
+import org.josql.QueryResults;
+import org.josql.expressions.Accessor;
+import org.josql.expressions.Expression;
+import org.josql.expressions.Function;
+import org.josql.expressions.SelectItemExpression;
+
+/**
+ * group byのクエリの結果を、入力を分けて実行した結果同士でマージするクラス。
+ * 選択する列がcount(:_allobjs)、sum/min/max(:_allobjs, 式)、およびプロパティ(グループの最初の値)のみで、
+ * having、order by、limit、distinctを含まないクエリのみマージできる。
+ * QueryResultCacheで、追記された部分だけを実行した結果を保存済みの結果にマージする際、
+ * およびBlockSampleで選んだブロックごとの結果から全体の結果を推定する際に使用する。
+ */
+public class AggregateMerger {
+    /** マージを妨げるキーワード(「group by order」「group by limit」を含む) */
+    private static final String[] UNMERGEABLE_KEYWORDS = {"ORDER", "LIMIT", "HAVING", "DISTINCT"};
+    /** 全オブジェクトを表すバインド変数 */
+    private static final String ALL_OBJECTS = ":_allobjs";
+
+    /** 各列のマージ方法 */
+    private enum Operation {
+        /** 先に現れたグループの値を使う */
+        FIRST,
+        /** 合計する(count、sum) */
+        SUM,
+        /** 小さい方を使う */
+        MIN,
+        /** 大きい方を使う */
+        MAX
+    }
+    private final Operation[] operations;
+
+    private AggregateMerger(Operation[] operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * queryがマージできるか判定し、できる場合はAggregateMergerを生成する。
+     * @param query 解析済みのクエリ
+     * @param queryString queryの元の文字列
+     * @return 生成したAggregateMerger。マージできない場合はnull
+     */
+    public static AggregateMerger forQuery(Query query, String queryString) {
+        List<?> groupByColumns = query.getGroupByColumns();
+        if (groupByColumns == null || groupByColumns.isEmpty()
+                || query.getHavingClause() != null || query.getLimit() != null
+                || containsKeyword(queryString, UNMERGEABLE_KEYWORDS)) {
+            return null;
+        }
+        Expression where = query.getWhereClause();
+        if (where != null && where.toString().contains(":_")) {
+            return null;
+        }
+        List<?> columns = query.getColumns();
+        Operation[] operations = new Operation[columns.size()];
+        for (int index = 0; index < operations.length; index++) {
+            operations[index] = operationOf(((SelectItemExpression) columns.get(index)).getExpression());
+            if (operations[index] == null) {
+                return null;
+            }
+        }
+        return new AggregateMerger(operations);
+    }
+    // 列の式に対応するマージ方法。マージできない式の場合はnull
+    private static Operation operationOf(Expression expression) {
+        if (expression instanceof Accessor) {
+            return Operation.FIRST;
+        }
+        if (!(expression instanceof Function)) {
+            return null;
+        }
+        Function function = (Function) expression;
+        List<?> parameters = function.getParameters();
+        if (parameters == null || parameters.isEmpty() || !parameters.get(0).toString().equals(ALL_OBJECTS)) {
+            return null;
+        }
+        String name = function.getName().toLowerCase();
+        if (name.equals("count") && parameters.size() == 1) {
+            return Operation.SUM;
+        }
+        if (parameters.size() != 2 || parameters.get(1).toString().contains(":_")) {
+            return null;
+        }
+        if (name.equals("sum")) {
+            return Operation.SUM;
+        } else if (name.equals("min")) {
+            return Operation.MIN;
+        } else if (name.equals("max")) {
+            return Operation.MAX;
+        }
+        return null;
+    }
+    /**
+     * 引用符の外にkeywordsのいずれかが単語として含まれるか判定する(大文字小文字は区別しない)。
+     * @param queryString クエリ文字列
+     * @param keywords キーワード
+     * @return 含まれる場合true
+     */
+    static boolean containsKeyword(String queryString, String[] keywords) {
+        char quote = 0;
+        int wordStart = -1;
+        for (int index = 0; index <= queryString.length(); index++) {
+            char c = (index < queryString.length()) ? queryString.charAt(index) : ' ';
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (Character.isJavaIdentifierPart(c)) {
+                if (wordStart < 0) {
+                    wordStart = index;
+                }
+                continue;
+            }
+            if (wordStart >= 0) {
+                String word = queryString.substring(wordStart, index);
+                for (String keyword : keywords) {
+                    if (word.equalsIgnoreCase(keyword)) {
+                        return true;
+                    }
+                }
+                wordStart = -1;
+            }
+            if (c == '\'' || c == '"') {
+                quote = c;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * クエリの結果から、グループごとの結果の一行を取り出す。
+     * @param queryResults group byのクエリの結果
+     * @return キー=group byの値のList、値=結果の一行(グループの先頭の行)
+     */
+    @SuppressWarnings("unchecked")
+    public Map<List<Object>, List<Object>> groupsOf(QueryResults queryResults) {
+        Map<List<Object>, List<Object>> groups = new LinkedHashMap<List<Object>, List<Object>>();
+        Map<?, ?> groupByResults = queryResults.getGroupByResults();
+        for (Object groupItem : queryResults.getResults()) {
+            List<?> eachResults = (List<?>) groupByResults.get(groupItem);
+            if (!eachResults.isEmpty()) {
+                groups.put(new ArrayList<Object>((List<Object>) groupItem),
+                        new ArrayList<Object>((List<Object>) eachResults.get(0)));
+            }
+        }
+        return groups;
+    }
+    /**
+     * addedの各グループをgroupsにマージする。groupsにないグループは末尾に追加する。
+     * @param groups 先に現れた入力の結果(変更される)
+     * @param added 後から現れた入力の結果
+     */
+    public void merge(Map<List<Object>, List<Object>> groups, Map<List<Object>, List<Object>> added) {
+        for (Map.Entry<List<Object>, List<Object>> group : added.entrySet()) {
+            List<Object> row = groups.get(group.getKey());
+            if (row == null) {
+                groups.put(group.getKey(), group.getValue());
+                continue;
+            }
+            List<Object> addedRow = group.getValue();
+            for (int index = 0; index < operations.length; index++) {
+                row.set(index, merge(operations[index], row.get(index), addedRow.get(index)));
+            }
+        }
+    }
+    // 列一つ分の値をマージする
+    @SuppressWarnings("unchecked")
+    private static Object merge(Operation operation, Object value, Object added) {
+        if (operation == Operation.FIRST || added == null) {
+            return value;
+        }
+        if (value == null) {
+            return added;
+        }
+        switch (operation) {
+            case SUM:
+                return add((Number) value, (Number) added);
+            case MIN:
+                return (((Comparable<Object>) added).compareTo(value) < 0) ? added : value;
+            case MAX:
+                return (((Comparable<Object>) added).compareTo(value) > 0) ? added : value;
+            default:
+                throw new IllegalStateException(operation.toString());
+        }
+    }
+    // 型をできるだけ保って加算する(count()はInteger、sum()はDoubleを戻す)
+    private static Number add(Number value, Number added) {
+        if (value instanceof Double || value instanceof Float || added instanceof Double || added instanceof Float) {
+            return value.doubleValue() + added.doubleValue();
+        }
+        long sum = value.longValue() + added.longValue();
+        if (value instanceof Integer && added instanceof Integer
+                && sum >= Integer.MIN_VALUE && sum <= Integer.MAX_VALUE) {
+            return (int) sum;
+        }
+        return sum;
+    }
+    /**
+     * 標本として選んだブロックごとの結果から、全体の結果を推定する(BlockSampleを参照)。
+     * count、sumの列は、ブロックごとの値の合計を全ブロック数/選んだブロック数倍した値とし、
+     * その直後に95%信頼区間の半幅(有限母集団修正をした集落抽出の分散から求める)の列を追加する。
+     * 選んだブロックが1つの場合、半幅はNaNとする。それ以外の列は標本の値をマージした値とする。
+     * @param blockGroups 選んだブロックごとの、groupsOf()で取り出した結果
+     * @param totalBlocks 全ブロック数
+     * @return 結果の各行
+     */
+    public List<Object> estimate(List<Map<List<Object>, List<Object>>> blockGroups, long totalBlocks) {
+        int sampled = blockGroups.size();
+        Map<List<Object>, List<Object>> groups = new LinkedHashMap<List<Object>, List<Object>>();
+        // キー=グループ、値=[列][ブロック]の値(グループがないブロックは0)
+        Map<List<Object>, double[][]> blockValues = new LinkedHashMap<List<Object>, double[][]>();
+        for (int block = 0; block < sampled; block++) {
+            Map<List<Object>, List<Object>> added = blockGroups.get(block);
+            for (Map.Entry<List<Object>, List<Object>> group : added.entrySet()) {
+                double[][] values = blockValues.get(group.getKey());
+                if (values == null) {
+                    values = new double[operations.length][sampled];
+                    blockValues.put(group.getKey(), values);
+                }
+                for (int index = 0; index < operations.length; index++) {
+                    Object value = group.getValue().get(index);
+                    if (operations[index] == Operation.SUM && value != null) {
+                        values[index][block] = ((Number) value).doubleValue();
+                    }
+                }
+            }
+            merge(groups, added);
+        }
+        double scale = (double) totalBlocks / sampled;
+        double finiteCorrection = 1 - (double) sampled / totalBlocks;
+        List<Object> rows = new ArrayList<Object>(groups.size());
+        for (Map.Entry<List<Object>, List<Object>> group : groups.entrySet()) {
+            double[][] values = blockValues.get(group.getKey());
+            List<Object> row = new ArrayList<Object>(operations.length * 2);
+            for (int index = 0; index < operations.length; index++) {
+                Object value = group.getValue().get(index);
+                if (operations[index] != Operation.SUM) {
+                    row.add(value);
+                    continue;
+                }
+                double sum = 0;
+                for (double blockValue : values[index]) {
+                    sum += blockValue;
+                }
+                double estimated = sum * scale;
+                row.add((value instanceof Double || value instanceof Float)
+                        ? (Object) estimated : (Object) Math.round(estimated));
+                double halfWidth = Double.NaN;
+                if (sampled > 1) {
+                    double mean = sum / sampled;
+                    double squares = 0;
+                    for (double blockValue : values[index]) {
+                        squares += (blockValue - mean) * (blockValue - mean);
+                    }
+                    double variance = (double) totalBlocks * totalBlocks * finiteCorrection
+                            * (squares / (sampled - 1)) / sampled;
+                    halfWidth = 1.96 * Math.sqrt(variance);
+                }
+                row.add(halfWidth);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+    /**
+     * グループごとの結果を、LogQueryで出力する行の一覧に変換する。
+     * @param groups グループごとの結果
+     * @return 結果の各行
+     */
+    public static List<Object> rowsOf(Map<List<Object>, List<Object>> groups) {
+        return new ArrayList<Object>(groups.values());
+    }
+}
@@ -0,0 +1,191 @@
+package sample.custom_log.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.josql.Query;
+import org.josql.QueryExecutionException;
+import org.josql.expressions.Accessor;
+import org.josql.expressions.AndOrExpression;
+import org.josql.expressions.BetweenExpression;
+import org.josql.expressions.ConstantExpression;
+import org.josql.expressions.EqualsExpression;
+import org.josql.expressions.Expression;
+import org.josql.expressions.GTLTExpression;
+
+import sample.custom_log.tools.BlockIndex.Block;
+
+/**
+ * クエリのwhere句から、BlockIndexで判定できる条件を取り出し、条件に一致し得ないブロックを判定するクラス。
+ * where句の最上位でandで結ばれた次の条件を使用する(それ以外の条件は無視する。orの中の条件は使用しない)。
+ * <ul>
+ * <li>remoteHost = '文字列'、requestPath = '文字列'</li>
+ * <li>status = 数値</li>
+ * <li>requestTimeMillis と数値の比較(&gt;、&gt;=、&lt;、&lt;=)、requestTimeMillis between 数値 and 数値</li>
+ * </ul>
+ */
+public class BlockFilter {
+    /** GTLTExpression.getType()の値 */
+    private static final int GT = 0;
+    private static final int GTE = 1;
+    private static final int LT = 2;
+    private static final int LTE = 3;
+
+    private final List<String> hosts = new ArrayList<String>();
+    private final List<String> paths = new ArrayList<String>();
+    private final List<Integer> statuses = new ArrayList<Integer>();
+    private long minTime = Long.MIN_VALUE;
+    private long maxTime = Long.MAX_VALUE;
+    private boolean used = false;
+
+    private BlockFilter() {
+    }
+
+    /**
+     * クエリからBlockFilterを生成する。
+     * @param query 解析済みのクエリ
+     * @return 生成したBlockFilter。判定に使える条件がない場合はnull
+     */
+    public static BlockFilter of(Query query) {
+        if (query.getWhereClause() == null) {
+            return null;
+        }
+        BlockFilter filter = new BlockFilter();
+        try {
+            filter.collect(query.getWhereClause(), query);
+        } catch (QueryExecutionException e) {
+            return null;
+        }
+        return filter.used ? filter : null;
+    }
+    // andで結ばれた条件をたどり、判定に使える条件を記録する
+    private void collect(Expression expression, Query query) throws QueryExecutionException {
+        if (expression instanceof AndOrExpression) {
+            AndOrExpression andOr = (AndOrExpression) expression;
+            if (andOr.isAnd()) {
+                collect(andOr.getLeft(), query);
+                collect(andOr.getRight(), query);
+            }
+        } else if (expression instanceof EqualsExpression) {
+            EqualsExpression equals = (EqualsExpression) expression;
+            if (equals.isNot() || equals.isIgnoreCase()) {
+                return;
+            }
+            String property = propertyOf(equals.getLeft(), equals.getRight());
+            Object value = constantOf(equals.getLeft(), equals.getRight(), query);
+            if (property == null || value == null) {
+                return;
+            }
+            if (property.equals("remoteHost") && value instanceof String) {
+                hosts.add((String) value);
+                used = true;
+            } else if (property.equals("requestPath") && value instanceof String) {
+                paths.add((String) value);
+                used = true;
+            } else if (property.equals("status") && value instanceof Number) {
+                double status = ((Number) value).doubleValue();
+                if (status == Math.rint(status) && Math.abs(status) <= Integer.MAX_VALUE) {
+                    statuses.add((int) status);
+                    used = true;
+                }
+            } else if (property.equals("requestTimeMillis") && value instanceof Number) {
+                restrictTime(GTE, ((Number) value).doubleValue());
+                restrictTime(LTE, ((Number) value).doubleValue());
+            }
+        } else if (expression instanceof GTLTExpression) {
+            GTLTExpression comparison = (GTLTExpression) expression;
+            Object value = constantOf(comparison.getLeft(), comparison.getRight(), query);
+            if (!"requestTimeMillis".equals(propertyOf(comparison.getLeft(), comparison.getRight()))
+                    || !(value instanceof Number)) {
+                return;
+            }
+            int type = comparison.getType();
+            if (comparison.getLeft() instanceof ConstantExpression) {
+                // 「定数 < プロパティ」は「プロパティ > 定数」として扱う
+                type = (type == GT) ? LT : (type == GTE) ? LTE : (type == LT) ? GT : (type == LTE) ? GTE : type;
+            }
+            restrictTime(type, ((Number) value).doubleValue());
+        } else if (expression instanceof BetweenExpression) {
+            BetweenExpression between = (BetweenExpression) expression;
+            if (between.isNot() || !(between.getLeft() instanceof Accessor)
+                    || !((Accessor) between.getLeft()).getAccessor().equals("requestTimeMillis")
+                    || !(between.getStart() instanceof ConstantExpression)
+                    || !(between.getEnd() instanceof ConstantExpression)) {
+                return;
+            }
+            Object start = between.getStart().getValue(null, query);
+            Object end = between.getEnd().getValue(null, query);
+            if (start instanceof Number && end instanceof Number) {
+                restrictTime(GTE, ((Number) start).doubleValue());
+                restrictTime(LTE, ((Number) end).doubleValue());
+            }
+        }
+    }
+    // 一方がプロパティ、もう一方が定数の場合にプロパティ名を戻す。そうでなければnull
+    private static String propertyOf(Expression left, Expression right) {
+        if (left instanceof Accessor && right instanceof ConstantExpression) {
+            return ((Accessor) left).getAccessor();
+        }
+        if (right instanceof Accessor && left instanceof ConstantExpression) {
+            return ((Accessor) right).getAccessor();
+        }
+        return null;
+    }
+    // 一方がプロパティ、もう一方が定数の場合に定数の値を戻す。そうでなければnull
+    private static Object constantOf(Expression left, Expression right, Query query) throws QueryExecutionException {
+        if (left instanceof Accessor && right instanceof ConstantExpression) {
+            return right.getValue(null, query);
+        }
+        if (right instanceof Accessor && left instanceof ConstantExpression) {
+            return left.getValue(null, query);
+        }
+        return null;
+    }
+    // リクエスト時刻の範囲を狭める(境界の端数は範囲が広がる側に丸める)
+    private void restrictTime(int type, double value) {
+        switch (type) {
+            case GT:
+                minTime = Math.max(minTime, (long) Math.floor(value) + 1);
+                break;
+            case GTE:
+                minTime = Math.max(minTime, (long) Math.ceil(value));
+                break;
+            case LT:
+                maxTime = Math.min(maxTime, (long) Math.ceil(value) - 1);
+                break;
+            case LTE:
+                maxTime = Math.min(maxTime, (long) Math.floor(value));
+                break;
+            default:
+                return;
+        }
+        used = true;
+    }
+
+    /**
+     * ブロックが条件に一致する行を含む可能性があるか判定する。
+     * @param block 判定するブロック
+     * @return 含む可能性があればtrue。falseの場合は読み飛ばしてよい
+     */
+    public boolean mayMatch(Block block) {
+        if (block.getMaxTime() < minTime || block.getMinTime() > maxTime) {
+            return false;
+        }
+        for (String host : hosts) {
+            if (!block.mayContainHost(host)) {
+                return false;
+            }
+        }
+        for (String path : paths) {
+            if (!block.mayContainPath(path)) {
+                return false;
+            }
+        }
+        for (int status : statuses) {
+            if (!block.mayContainStatus(status)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,309 @@
+package sample.custom_log.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+import sample.custom_log.tools.QueryResultCache.Change;
+import sample.custom_log.tools.QueryResultCache.FileState;
+import sample.custom_log.util.BloomFilter;
+
+/**
+ * ログファイルをblockSizeバイトごとのブロックに分け、ブロックごとに
+ * リモートホストとリクエストパスのブルームフィルタ、リクエスト時刻の最小値と最大値、ステータスの集合を記録する索引。
+ * 索引はログファイルと同じディレクトリの「ファイル名.blkidx」に保存する。
+ * 索引にはパーサーの設定(フォーマット文字列等)も記録し、設定が異なる場合は作り直す
+ * (誤ったフォーマットで作った、全行がパースエラーの索引で全ブロックを読み飛ばさないよう)。
+ * BlockFilterで、クエリの条件に一致し得ないブロックを読み飛ばすために使用する。
+ * ブロックの範囲はBlockSampleと同じく、開始位置がブロック内にある行とする。
+ * ファイルに追記された場合は、最後の(途中までの)ブロック以降だけを索引化し直す。
+ */
+public class BlockIndex {
+    /** ブロックの大きさの既定値(バイト) */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    static final String SUFFIX = ".blkidx";
+    private static final long MAGIC = 0x434C54424C4B4958L;
+    private static final int VERSION = 3;
+    /** ステータスの集合で個別に記録する範囲(0～STATUS_LIMIT - 1) */
+    static final int STATUS_LIMIT = 1024;
+
+    private final int blockSize;
+    /** 索引化したパーサーの設定(fingerprintOf()) */
+    private final String fingerprint;
+    /** 索引化した時点のファイルの状態。処理済みの範囲の終了位置までを索引化している */
+    private final FileState fileState;
+    private final List<Block> blocks;
+
+    private BlockIndex(int blockSize, String fingerprint, FileState fileState, List<Block> blocks) {
+        this.blockSize = blockSize;
+        this.fingerprint = fingerprint;
+        this.fileState = fileState;
+        this.blocks = blocks;
+    }
+
+    /**
+     * pathの索引を読み込み、ファイルが変化していれば索引を更新して保存する。
+     * 保存に失敗した場合も、更新した索引を戻す。
+     * @param path ログファイルのパス
+     * @param blockSize ブロックの大きさ(バイト)。保存された索引と異なる場合は作り直す
+     * @param parser 索引化に使うパーサー。設定が保存された索引と異なる場合は作り直す
+     * @return 最新の索引
+     * @throws IOException ログファイルを読み込めない場合の例外
+     */
+    public static BlockIndex update(String path, int blockSize, LogParser parser) throws IOException {
+        FileState state = FileState.of(path);
+        String fingerprint = fingerprintOf(parser);
+        BlockIndex previous = load(path);
+        List<Block> blocks = new ArrayList<Block>();
+        long firstIndex = 0;
+        if (previous != null && previous.blockSize == blockSize && previous.fingerprint.equals(fingerprint)) {
+            Change change = state.compareTo(previous.fileState);
+            if (change == Change.UNCHANGED) {
+                return previous;
+            }
+            if (change == Change.APPENDED) {
+                // 前回の処理済みの範囲の終了位置を含む(途中までの)ブロックから索引化し直す
+                long previousEnd = previous.fileState.getProcessedLength();
+                for (Block block : previous.blocks) {
+                    if ((block.index + 1) * (long) blockSize <= previousEnd) {
+                        blocks.add(block);
+                        firstIndex = block.index + 1;
+                    }
+                }
+            }
+        }
+        long end = state.getProcessedLength();
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            for (long index = firstIndex; index * blockSize < end; index++) {
+                long blockStart = BlockSample.lineStart(raf, index * blockSize, end);
+                long blockEnd = BlockSample.lineStart(raf, Math.min((index + 1) * blockSize, end), end);
+                blocks.add(build(path, index, blockStart, blockEnd, parser));
+            }
+        } finally {
+            raf.close();
+        }
+        BlockIndex blockIndex = new BlockIndex(blockSize, fingerprint, state, Collections.unmodifiableList(blocks));
+        try {
+            blockIndex.store(path);
+        } catch (IOException e) {
+            System.err.println("Failed to store block index: " + e.getMessage());
+        }
+        return blockIndex;
+    }
+    // 索引の内容に影響するパーサーの設定(フォーマット文字列、構造文字の索引の使用、文字コード)
+    private static String fingerprintOf(LogParser parser) {
+        return parser.getLogFormat() + "\n" + parser.isStructuralIndexEnabled() + "\n" + Charset.defaultCharset().name();
+    }
+    // start～endの範囲のブロックを索引化する。パースできない行は無視する(クエリでも読み込まれないため)
+    private static Block build(String path, long index, long start, long end, LogParser parser) throws IOException {
+        final Set<String> hosts = new HashSet<String>();
+        final Set<String> paths = new HashSet<String>();
+        final Block block = new Block(index, start, end);
+        if (start < end) {
+            LogQuery.readLog(path, start, end, parser, new LogRecordHandler() {
+                public boolean handleLogRecord(LogRecord logRecord) {
+                    if (logRecord.getRemoteHost() != null) {
+                        hosts.add(logRecord.getRemoteHost());
+                    }
+                    if (logRecord.getRequestPath() != null) {
+                        paths.add(logRecord.getRequestPath());
+                    }
+                    block.addRecord(logRecord.getRequestTimeMillis(), logRecord.getStatus());
+                    return true;
+                }
+                public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+                    return true;
+                }
+            });
+        }
+        block.hostFilter = filterOf(hosts);
+        block.pathFilter = filterOf(paths);
+        return block;
+    }
+    private static BloomFilter filterOf(Set<String> values) {
+        BloomFilter filter = new BloomFilter(values.size(), BloomFilter.DEFAULT_BITS_PER_ELEMENT,
+                BloomFilter.DEFAULT_HASH_COUNT);
+        for (String value : values) {
+            filter.add(value);
+        }
+        return filter;
+    }
+
+    // 保存した索引を読み込む。ない場合、形式が異なる場合はnull
+    private static BlockIndex load(String path) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path + SUFFIX)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int blockSize = in.readInt();
+            String fingerprint = in.readUTF();
+            FileState fileState = FileState.read(in);
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<Block>(blockCount);
+            for (int count = 0; count < blockCount; count++) {
+                blocks.add(Block.read(in));
+            }
+            return new BlockIndex(blockSize, fingerprint, fileState, Collections.unmodifiableList(blocks));
+        } finally {
+            in.close();
+        }
+    }
+    // 同じディレクトリの一時ファイル(同じファイルを並行して索引化しても重ならない名前)に書き出してから置き換える
+    private void store(String path) throws IOException {
+        File file = new File(path + SUFFIX).getAbsoluteFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        boolean replaced = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(blockSize);
+                out.writeUTF(fingerprint);
+                fileState.write(out);
+                out.writeInt(blocks.size());
+                for (Block block : blocks) {
+                    block.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            replaced = temporary.renameTo(file) || (file.delete() && temporary.renameTo(file));
+            if (!replaced) {
+                throw new IOException("Failed to replace block index: " + file);
+            }
+        } finally {
+            if (!replaced) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /** @return ブロックの一覧(位置の順) */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+    /** @return 索引化した範囲の終了位置。これ以降は索引に含まれない */
+    public long getIndexedLength() {
+        return fileState.getProcessedLength();
+    }
+
+    /** ブロック一つ分の範囲と統計 */
+    public static class Block {
+        private final long index;
+        private final long start;
+        private final long end;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        /** STATUS_LIMIT未満のステータスの集合 */
+        private final long[] statuses = new long[STATUS_LIMIT / 64];
+        /** STATUS_LIMIT以上または負のステータスがあればtrue */
+        private boolean otherStatus = false;
+        private BloomFilter hostFilter;
+        private BloomFilter pathFilter;
+
+        Block(long index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+        void addRecord(long time, int status) {
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            if (status >= 0 && status < STATUS_LIMIT) {
+                statuses[status >>> 6] |= 1L << status;
+            } else {
+                otherStatus = true;
+            }
+        }
+        /** @return 範囲の開始位置(行の先頭) */
+        public long getStart() {
+            return start;
+        }
+        /** @return 範囲の終了位置(この位置は含まない) */
+        public long getEnd() {
+            return end;
+        }
+        /** @return リクエスト時刻(エポックミリ秒。時刻のない行はLong.MIN_VALUE)の最小値。行がなければLong.MAX_VALUE */
+        public long getMinTime() {
+            return minTime;
+        }
+        /** @return リクエスト時刻の最大値。行がなければLong.MIN_VALUE */
+        public long getMaxTime() {
+            return maxTime;
+        }
+        /**
+         * @param status ステータス
+         * @return ステータスの行を含む可能性があればtrue
+         */
+        public boolean mayContainStatus(int status) {
+            if (status >= 0 && status < STATUS_LIMIT) {
+                return (statuses[status >>> 6] & (1L << status)) != 0;
+            }
+            return otherStatus;
+        }
+        /**
+         * @param remoteHost リモートホスト
+         * @return リモートホストの行を含む可能性があればtrue
+         */
+        public boolean mayContainHost(String remoteHost) {
+            return hostFilter.mightContain(remoteHost);
+        }
+        /**
+         * @param requestPath リクエストパス
+         * @return リクエストパスの行を含む可能性があればtrue
+         */
+        public boolean mayContainPath(String requestPath) {
+            return pathFilter.mightContain(requestPath);
+        }
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(index);
+            out.writeLong(start);
+            out.writeLong(end);
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+            for (long word : statuses) {
+                out.writeLong(word);
+            }
+            out.writeBoolean(otherStatus);
+            hostFilter.write(out);
+            pathFilter.write(out);
+        }
+        static Block read(DataInputStream in) throws IOException {
+            Block block = new Block(in.readLong(), in.readLong(), in.readLong());
+            block.minTime = in.readLong();
+            block.maxTime = in.readLong();
+            for (int word = 0; word < block.statuses.length; word++) {
+                block.statuses[word] = in.readLong();
+            }
+            block.otherStatus = in.readBoolean();
+            block.hostFilter = BloomFilter.read(in);
+            block.pathFilter = BloomFilter.read(in);
+            return block;
+        }
+    }
+}
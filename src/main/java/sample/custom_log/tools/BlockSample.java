@@ -0,0 +1,146 @@
+package sample.custom_log.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ログファイルをblockSizeバイトごとのブロックに分け、各ブロックを一定の確率で選ぶ標本抽出(ブロック単位の集落抽出)。
+ * 選ばなかったブロックは読み込まない。各ブロックは、開始位置がブロック内にある行を受け持つ
+ * (ブロックをまたぐ行は前のブロックに含める)。同じseed、同じファイルであれば同じブロックを選ぶ。
+ */
+public class BlockSample {
+    /** ブロックの大きさの既定値(バイト) */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    /** 行の先頭を探す際に読み込む単位 */
+    private static final int SCAN_SIZE = 4 * 1024;
+
+    private final List<Block> blocks;
+    private final long totalBlocks;
+    private final long totalBytes;
+
+    private BlockSample(List<Block> blocks, long totalBlocks, long totalBytes) {
+        this.blocks = blocks;
+        this.totalBlocks = totalBlocks;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * ブロックを選ぶ。
+     * @param paths ログファイルのパス
+     * @param rate 各ブロックを選ぶ確率(0～1)
+     * @param seed 乱数の種
+     * @param blockSize ブロックの大きさ(バイト)
+     * @return 選んだブロック
+     * @throws IOException ファイル読み込み時のIO例外
+     */
+    public static BlockSample select(String[] paths, double rate, long seed, int blockSize) throws IOException {
+        if (rate <= 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be in (0, 1]: " + rate);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        Random random = new Random(seed);
+        List<Block> blocks = new ArrayList<Block>();
+        long totalBlocks = 0;
+        long totalBytes = 0;
+        for (String path : paths) {
+            RandomAccessFile raf = new RandomAccessFile(new File(path), "r");
+            try {
+                long length = raf.length();
+                long count = (length + blockSize - 1) / blockSize;
+                for (long index = 0; index < count; index++) {
+                    // 選ばないブロックでも乱数を消費し、選ぶブロックがファイルの内容によらないようにする
+                    if (random.nextDouble() >= rate) {
+                        continue;
+                    }
+                    long start = lineStart(raf, index * blockSize, length);
+                    long end = lineStart(raf, Math.min((index + 1) * blockSize, length), length);
+                    blocks.add(new Block(path, index, start, end));
+                }
+                totalBlocks += count;
+                totalBytes += length;
+            } finally {
+                raf.close();
+            }
+        }
+        return new BlockSample(Collections.unmodifiableList(blocks), totalBlocks, totalBytes);
+    }
+    // pos以降で最初の行の先頭の位置。なければlength
+    static long lineStart(RandomAccessFile raf, long pos, long length) throws IOException {
+        if (pos == 0 || pos >= length) {
+            return Math.min(pos, length);
+        }
+        byte[] buffer = new byte[SCAN_SIZE];
+        long offset = pos - 1;
+        while (offset < length) {
+            int size = (int) Math.min(buffer.length, length - offset);
+            raf.seek(offset);
+            raf.readFully(buffer, 0, size);
+            for (int index = 0; index < size; index++) {
+                if (buffer[index] == '\n') {
+                    return offset + index + 1;
+                }
+            }
+            offset += size;
+        }
+        return length;
+    }
+
+    /** @return 選んだブロック(ファイル、位置の順) */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+    /** @return 全ファイルのブロック数 */
+    public long getTotalBlocks() {
+        return totalBlocks;
+    }
+    /** @return 全ファイルの大きさ(バイト) */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+    /** @return 選んだブロックが受け持つ範囲の大きさの合計(バイト) */
+    public long getSampledBytes() {
+        long bytes = 0;
+        for (Block block : blocks) {
+            bytes += block.getEnd() - block.getStart();
+        }
+        return bytes;
+    }
+
+    /** 選んだブロック一つ分の、行の境界に合わせた範囲 */
+    public static class Block {
+        private final String path;
+        private final long index;
+        private final long start;
+        private final long end;
+
+        Block(String path, long index, long start, long end) {
+            this.path = path;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+        /** @return ファイルのパス */
+        public String getPath() {
+            return path;
+        }
+        /** @return ファイル内でのブロックの番号 */
+        public long getIndex() {
+            return index;
+        }
+        /** @return 範囲の開始位置(行の先頭) */
+        public long getStart() {
+            return start;
+        }
+        /** @return 範囲の終了位置(行の先頭またはファイルの終端。この位置は含まない) */
+        public long getEnd() {
+            return end;
+        }
+    }
+}
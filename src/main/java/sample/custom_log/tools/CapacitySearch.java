@@ -0,0 +1,157 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.CAPACITY_MAX_STEPS_PROP_KEY;
+import static sample.custom_log.tools.Constants.SLO_ERROR_RATE_PROP_KEY;
+import static sample.custom_log.tools.Constants.SLO_LAG_P99_PROP_KEY;
+import static sample.custom_log.tools.Constants.SLO_LATENCY_P99_PROP_KEY;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ログを繰り返し再生し、SLOを満たす最大の速度を探すクラス。
+ * 1ステップごとに指定時間だけログの先頭から再生して応答時間、エラー率、予定時刻からの遅れを計測し、
+ * SLOを満たしていれば速度を倍に、満たしていなければ半分にする。
+ * SLOを満たす速度と満たさない速度の両方が見つかった後は、その間を二分探索する。
+ */
+public class CapacitySearch {
+    public static final long DEFAULT_STEP_SECONDS = 60;
+    private static final double DEFAULT_LATENCY_P99 = 1000;
+    private static final double DEFAULT_ERROR_RATE = 0.01;
+    private static final long DEFAULT_LAG_P99 = 1000;
+    private static final int DEFAULT_MAX_STEPS = 12;
+    /** 探索を打ち切る、成功した速度と失敗した速度の比 */
+    private static final double TOLERANCE = 1.05;
+    private final String[] paths;
+    private final String domain;
+    private final double initialRate;
+    private final long stepMillis;
+    private final double maxLatencyP99;
+    private final double maxErrorRate;
+    private final long maxLagP99;
+    private final int maxSteps;
+    private final List<Step> steps = new ArrayList<Step>();
+    private Log logger = LogFactory.getLog(CapacitySearch.class);
+
+    /**
+     * @param path ログファイルのパス(繰り返し読み込むため標準入力は不可)
+     * @param domain リクエストを送信するドメイン名
+     * @param initialRate 最初のステップの速度指定(LogPlayerの-rと同じ)
+     * @param stepMillis 1ステップで再生する時間(ミリ秒)
+     */
+    public CapacitySearch(String path, String domain, double initialRate, long stepMillis) {
+        this(new String[] {path}, domain, initialRate, stepMillis);
+    }
+    /**
+     * @param paths ログファイルのパス(繰り返し読み込むため標準入力は不可)。複数の場合はリクエスト時刻の順にマージして再生する
+     * @param domain リクエストを送信するドメイン名
+     * @param initialRate 最初のステップの速度指定(LogPlayerの-rと同じ)
+     * @param stepMillis 1ステップで再生する時間(ミリ秒)
+     */
+    public CapacitySearch(String[] paths, String domain, double initialRate, long stepMillis) {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("capacity search requires a log file.");
+        }
+        for (String path : paths) {
+            if (path == null || path.equals("-")) {
+                throw new IllegalArgumentException("capacity search requires a log file.");
+            }
+        }
+        if (initialRate <= 0 || stepMillis <= 0) {
+            throw new IllegalArgumentException("rate and step duration must be positive.");
+        }
+        this.paths = paths.clone();
+        this.domain = domain;
+        this.initialRate = initialRate;
+        this.stepMillis = stepMillis;
+        this.maxLatencyP99 = Double.parseDouble(
+                System.getProperty(SLO_LATENCY_P99_PROP_KEY, String.valueOf(DEFAULT_LATENCY_P99)));
+        this.maxErrorRate = Double.parseDouble(
+                System.getProperty(SLO_ERROR_RATE_PROP_KEY, String.valueOf(DEFAULT_ERROR_RATE)));
+        this.maxLagP99 = Long.parseLong(
+                System.getProperty(SLO_LAG_P99_PROP_KEY, String.valueOf(DEFAULT_LAG_P99)));
+        this.maxSteps = Integer.parseInt(
+                System.getProperty(CAPACITY_MAX_STEPS_PROP_KEY, String.valueOf(DEFAULT_MAX_STEPS)));
+    }
+
+    /**
+     * 探索を実行し、各ステップの結果と最終結果を標準出力に書き出す。
+     * @return SLOを満たした最も速い速度指定。一度も満たさなかった場合はNaN
+     */
+    public double search() {
+        double rate = initialRate;
+        double passedRate = Double.NaN;
+        double failedRate = Double.NaN;
+        Step best = null;
+        for (int stepCount = 0; stepCount < maxSteps; stepCount++) {
+            Step step = runStep(rate);
+            steps.add(step);
+            System.out.println(step);
+            if (step.passed) {
+                passedRate = rate;
+                if (best == null || rate < best.rate) {
+                    best = step;
+                }
+            } else {
+                failedRate = rate;
+            }
+            if (Double.isNaN(failedRate)) {
+                rate = rate / 2;
+            } else if (Double.isNaN(passedRate)) {
+                rate = rate * 2;
+            } else if (passedRate / failedRate <= TOLERANCE) {
+                break;
+            } else {
+                rate = Math.sqrt(passedRate * failedRate);
+            }
+        }
+        if (best == null) {
+            System.out.println("result: SLO was not met at any rate.");
+            return Double.NaN;
+        }
+        System.out.println(String.format("result: rate=%.4f (x%.2f), %.1f requests/sec",
+                best.rate, 1 / best.rate, best.statistics.getRequestsPerSecond()));
+        return best.rate;
+    }
+    /** @return これまでに実行したステップのリスト */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    // 指定した速度で1ステップ分再生し、結果を判定する
+    private Step runStep(double rate) {
+        logger.debug(String.format("step %d: rate=%.4f", steps.size() + 1, rate));
+        ReplayStatistics statistics = new ReplayStatistics();
+        LogPlayer logPlayer = new LogPlayer(paths, domain, rate);
+        logPlayer.addListener(statistics);
+        logPlayer.setTimeLimit(stepMillis);
+        logPlayer.play();
+        boolean passed = statistics.getRequestCount() > 0
+                && statistics.getLatencyMillis(99) <= maxLatencyP99
+                && statistics.getErrorRate() <= maxErrorRate
+                && statistics.getLagMillis(99) <= maxLagP99;
+        return new Step(steps.size() + 1, rate, statistics, passed);
+    }
+
+    /** 1ステップ分の結果 */
+    public static class Step {
+        public final int number;
+        public final double rate;
+        public final ReplayStatistics statistics;
+        public final boolean passed;
+
+        public Step(int number, double rate, ReplayStatistics statistics, boolean passed) {
+            this.number = number;
+            this.rate = rate;
+            this.statistics = statistics;
+            this.passed = passed;
+        }
+        public String toString() {
+            return String.format("step %d: rate=%.4f (x%.2f) %s : %s",
+                    number, rate, 1 / rate, passed ? "PASS" : "FAIL", statistics);
+        }
+    }
+}
@@ -4,4 +4,58 @@ public class Constants {
     public static final String CUSTOM_LOG_FORMAT_PROP_KEY = "custom_log.format";
     public static final String LOG_FORMAT =
         "%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" \"%{User-Agent}i\"";
+    /** 限界性能探索で許容する応答時間のp99(ミリ秒) */
+    public static final String SLO_LATENCY_P99_PROP_KEY = "custom_log.slo.latency_p99";
+    /** 限界性能探索で許容するエラー率(0～1) */
+    public static final String SLO_ERROR_RATE_PROP_KEY = "custom_log.slo.error_rate";
+    /** 限界性能探索で許容する予定時刻からの遅れのp99(ミリ秒) */
+    public static final String SLO_LAG_P99_PROP_KEY = "custom_log.slo.lag_p99";
+    /** 限界性能探索の最大ステップ数 */
+    public static final String CAPACITY_MAX_STEPS_PROP_KEY = "custom_log.capacity.max_steps";
+    /** パースエラーの内容を出力する最大件数 */
+    public static final String ERROR_SAMPLES_PROP_KEY = "custom_log.error.samples";
+    /** パースエラーになった行を書き出すファイル(リジェクトファイル)のパス */
+    public static final String ERROR_REJECT_FILE_PROP_KEY = "custom_log.error.reject_file";
+    /** 処理を中止するパースエラー率(0～1)。省略時は中止しない */
+    public static final String ERROR_MAX_RATE_PROP_KEY = "custom_log.error.max_rate";
+    /** パースエラー率による中止を判定し始める行数 */
+    public static final String ERROR_MIN_LINES_PROP_KEY = "custom_log.error.min_lines";
+    /** trueの場合、ログのパースに構造文字の索引(StructuralIndex)を使用する */
+    public static final String STRUCTURAL_INDEX_PROP_KEY = "custom_log.structural_index";
+    /** LogQueryの結果をキャッシュするディレクトリ。省略時はキャッシュしない */
+    public static final String QUERY_CACHE_DIR_PROP_KEY = "custom_log.query.cache_dir";
+    /** パスの正規化(PathNormalizer)で追加するセグメントの変換。「プレースホルダ=正規表現」の空白区切り */
+    public static final String PATH_PATTERNS_PROP_KEY = "custom_log.path.patterns";
+    /** パスの正規化の結果を保持する件数 */
+    public static final String PATH_CACHE_SIZE_PROP_KEY = "custom_log.path.cache_size";
+    /** LogQueryの日付の関数(to_char、floor_hour等)で使用するタイムゾーンのID。省略時はデフォルト */
+    public static final String TIME_ZONE_PROP_KEY = "custom_log.time_zone";
+    /** trueの場合、LogQueryはブロックごとの索引(BlockIndex)を作成・更新し、where句に一致し得ないブロックを読み飛ばす */
+    public static final String BLOCK_INDEX_PROP_KEY = "custom_log.query.block_index";
+    /** 索引のブロックの大きさ(バイト)。省略時は256KB */
+    public static final String BLOCK_INDEX_SIZE_PROP_KEY = "custom_log.query.block_index_size";
+    /** LogQueryの結果の書式(tsv、csv、jsonl、binary) */
+    public static final String QUERY_OUTPUT_FORMAT_PROP_KEY = "custom_log.query.output_format";
+    /** LogQueryの結果を書き出すファイル。省略時は標準出力 */
+    public static final String QUERY_OUTPUT_PROP_KEY = "custom_log.query.output";
+    /** LogQueryで読み込むブロックの割合(0～1)。指定した場合は標本から結果を推定する(BlockSample) */
+    public static final String QUERY_SAMPLE_RATE_PROP_KEY = "custom_log.query.sample_rate";
+    /** 標本のブロックを選ぶ乱数の種。省略時は0 */
+    public static final String QUERY_SAMPLE_SEED_PROP_KEY = "custom_log.query.sample_seed";
+    /** 標本のブロックの大きさ(バイト)。省略時は1MB */
+    public static final String QUERY_SAMPLE_BLOCK_SIZE_PROP_KEY = "custom_log.query.sample_block_size";
+    /** Sessionizerでセッションを分けるリクエストの間隔(秒)。省略時は1800 */
+    public static final String SESSION_TIMEOUT_PROP_KEY = "custom_log.session.timeout";
+    /** Sessionizerで同時に保持するセッション数の上限 */
+    public static final String SESSION_MAX_CLIENTS_PROP_KEY = "custom_log.session.max_clients";
+    /** LogQueryServerが待ち受けるポート(LogQueryClientの接続先) */
+    public static final String QUERY_SERVER_PORT_PROP_KEY = "custom_log.query.server_port";
+    /** LogQueryServerでクエリを実行するスレッド数。省略時はプロセッサ数 */
+    public static final String QUERY_SERVER_THREADS_PROP_KEY = "custom_log.query.server_threads";
+    /** trueの場合、パース、クエリの評価、書き出し、再生の件数と時間を集計する(PipelineMetrics) */
+    public static final String METRICS_PROP_KEY = "custom_log.metrics";
+    /** 集計の進捗を出力する間隔(秒)。省略時は出力しない */
+    public static final String METRICS_PROGRESS_PROP_KEY = "custom_log.metrics.progress";
+    /** 集計結果のJSONを書き出すファイル。省略時は標準エラー出力 */
+    public static final String METRICS_SUMMARY_PROP_KEY = "custom_log.metrics.summary";
 }
@@ -0,0 +1,62 @@
+package sample.custom_log.tools;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sample.custom_log.core.LogRecord;
+import sample.custom_log.util.Histogram;
+
+/**
+ * ログに記録された処理時間(%D)と、再生時の応答時間を比較するクラス。
+ * 再生時の応答時間はクライアントから見た時間のため、ネットワークの往復時間を含む。
+ * 処理時間が記録されていないリクエストと、応答がなかったリクエストは比較しない。
+ */
+public class LatencyComparison implements ReplayListener {
+    /** 記録された処理時間が何倍以上になったら遅くなったとみなすか */
+    private static final double SLOWER_RATIO = 2.0;
+    private static final double[] PERCENTILES = {50, 90, 99, 100};
+    /** ログに記録された処理時間(マイクロ秒) */
+    private final Histogram logged = new Histogram();
+    /** 再生時の応答時間(マイクロ秒) */
+    private final Histogram replayed = new Histogram();
+    /** 記録された処理時間のSLOWER_RATIO倍以上かかったリクエスト数 */
+    private final AtomicLong slowerCount = new AtomicLong();
+
+    public void replayStarted() {
+    }
+    public void requestCompleted(ReplayRequest replayRequest, long lagMillis, long latencyMicros,
+            int status, long responseBytes) {
+        long timeTaken = replayRequest.getTimeTaken();
+        if (timeTaken == LogRecord.NOT_LOGGED || status == NO_RESPONSE) {
+            return;
+        }
+        logged.record(timeTaken);
+        replayed.record(latencyMicros);
+        if (latencyMicros >= timeTaken * SLOWER_RATIO) {
+            slowerCount.incrementAndGet();
+        }
+    }
+    public void replayFinished() {
+    }
+
+    /**
+     * パーセンタイルごとに、記録された処理時間と再生時の応答時間(ミリ秒)をタブ区切りで書き出す。
+     * @param out 出力先
+     */
+    public void printReport(PrintStream out) {
+        long count = logged.getCount();
+        if (count == 0) {
+            out.println("No requests with logged time taken (%D).");
+            return;
+        }
+        out.println("percentile\tlogged_ms\treplayed_ms\tratio");
+        for (double percentile : PERCENTILES) {
+            double loggedMillis = logged.getPercentile(percentile) / 1000.0;
+            double replayedMillis = replayed.getPercentile(percentile) / 1000.0;
+            out.println(String.format("p%.0f\t%.2f\t%.2f\t%.2f", percentile, loggedMillis, replayedMillis,
+                    loggedMillis == 0 ? 0 : replayedMillis / loggedMillis));
+        }
+        out.println(String.format("compared=%d, slower than %.0fx logged=%d (%.2f%%)", count, SLOWER_RATIO,
+                slowerCount.get(), slowerCount.get() * 100.0 / count));
+    }
+}
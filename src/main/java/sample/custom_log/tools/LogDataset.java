@@ -0,0 +1,149 @@
+package sample.custom_log.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogRecord;
+import sample.custom_log.tools.QueryResultCache.Change;
+import sample.custom_log.tools.QueryResultCache.FileState;
+
+/**
+ * ログファイルを読み込んだLogRecordをメモリ上に保持するクラス。LogQueryServerで使用する。
+ * refresh()でファイルの変化を確認し、追記された部分だけを読み込む(追記以外の変更は全体を読み直す)。
+ * 改行で終わっていない最終行は、改行が追記されるまで読み込まない。
+ * snapshot()とrefresh()は複数のスレッドから呼び出してよい。refresh()は新しいListを作ってから置き換えるため、
+ * 読み込み中もsnapshot()はそれまでの内容を待たずに戻す。
+ */
+public class LogDataset {
+    private final String[] paths;
+    /** refresh()の実行中に保持するロック。recordsOfFilesとfileStatesはこのロックを保持して扱う */
+    private final Lock refreshLock = new ReentrantLock();
+    /** ファイルごとの読み込み済みのLogRecord */
+    private final List<List<LogRecord>> recordsOfFiles;
+    /** ファイルごとの読み込み済みの状態 */
+    private final FileState[] fileStates;
+    /** 全ファイルのLogRecord(読み取り専用)。refresh()で変化があった場合に置き換える */
+    private volatile List<LogRecord> records = Collections.emptyList();
+
+    /**
+     * @param paths 読み込むログのパス
+     */
+    public LogDataset(String[] paths) {
+        this.paths = paths.clone();
+        this.recordsOfFiles = new ArrayList<List<LogRecord>>(paths.length);
+        for (int index = 0; index < paths.length; index++) {
+            recordsOfFiles.add(new ArrayList<LogRecord>());
+        }
+        this.fileStates = new FileState[paths.length];
+    }
+
+    /**
+     * 各ファイルの変化を確認し、変化があれば読み込む。
+     * 他のスレッドが読み込み中の場合は、その完了を待たずにfalseを戻す(呼び出し元はそれまでのsnapshot()を使う)。
+     * パースエラーはシステムプロパティ(custom_log.error.*)の設定に従って扱う。
+     * @return いずれかのファイルを読み込んだ場合true
+     * @throws IOException ファイル読み込み時のIO例外
+     * @throws LogParseException パースエラー率が上限を超えた場合の例外。読み込んだ内容は反映しない
+     */
+    public boolean refresh() throws IOException, LogParseException {
+        if (!refreshLock.tryLock()) {
+            return false;
+        }
+        try {
+            return refreshFiles();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+    // ファイルの変化を確認して読み込み、全ファイルのLogRecordのListを置き換える(refreshLockを保持して呼び出す)
+    private boolean refreshFiles() throws IOException, LogParseException {
+        FileState[] states = new FileState[paths.length];
+        long[] starts = new long[paths.length];
+        boolean changed = false;
+        for (int index = 0; index < paths.length; index++) {
+            states[index] = FileState.of(paths[index]);
+            Change change = (fileStates[index] == null)
+                    ? Change.CHANGED : states[index].compareTo(fileStates[index]);
+            if (change == Change.APPENDED) {
+                starts[index] = fileStates[index].getProcessedLength();
+            } else if (change == Change.UNCHANGED) {
+                starts[index] = states[index].getProcessedLength();
+            }
+            changed |= change != Change.UNCHANGED;
+        }
+        if (!changed) {
+            return false;
+        }
+        List<List<LogRecord>> loaded = load(states, starts);
+        for (int index = 0; index < paths.length; index++) {
+            if (starts[index] == 0) {
+                recordsOfFiles.get(index).clear();
+            }
+            recordsOfFiles.get(index).addAll(loaded.get(index));
+            fileStates[index] = states[index];
+        }
+        int size = 0;
+        for (List<LogRecord> recordsOfFile : recordsOfFiles) {
+            size += recordsOfFile.size();
+        }
+        List<LogRecord> all = new ArrayList<LogRecord>(size);
+        for (List<LogRecord> recordsOfFile : recordsOfFiles) {
+            all.addAll(recordsOfFile);
+        }
+        this.records = Collections.unmodifiableList(all);
+        return true;
+    }
+    // ファイルごとにstarts～処理済みの範囲の終了位置を読み込む
+    private List<List<LogRecord>> load(FileState[] states, long[] starts) throws IOException, LogParseException {
+        LogParser parser = LogQuery.createParser();
+        ParseErrorPolicy errorPolicy = LogQuery.createErrorPolicy();
+        List<List<LogRecord>> loaded = new ArrayList<List<LogRecord>>(paths.length);
+        try {
+            for (int index = 0; index < paths.length; index++) {
+                List<LogRecord> recordsOfFile = new ArrayList<LogRecord>();
+                long end = states[index].getProcessedLength();
+                if (starts[index] < end) {
+                    LogQuery.readLog(paths[index], starts[index], end, parser,
+                            new LogQuery.RecordCollector(paths[index], recordsOfFile, errorPolicy));
+                }
+                for (LogRecord logRecord : recordsOfFile) {
+                    prepare(logRecord);
+                }
+                loaded.add(recordsOfFile);
+                if (errorPolicy.isAborted()) {
+                    break;
+                }
+            }
+        } finally {
+            LogQuery.finishErrorPolicy(errorPolicy);
+        }
+        LogQuery.checkAborted(errorPolicy);
+        return loaded;
+    }
+    /**
+     * LogRecordのgetterが初回に生成する値(リクエスト時刻のDate、リクエスト行の解析結果)を先に生成しておく。
+     * 複数のスレッドのクエリから同時に参照されても、LogRecordの内容が変更されないようにするため。
+     */
+    private static void prepare(LogRecord logRecord) {
+        logRecord.getRequestTime();
+        logRecord.getRequestPath();
+    }
+
+    /**
+     * 読み込み済みの全LogRecordを戻す。戻したListの内容はその後のrefresh()で変化しない。
+     * @return 読み込み済みのLogRecordのList(読み取り専用)
+     */
+    public List<LogRecord> snapshot() {
+        return records;
+    }
+    /** @return 読み込むログのパス */
+    public String[] getPaths() {
+        return paths.clone();
+    }
+}
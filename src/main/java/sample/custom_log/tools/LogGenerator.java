@@ -0,0 +1,657 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.CUSTOM_LOG_FORMAT_PROP_KEY;
+import static sample.custom_log.tools.Constants.LOG_FORMAT;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sample.custom_log.core.LogParser;
+import sample.custom_log.util.ZipfDistribution;
+
+/**
+ * 性能試験用に、本番に近い分布を持つアクセスログを生成するクラス。
+ * <ul>
+ * <li>パス、リモートホスト、User-AgentはZipf分布に従う</li>
+ * <li>リクエスト時刻は1日周期で増減する(15時頃が最多、3時頃が最少)</li>
+ * <li>ステータス、メソッド、サイズ、クエリ文字列、エスケープされた引用符を含む</li>
+ * </ul>
+ * ログは一定行数のチャンクに分けて並列に生成する。各チャンクの乱数はシードとチャンク番号から決まるため、
+ * スレッド数によらず、同じシードからは同じ内容が生成される。
+ * 書式はcustom_log.formatシステムプロパティ(LogParserと同じLogFormat形式)で指定する。
+ */
+public class LogGenerator {
+    private static final String STDOUT_NAME = "-";
+    /** 1チャンクの行数 */
+    private static final int CHUNK_LINES = 16 * 1024;
+    private static final long DEFAULT_LINES = 1000000;
+    private static final long DEFAULT_LINES_PER_DAY = 1000000;
+    private static final long DEFAULT_SEED = 1;
+    private static final int PATH_COUNT = 20000;
+    private static final int HOST_COUNT = 100000;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    /** 1日の中でのリクエスト数の変動幅(平均に対する割合) */
+    private static final double DIURNAL_AMPLITUDE = 0.6;
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec",
+    };
+    private static final int[] STATUSES = {200, 304, 302, 301, 404, 403, 500, 503};
+    private static final double[] STATUS_WEIGHTS = {0.82, 0.07, 0.03, 0.01, 0.04, 0.005, 0.015, 0.01};
+    private static final String[] USER_AGENTS = {
+        "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.2 (KHTML, like Gecko) Chrome/15.0.874.121 Safari/535.2",
+        "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:8.0) Gecko/20100101 Firefox/8.0",
+        "Mozilla/5.0 (compatible; MSIE 9.0; Windows NT 6.1; WOW64; Trident/5.0)",
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_7_2) AppleWebKit/534.51.22 (KHTML, like Gecko) Version/5.1.1 Safari/534.51.22",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 5_0 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9A334 Safari/7534.48.3",
+        "Mozilla/5.0 (Linux; U; Android 2.3.4; ja-jp; SC-02C Build/GINGERBREAD) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 Mobile Safari/533.1",
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+        "Mozilla/5.0 (compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)",
+        "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 5.1; Trident/4.0; .NET CLR 2.0.50727; .NET CLR 3.0.4506.2152; .NET CLR 3.5.30729; InfoPath.2; .NET4.0C; .NET4.0E)",
+        "DoCoMo/2.0 P903i(c100;TB;W24H12)",
+        "curl/7.21.4 (x86_64-unknown-linux-gnu) libcurl/7.21.4 OpenSSL/0.9.8r zlib/1.2.5",
+        "Wget/1.12 (linux-gnu)",
+        "Java/1.6.0_26",
+        "Mozilla/5.0 (X11; Linux x86_64) \"Custom Build\" AppleWebKit/535.1",
+        "Mozilla/5.0 (Windows; U; Windows NT 5.1; ja; rv:1.9.2.24) Gecko/20111103 Firefox/3.6.24 ( .NET CLR 3.5.30729; .NET4.0E)",
+        "Opera/9.80 (Windows NT 6.1; U; ja) Presto/2.9.168 Version/11.52",
+        "Mozilla/5.0 (compatible; Yahoo! Slurp; http://help.yahoo.com/help/us/ysearch/slurp)",
+        "Python-urllib/2.7",
+        "Mozilla/5.0 (Windows NT 6.1) AppleWebKit/535.2 (KHTML, like Gecko) Chrome/15.0.874.121 Safari/535.2 C:\\Program Files\\Agent",
+        "-",
+    };
+    private static final String[] STATIC_PATHS = {
+        "/", "/index.html", "/favicon.ico", "/robots.txt", "/css/site.css", "/js/app.js",
+        "/img/logo.png", "/search", "/login", "/news/",
+    };
+    private static final String[] WORDS = {
+        "apache", "log", "java", "server", "tokyo", "linux", "cloud", "mobile", "news", "sports",
+        "music", "book", "travel", "food", "game", "camera", "shoes", "watch",
+    };
+    private static final String[] PARAM_NAMES = {"page", "sort", "id", "category", "lang", "ref", "utm_source"};
+
+    private final String format;
+    private final long seed;
+    private final long linesPerDay;
+    private final long startTime;
+    /** %tの時刻を書式化するタイムゾーン */
+    private final TimeZone timeZone;
+    private final int threads;
+    /** 書式を分解したもの */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    /** パスの一覧(人気順) */
+    private final String[] paths;
+    private final ZipfDistribution pathDistribution = new ZipfDistribution(PATH_COUNT, 1.05);
+    private final ZipfDistribution hostDistribution = new ZipfDistribution(HOST_COUNT, 0.9);
+    private final ZipfDistribution userAgentDistribution = new ZipfDistribution(USER_AGENTS.length, 1.1);
+    /** 1日の各分の開始時点までの累積行数(全MINUTES_PER_DAY+1要素) */
+    private final long[] minuteOffsets;
+    private Log logger = LogFactory.getLog(LogGenerator.class);
+
+    /**
+     * @param format LogFormat形式の書式
+     * @param seed 乱数のシード
+     * @param linesPerDay 1日あたりの行数
+     * @param startTime 最初の日の0時(エポックミリ秒)
+     * @param timeZone %tの時刻を書式化するタイムゾーン
+     * @param threads 生成に使うスレッド数
+     */
+    public LogGenerator(String format, long seed, long linesPerDay, long startTime, TimeZone timeZone, int threads) {
+        // LogParserで読めない書式はここで例外とする
+        new LogParser(format);
+        if (linesPerDay < 1 || threads < 1) {
+            throw new IllegalArgumentException("linesPerDay and threads must be positive.");
+        }
+        this.format = format;
+        this.seed = seed;
+        this.linesPerDay = linesPerDay;
+        this.startTime = startTime;
+        this.timeZone = timeZone;
+        this.threads = threads;
+        parseFormat();
+        this.paths = buildPaths(new Random(seed));
+        this.minuteOffsets = buildMinuteOffsets(linesPerDay);
+    }
+
+    /**
+     * ログを生成してoutに書き出す。maxLinesとmaxBytesのどちらかに達したチャンクで終了する。
+     * @param out 出力先
+     * @param maxLines 最大行数。0以下なら制限しない
+     * @param maxBytes 最大バイト数(チャンク単位のため多少超える)。0以下なら制限しない
+     * @return 書き出した行数
+     * @throws IOException 書き出し時のIO例外
+     */
+    public long generate(OutputStream out, long maxLines, long maxBytes) throws IOException {
+        if (maxLines <= 0 && maxBytes <= 0) {
+            maxLines = DEFAULT_LINES;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+        long nextLine = 0;
+        long chunkIndex = 0;
+        long lines = 0;
+        long bytes = 0;
+        try {
+            while (true) {
+                while (pending.size() < threads * 2 && (maxLines <= 0 || nextLine < maxLines)) {
+                    int count = (int) ((maxLines <= 0) ? CHUNK_LINES : Math.min(CHUNK_LINES, maxLines - nextLine));
+                    pending.add(executor.submit(new ChunkTask(chunkIndex++, nextLine, count)));
+                    nextLine += count;
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                Chunk chunk = pending.removeFirst().get();
+                out.write(chunk.bytes, 0, chunk.length);
+                lines += chunk.lines;
+                bytes += chunk.length;
+                if (maxBytes > 0 && bytes >= maxBytes) {
+                    break;
+                }
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating.");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to generate.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.debug("generated " + lines + " lines, " + bytes + " bytes");
+        return lines;
+    }
+
+    /** 書式文字列をリテラルと%指定に分解する */
+    private void parseFormat() {
+        StringBuilder literal = new StringBuilder();
+        int length = format.length();
+        int pos = 0;
+        while (pos < length) {
+            char c = format.charAt(pos);
+            if (c != '%' || pos + 1 >= length) {
+                literal.append(c);
+                pos++;
+                continue;
+            }
+            pos++;
+            if (format.charAt(pos) == '%') {
+                literal.append('%');
+                pos++;
+                continue;
+            }
+            while (pos < length && (format.charAt(pos) == '<' || format.charAt(pos) == '>')) {
+                pos++;
+            }
+            String param = "";
+            if (pos < length && format.charAt(pos) == '{') {
+                int end = format.indexOf('}', pos);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Illegal format string:" + format);
+                }
+                param = format.substring(pos + 1, end);
+                pos = end + 1;
+            }
+            if (pos >= length) {
+                throw new IllegalArgumentException("Illegal format string:" + format);
+            }
+            if (literal.length() > 0) {
+                segments.add(new Segment(literal.toString(), '\0', null));
+                literal.setLength(0);
+            }
+            segments.add(new Segment(null, format.charAt(pos), param));
+            pos++;
+        }
+        if (literal.length() > 0) {
+            segments.add(new Segment(literal.toString(), '\0', null));
+        }
+    }
+    /** 人気順のパスの一覧を作る */
+    private static String[] buildPaths(Random random) {
+        String[] paths = new String[PATH_COUNT];
+        System.arraycopy(STATIC_PATHS, 0, paths, 0, STATIC_PATHS.length);
+        for (int rank = STATIC_PATHS.length; rank < PATH_COUNT; rank++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            switch (random.nextInt(8)) {
+                case 0:
+                    paths[rank] = "/products/" + random.nextInt(1000000);
+                    break;
+                case 1:
+                    paths[rank] = "/user/" + random.nextInt(10000000) + "/profile";
+                    break;
+                case 2:
+                    paths[rank] = "/static/js/" + word + "." + Long.toHexString(random.nextLong()) + ".js";
+                    break;
+                case 3:
+                    paths[rank] = "/img/photos/" + random.nextInt(100000) + ".jpg";
+                    break;
+                case 4:
+                    paths[rank] = "/api/v1/orders/" + new java.util.UUID(random.nextLong(), random.nextLong());
+                    break;
+                case 5:
+                    paths[rank] = "/blog/2011/" + (1 + random.nextInt(12)) + "/" + word + "-" + random.nextInt(1000) + ".html";
+                    break;
+                case 6:
+                    paths[rank] = "/category/" + word + "/page/" + (1 + random.nextInt(50));
+                    break;
+                default:
+                    paths[rank] = "/" + word + "/" + WORDS[random.nextInt(WORDS.length)] + "/index.html";
+                    break;
+            }
+        }
+        return paths;
+    }
+    /** 1日分の、各分の開始時点までの累積行数の表を作る */
+    private static long[] buildMinuteOffsets(long linesPerDay) {
+        double[] weights = new double[MINUTES_PER_DAY];
+        double total = 0;
+        for (int minute = 0; minute < MINUTES_PER_DAY; minute++) {
+            // 15時に最大、3時に最小となる正弦波
+            weights[minute] = 1 + DIURNAL_AMPLITUDE
+                    * Math.sin(2 * Math.PI * (minute - 9 * 60) / MINUTES_PER_DAY);
+            total += weights[minute];
+        }
+        long[] offsets = new long[MINUTES_PER_DAY + 1];
+        double sum = 0;
+        for (int minute = 0; minute < MINUTES_PER_DAY; minute++) {
+            offsets[minute] = (long) (linesPerDay * sum / total);
+            sum += weights[minute];
+        }
+        offsets[MINUTES_PER_DAY] = linesPerDay;
+        return offsets;
+    }
+    /** 通し番号lineNumberの行のリクエスト時刻を戻す */
+    private long timeOfLine(long lineNumber) {
+        long day = lineNumber / linesPerDay;
+        long inDay = lineNumber % linesPerDay;
+        int low = 0;
+        int high = MINUTES_PER_DAY;
+        // minuteOffsets[low] <= inDay < minuteOffsets[low + 1] となるlowを探す
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            if (minuteOffsets[mid] <= inDay) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        long linesInMinute = minuteOffsets[low + 1] - minuteOffsets[low];
+        long second = (linesInMinute == 0) ? 0 : (inDay - minuteOffsets[low]) * 60 / linesInMinute;
+        return startTime + day * DAY_MILLIS + low * 60000L + second * 1000L;
+    }
+
+    /** 書式の一部。リテラル文字列または%指定 */
+    private static class Segment {
+        /** リテラルの場合の文字列。%指定の場合はnull */
+        final String literal;
+        /** %指定の種類(「%{hoge}X」のX) */
+        final char type;
+        /** %指定のパラメータ(「%{hoge}X」のhoge) */
+        final String param;
+
+        Segment(String literal, char type, String param) {
+            this.literal = literal;
+            this.type = type;
+            this.param = param;
+        }
+    }
+
+    /** 生成したチャンク */
+    private static class Chunk {
+        final byte[] bytes;
+        final int length;
+        final int lines;
+
+        Chunk(byte[] bytes, int length, int lines) {
+            this.bytes = bytes;
+            this.length = length;
+            this.lines = lines;
+        }
+    }
+
+    /** 1チャンク分の行を生成するタスク */
+    private class ChunkTask implements Callable<Chunk> {
+        private final long firstLine;
+        private final int lineCount;
+        private final Random random;
+        private final Calendar calendar = Calendar.getInstance(timeZone);
+        private final ByteBuilder out;
+        /** 直前に書式化した時刻(秒単位)とその文字列 */
+        private long formattedSecond = Long.MIN_VALUE;
+        private String formattedTime;
+        // 一行分の値
+        private String host;
+        private String user;
+        private long time;
+        private String method;
+        private String path;
+        private String query;
+        private int status;
+        private long size;
+        private String referer;
+        private String userAgent;
+        private long timeTakenMicros;
+
+        ChunkTask(long chunkIndex, long firstLine, int lineCount) {
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+            this.random = new Random(seed * 0x9E3779B97F4A7C15L + chunkIndex);
+            this.out = new ByteBuilder(lineCount * 256);
+        }
+
+        public Chunk call() {
+            for (int index = 0; index < lineCount; index++) {
+                nextRequest(firstLine + index);
+                for (Segment segment : segments) {
+                    if (segment.literal != null) {
+                        out.append(segment.literal, false);
+                    } else {
+                        appendField(segment.type, segment.param);
+                    }
+                }
+                out.append('\n');
+            }
+            return new Chunk(out.bytes, out.length, lineCount);
+        }
+
+        // 一行分の値を決める
+        private void nextRequest(long lineNumber) {
+            host = hostAddress(hostDistribution.sample(random));
+            user = (random.nextInt(100) < 3) ? "user" + random.nextInt(1000) : "-";
+            time = timeOfLine(lineNumber);
+            int m = random.nextInt(100);
+            method = (m < 93) ? "GET" : (m < 98) ? "POST" : "HEAD";
+            path = paths[pathDistribution.sample(random)];
+            query = null;
+            if (path.equals("/search")) {
+                query = "q=" + WORDS[random.nextInt(WORDS.length)] + "+" + WORDS[random.nextInt(WORDS.length)];
+            } else if (random.nextInt(100) < 25) {
+                StringBuilder builder = new StringBuilder();
+                int count = 1 + random.nextInt(4);
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        builder.append('&');
+                    }
+                    builder.append(PARAM_NAMES[random.nextInt(PARAM_NAMES.length)]).append('=')
+                        .append(random.nextInt(10) == 0 ? "a%20b" : WORDS[random.nextInt(WORDS.length)]);
+                }
+                query = builder.toString();
+            }
+            double s = random.nextDouble();
+            status = STATUSES[STATUSES.length - 1];
+            for (int i = 0; i < STATUSES.length; i++) {
+                s -= STATUS_WEIGHTS[i];
+                if (s < 0) {
+                    status = STATUSES[i];
+                    break;
+                }
+            }
+            if (status == 304 || method.equals("HEAD")) {
+                size = 0;
+            } else if (status >= 300) {
+                size = 200 + random.nextInt(800);
+            } else {
+                size = (long) Math.exp(Math.log(path.endsWith(".jpg") ? 80000 : 6000) + random.nextGaussian());
+            }
+            int r = random.nextInt(100);
+            if (r < 35) {
+                referer = "-";
+            } else if (r < 45) {
+                referer = "http://www.google.co.jp/search?q=" + WORDS[random.nextInt(WORDS.length)];
+            } else {
+                referer = "http://www.example.com" + paths[pathDistribution.sample(random)];
+            }
+            userAgent = USER_AGENTS[userAgentDistribution.sample(random)];
+            timeTakenMicros = (long) Math.exp(Math.log(15000) + random.nextGaussian());
+        }
+        // %指定1つ分の値を書き出す
+        private void appendField(char type, String param) {
+            switch (type) {
+                case 'h':
+                case 'a':
+                    out.append(host, false);
+                    break;
+                case 'l':
+                    out.append('-');
+                    break;
+                case 'u':
+                    out.append(user, true);
+                    break;
+                case 't':
+                    out.append('[').append(formatTime(time), false).append(']');
+                    break;
+                case 'r':
+                    out.append(method, false).append(' ').append(path, true);
+                    if (query != null) {
+                        out.append('?').append(query, true);
+                    }
+                    out.append(" HTTP/1.1", false);
+                    break;
+                case 'm':
+                    out.append(method, false);
+                    break;
+                case 'U':
+                    out.append(path, true);
+                    break;
+                case 'q':
+                    if (query != null) {
+                        out.append('?').append(query, true);
+                    }
+                    break;
+                case 'H':
+                    out.append("HTTP/1.1", false);
+                    break;
+                case 's':
+                    out.append(status);
+                    break;
+                case 'b':
+                    if (size == 0) {
+                        out.append('-');
+                    } else {
+                        out.append(size);
+                    }
+                    break;
+                case 'B':
+                    out.append(size);
+                    break;
+                case 'D':
+                    out.append(timeTakenMicros);
+                    break;
+                case 'T':
+                    // LogParserと同じく%{ms}T、%{us}Tの単位指定に対応する
+                    out.append(timeTakenMicros / (param.equals("ms") ? 1000 : param.equals("us") ? 1 : 1000000));
+                    break;
+                case 'I':
+                    out.append(200 + (path.length() + (query == null ? 0 : query.length())) * 2);
+                    break;
+                case 'O':
+                    out.append(size + 250);
+                    break;
+                case 'k':
+                    out.append(random.nextInt(4) == 0 ? random.nextInt(100) : 0);
+                    break;
+                case 'i':
+                    if (param.equalsIgnoreCase("referer")) {
+                        out.append(referer, true);
+                    } else if (param.equalsIgnoreCase("user-agent")) {
+                        out.append(userAgent, true);
+                    } else if (param.equalsIgnoreCase("host")) {
+                        out.append("www.example.com", false);
+                    } else {
+                        out.append('-');
+                    }
+                    break;
+                case 'v':
+                case 'V':
+                    out.append("www.example.com", false);
+                    break;
+                case 'p':
+                    out.append(80);
+                    break;
+                default:
+                    out.append('-');
+                    break;
+            }
+        }
+        // 順位からIPアドレスを決める
+        private String hostAddress(int rank) {
+            long h = (rank + 1) * 0x9E3779B97F4A7C15L ^ seed;
+            h ^= (h >>> 29);
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= (h >>> 32);
+            return (1 + (int) ((h >>> 24) & 0xFF) % 223) + "." + ((h >>> 16) & 0xFF)
+                    + "." + ((h >>> 8) & 0xFF) + "." + (h & 0xFF);
+        }
+        // CLF形式(dd/MMM/yyyy:HH:mm:ss Z)で時刻を書式化する。同じ秒が続く場合は使い回す
+        private String formatTime(long millis) {
+            long second = millis / 1000;
+            if (second != formattedSecond) {
+                calendar.setTimeInMillis(millis);
+                int offset = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+                char sign = (offset < 0) ? '-' : '+';
+                offset = Math.abs(offset);
+                StringBuilder builder = new StringBuilder(26);
+                appendTwoDigits(builder, calendar.get(Calendar.DAY_OF_MONTH)).append('/')
+                    .append(MONTHS[calendar.get(Calendar.MONTH)]).append('/')
+                    .append(calendar.get(Calendar.YEAR)).append(':');
+                appendTwoDigits(builder, calendar.get(Calendar.HOUR_OF_DAY)).append(':');
+                appendTwoDigits(builder, calendar.get(Calendar.MINUTE)).append(':');
+                appendTwoDigits(builder, calendar.get(Calendar.SECOND)).append(' ').append(sign);
+                appendTwoDigits(builder, offset / 60);
+                appendTwoDigits(builder, offset % 60);
+                formattedTime = builder.toString();
+                formattedSecond = second;
+            }
+            return formattedTime;
+        }
+        private StringBuilder appendTwoDigits(StringBuilder builder, int value) {
+            return builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
+    }
+
+    /** ASCII文字列を溜める伸長可能なバイト配列 */
+    private static class ByteBuilder {
+        byte[] bytes;
+        int length = 0;
+
+        ByteBuilder(int capacity) {
+            bytes = new byte[capacity];
+        }
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] larger = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+        }
+        ByteBuilder append(char c) {
+            ensure(1);
+            bytes[length++] = (byte) c;
+            return this;
+        }
+        /**
+         * 文字列を追加する。escapeがtrueの場合、引用符と「\」の前に「\」を付ける(Apacheと同じ)。
+         */
+        ByteBuilder append(String s, boolean escape) {
+            int count = s.length();
+            ensure(escape ? count * 2 : count);
+            for (int i = 0; i < count; i++) {
+                char c = s.charAt(i);
+                if (escape && (c == '"' || c == '\\')) {
+                    bytes[length++] = '\\';
+                }
+                bytes[length++] = (byte) c;
+            }
+            return this;
+        }
+        ByteBuilder append(long value) {
+            return append(Long.toString(value), false);
+        }
+    }
+
+    private static Option buildOption(String opt, boolean hasArg, String argName, boolean required, String description) {
+        Option option = new Option(opt, hasArg, description);
+        option.setArgName(argName);
+        option.setRequired(required);
+        return option;
+    }
+    // 「10G」「512M」「64k」のようなサイズ指定をバイト数にする
+    private static long parseSize(String value) {
+        long unit = 1;
+        char last = Character.toUpperCase(value.charAt(value.length() - 1));
+        if (last == 'K' || last == 'M' || last == 'G' || last == 'T') {
+            unit = (last == 'K') ? 1L << 10 : (last == 'M') ? 1L << 20 : (last == 'G') ? 1L << 30 : 1L << 40;
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(buildOption("o", true, "file name", false, "出力先(省略時または\"-\"指定時は標準出力)"));
+        options.addOption(buildOption("n", true, "lines", false, "生成する行数(-nも-sも省略時は" + DEFAULT_LINES + ")"));
+        options.addOption(buildOption("s", true, "size", false, "生成するサイズ。例: 10G、512M"));
+        options.addOption(buildOption("S", true, "seed", false, "乱数のシード(省略時は" + DEFAULT_SEED + ")"));
+        options.addOption(buildOption("d", true, "lines", false, "1日あたりの行数(省略時は" + DEFAULT_LINES_PER_DAY + ")"));
+        options.addOption(buildOption("b", true, "yyyy-MM-dd", false, "最初の日付(省略時は2011-11-01)"));
+        options.addOption(buildOption("z", true, "time zone", false, "時刻のタイムゾーン。例: Asia/Tokyo(省略時はUTC)"));
+        options.addOption(buildOption("t", true, "threads", false, "生成に使うスレッド数(省略時はCPU数)"));
+        CommandLineParser parser = new BasicParser();
+        CommandLine commandLine = null;
+        try {
+            commandLine = parser.parse(options, args, false);
+        } catch (org.apache.commons.cli.ParseException e) {
+        }
+        if (commandLine == null) {
+            HelpFormatter help = new HelpFormatter();
+            help.setWidth(Integer.MAX_VALUE);
+            help.printHelp("java " + LogGenerator.class.getName(), options, true);
+            return;
+        }
+        String format = System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT);
+        long seed = Long.parseLong(commandLine.getOptionValue("S", String.valueOf(DEFAULT_SEED)));
+        long linesPerDay = Long.parseLong(commandLine.getOptionValue("d", String.valueOf(DEFAULT_LINES_PER_DAY)));
+        // 同じシードで実行環境によらず同じログになるよう、既定のタイムゾーンは使わない
+        TimeZone timeZone = TimeZone.getTimeZone(commandLine.getOptionValue("z", "UTC"));
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setTimeZone(timeZone);
+        Date startDate = dateFormat.parse(commandLine.getOptionValue("b", "2011-11-01"));
+        int threads = Integer.parseInt(commandLine.getOptionValue("t",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long maxLines = Long.parseLong(commandLine.getOptionValue("n", "0"));
+        long maxBytes = commandLine.hasOption("s") ? parseSize(commandLine.getOptionValue("s")) : 0;
+
+        LogGenerator generator = new LogGenerator(format, seed, linesPerDay, startDate.getTime(), timeZone, threads);
+        String path = commandLine.getOptionValue("o", STDOUT_NAME);
+        OutputStream out = path.equals(STDOUT_NAME) ? System.out : new FileOutputStream(path);
+        try {
+            generator.generate(out, maxLines, maxBytes);
+        } finally {
+            if (out != System.out) {
+                out.close();
+            }
+        }
+    }
+}
@@ -2,16 +2,22 @@ package sample.custom_log.tools;
 
 import static sample.custom_log.tools.Constants.CUSTOM_LOG_FORMAT_PROP_KEY;
 import static sample.custom_log.tools.Constants.LOG_FORMAT;
+import static sample.custom_log.tools.Constants.STRUCTURAL_INDEX_PROP_KEY;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -22,72 +28,321 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
 
 import sample.custom_log.core.LogParseException;
 import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
 import sample.custom_log.core.LogRecord;
 import sample.custom_log.util.NoncancelableTask;
 
-/** Apacheのアクセスログを再生するクラス */
+/**
+ * Apacheのアクセスログを再生するクラス。
+ * ファイルを複数指定した場合は、ファイルごとのスレッドで読み込み、リクエスト時刻の順にマージして再生する(MergedRequestReader)。
+ * custom_log.metricsがtrueの場合は、パースと再生の件数、時間、送信の遅れを集計して出力する(PipelineMetrics)。
+ */
 public class LogPlayer {
     private static final String DEFAULT_HOST = "localhost";
-    private static final String STDIN_NAME = "-";
+    static final String STDIN_NAME = "-";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
     private static final int THREAD_COUNT = 30;
+    /** 再生するファイル。複数の場合はリクエスト時刻の順にマージして再生する */
+    private final String[] paths;
+    /** 最初のファイル(ファイルが一つの場合に使用する) */
     private final String path;
     private final String domain;
     private final double rate;
     private final String format;
     private LogPlayerSettings settings;
+    /** 再生結果を受け取るリスナー */
+    private final List<ReplayListener> listeners = new ArrayList<ReplayListener>();
+    /** 再生中にlistenersへ通知する為のもの。リスナーがない場合はnull */
+    private ReplayListener listenerGroup;
+    /** 再生中に共有するHttpClient */
+    private HttpClient httpClient;
+    /** 再生する時間の上限(ミリ秒)。0以下なら最後まで再生する */
+    private long timeLimit = 0;
     private Log logger = LogFactory.getLog(LogPlayer.class);
 
     public LogPlayer(String path, String domain, double rate) {
-        this.path = path;
+        this(new String[] {path}, domain, rate);
+    }
+    /**
+     * @param paths ログファイルまたは再生計画のパス。複数の場合はファイルごとのスレッドで読み込み、
+     * リクエスト時刻の順にマージして再生する(MergedRequestReader)
+     * @param domain リクエストを送信するドメイン名
+     * @param rate 速度指定。倍速なら0.5
+     */
+    public LogPlayer(String[] paths, String domain, double rate) {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("No files to play.");
+        }
+        this.paths = paths.clone();
+        this.path = paths[0];
         this.domain = domain;
         this.rate = rate;
         
         format = System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT);
     }
+    /**
+     * 再生結果を受け取るリスナーを追加する。
+     * @param listener 追加するリスナー
+     */
+    public void addListener(ReplayListener listener) {
+        this.listeners.add(listener);
+    }
+    /**
+     * 再生する時間の上限を設定する。再生開始からこの時間以降に送信する予定のリクエストは送信しない。
+     * @param timeLimit 時間の上限(ミリ秒)。0以下なら最後まで再生する
+     */
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
     // 設定されたファイル、ドメイン、速度でリクエストを再生する。
     public void play() {
-        logger.debug("start playing: " + path);
+        logger.debug("start playing: " + Arrays.asList(paths));
         ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        httpClient = createHttpClient(THREAD_COUNT);
+        listenerGroup = listeners.isEmpty() ? null
+                : new ListenerGroup(listeners.toArray(new ReplayListener[listeners.size()]));
         try {
-            InputStream in = path.equals(STDIN_NAME) ? System.in : new FileInputStream(path);
-            playWith(in, executor);
+            if (paths.length > 1) {
+                playMerged(executor);
+            } else if (!path.equals(STDIN_NAME) && ReplayPlanReader.isPlan(new File(path))) {
+                playPlan(executor);
+            } else {
+                InputStream in = openLog(path);
+                try {
+                    playWith(in, executor);
+                } finally {
+                    if (in != System.in) {
+                        in.close();
+                    }
+                }
+            }
         } catch (IOException e) {
             logger.warn("Error occurs while processing file:" + path + " : " + e.getMessage(), e);
         }
         executor.shutdown();
         awaitTermination(executor);
+        httpClient.getConnectionManager().shutdown();
+        if (listenerGroup != null) {
+            listenerGroup.replayFinished();
+        }
         logger.debug("complete");
     }
+    /**
+     * ログファイルを開く。
+     * @param path ログファイルのパス。"-"の場合は標準入力
+     * @return 開いたInputStream。拡張子が.gzのファイルはgzipとして展開する
+     * @throws IOException ファイルを開けない場合の例外
+     */
+    static InputStream openLog(String path) throws IOException {
+        if (path.equals(STDIN_NAME)) {
+            return System.in;
+        }
+        InputStream in = new FileInputStream(path);
+        if (!path.endsWith(GZIP_SUFFIX)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    /**
+     * 設定されたファイルのログから再生可能なリクエストのみを取り出し、再生計画として書き出す。
+     * 書き出した再生計画は-fに指定して再生できる。
+     * ファイルが複数の場合は、リクエスト時刻の順にマージした一つの再生計画とする。
+     * @param planPath 書き出す再生計画のパス
+     */
+    public void compile(String planPath) {
+        logger.debug("start compiling: " + Arrays.asList(paths) + " to " + planPath);
+        if (paths.length > 1) {
+            compileMerged(planPath);
+            return;
+        }
+        try {
+            InputStream in = openLog(path);
+            LogParser parser = new LogParser(format);
+            parser.setStructuralIndexEnabled(Boolean.getBoolean(STRUCTURAL_INDEX_PROP_KEY));
+            final ReplayPlanWriter writer = new ReplayPlanWriter(new File(planPath));
+            final ParseErrorPolicy errorPolicy = ParseErrorPolicy.fromSystemProperties();
+            // コールバック内で発生したIO例外
+            final IOException[] writeError = new IOException[1];
+            try {
+                parser.parse(Channels.newChannel(in), Charset.defaultCharset(), new LogRecordHandler() {
+                    public boolean handleLogRecord(LogRecord logRecord) {
+                        errorPolicy.lineParsed();
+                        ReplayRequest replayRequest = ReplayRequest.fromLogRecord(logRecord);
+                        if (replayRequest != null) {
+                            try {
+                                writer.write(replayRequest);
+                            } catch (IOException e) {
+                                writeError[0] = e;
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                    public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+                        return errorPolicy.parseFailed(path, offset, line, e);
+                    }
+                });
+                if (writeError[0] != null) {
+                    throw writeError[0];
+                }
+            } finally {
+                writer.close();
+                in.close();
+                errorPolicy.printSummary(System.err);
+                errorPolicy.close();
+            }
+            logger.debug("complete: " + writer.getEntryCount() + " requests");
+        } catch (IOException e) {
+            logger.warn("Error occurs while compiling file:" + path + " : " + e.getMessage(), e);
+        }
+    }
     // ストリームの内容を読みだしてリクエストを生成してexecutorを使用して投げる
-    private void playWith(InputStream in, ExecutorService executor) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+    private void playWith(InputStream in, final ExecutorService executor) throws IOException {
         LogParser parser = new LogParser(format);
-        String line;
-        while ((line = reader.readLine()) != null) {
+        parser.setStructuralIndexEnabled(Boolean.getBoolean(STRUCTURAL_INDEX_PROP_KEY));
+        final ParseErrorPolicy errorPolicy = ParseErrorPolicy.fromSystemProperties();
+        PipelineMetrics metrics = PipelineMetrics.get();
+        LogRecordHandler handler = new LogRecordHandler() {
+            public boolean handleLogRecord(LogRecord logRecord) {
+                errorPolicy.lineParsed();
+                ReplayRequest replayRequest = ReplayRequest.fromLogRecord(logRecord);
+                return replayRequest == null || dispatch(replayRequest, executor);
+            }
+            public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+                return errorPolicy.parseFailed(path, offset, line, e);
+            }
+        };
+        PipelineMetrics.ParseSpan span = (metrics != null) ? metrics.startParse(path, handler) : null;
+        try {
+            if (span != null) {
+                parser.parse(Channels.newChannel(span.countBytes(in)), Charset.defaultCharset(), span);
+            } else {
+                parser.parse(Channels.newChannel(in), Charset.defaultCharset(), handler);
+            }
+        } finally {
+            if (span != null) {
+                span.end();
+            }
+            errorPolicy.printSummary(System.err);
+            errorPolicy.close();
+        }
+    }
+    // 複数のファイルをリクエスト時刻の順にマージして再生計画に書き出す
+    private void compileMerged(String planPath) {
+        try {
+            ReplayPlanWriter writer = new ReplayPlanWriter(new File(planPath));
+            ParseErrorPolicy errorPolicy = ParseErrorPolicy.fromSystemProperties();
+            MergedRequestReader reader = new MergedRequestReader(paths, format,
+                    Boolean.getBoolean(STRUCTURAL_INDEX_PROP_KEY), domain, errorPolicy);
             try {
-                final LogRecord logRecord = parser.parseLine(line);
-                if (logRecord.getRequestTime() == null) {
-                    continue;
+                ReplayRequest replayRequest;
+                while ((replayRequest = reader.next()) != null) {
+                    writer.write(replayRequest);
                 }
-                if (settings == null) {
-                    prepareSettings(logRecord.getRequestTime());
+            } finally {
+                reader.close();
+                writer.close();
+                finishErrorPolicy(errorPolicy);
+            }
+            logger.debug("complete: " + writer.getEntryCount() + " requests");
+        } catch (IOException e) {
+            logger.warn("Error occurs while compiling files:" + Arrays.asList(paths) + " : " + e.getMessage(), e);
+        }
+    }
+    // 複数のファイルからリクエスト時刻の順にマージしながら読みだしてexecutorを使用して投げる
+    private void playMerged(ExecutorService executor) throws IOException {
+        ParseErrorPolicy errorPolicy = ParseErrorPolicy.fromSystemProperties();
+        MergedRequestReader reader = new MergedRequestReader(paths, format,
+                Boolean.getBoolean(STRUCTURAL_INDEX_PROP_KEY), domain, errorPolicy);
+        try {
+            ReplayRequest replayRequest;
+            while ((replayRequest = reader.next()) != null) {
+                if (!dispatch(replayRequest, executor)) {
+                    break;
                 }
-                executor.execute(new LogRecordPlayer(logRecord, settings));
-            } catch (LogParseException e) {
-                logger.warn("Parse Error in file:" + path + " : " + e.getMessage(), e);
             }
+        } finally {
+            reader.close();
+            finishErrorPolicy(errorPolicy);
+        }
+    }
+    // 読み込みスレッドと共有したParseErrorPolicyの集計結果を出力し、閉じる
+    private static void finishErrorPolicy(ParseErrorPolicy errorPolicy) {
+        synchronized (errorPolicy) {
+            errorPolicy.printSummary(System.err);
+            errorPolicy.close();
         }
     }
-    private synchronized void prepareSettings(Date requestTime) {
+    // 再生計画からリクエストを読みだしてexecutorを使用して投げる
+    private void playPlan(ExecutorService executor) throws IOException {
+        ReplayPlanReader reader = new ReplayPlanReader(new File(path), domain);
+        try {
+            ReplayRequest replayRequest;
+            while ((replayRequest = reader.next()) != null) {
+                if (!dispatch(replayRequest, executor)) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    // リクエストをexecutorに投げる。再生時間の上限を過ぎた場合は投げずにfalseを戻す
+    private boolean dispatch(ReplayRequest replayRequest, ExecutorService executor) {
+        if (settings == null) {
+            prepareSettings(replayRequest.getRequestTime());
+        }
+        if (timeLimit > 0 && (replayRequest.getRequestTime() - settings.recordOrigin)
+                * settings.rate >= timeLimit) {
+            return false;
+        }
+        executor.execute(new LogRecordPlayer(replayRequest, settings, httpClient, listenerGroup));
+        return true;
+    }
+    private synchronized void prepareSettings(long requestTime) {
         if (this.settings != null)  {
             return;
         }
         Date startDate = new Date();
         this.settings = new LogPlayerSettings(domain, rate,
-                startDate.getTime(), requestTime.getTime());
+                startDate.getTime(), requestTime);
+        if (listenerGroup != null) {
+            listenerGroup.replayStarted();
+        }
+    }
+    /**
+     * スレッド間で共有し、接続を使い回すHttpClientを生成する。
+     * @param maxConnections 最大接続数
+     * @return 生成したHttpClient
+     */
+    private static HttpClient createHttpClient(int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        return new DefaultHttpClient(connectionManager, params);
     }
     // すべてのタスクが終わるまで永久に待ち続ける
     private static void awaitTermination(final ExecutorService executor) {
@@ -99,6 +354,31 @@ public class LogPlayer {
         }.runWithoutLimit(300 * 1000L);
     }
 
+    /** 複数のリスナーにまとめて通知する為のもの */
+    private static class ListenerGroup implements ReplayListener {
+        private final ReplayListener[] listeners;
+
+        ListenerGroup(ReplayListener[] listeners) {
+            this.listeners = listeners;
+        }
+        public void replayStarted() {
+            for (ReplayListener listener : listeners) {
+                listener.replayStarted();
+            }
+        }
+        public void requestCompleted(ReplayRequest replayRequest, long lagMillis, long latencyMicros,
+                int status, long responseBytes) {
+            for (ReplayListener listener : listeners) {
+                listener.requestCompleted(replayRequest, lagMillis, latencyMicros, status, responseBytes);
+            }
+        }
+        public void replayFinished() {
+            for (ReplayListener listener : listeners) {
+                listener.replayFinished();
+            }
+        }
+    }
+
     private static Option buildOption(String opt, boolean hasArg, String argName, boolean required, String description) {
         Option option = new Option(opt, hasArg, description);
         option.setArgName(argName);
@@ -109,7 +389,14 @@ public class LogPlayer {
         Options options = new Options();
         options.addOption(buildOption("d", true, "domain name", false, "リクエストを送信するドメイン名(省略時はlocalhost)"));
         options.addOption(buildOption("r", true, "rate", false, "速度指定。倍速なら0.5を指定する。(省略時は1)"));
-        options.addOption(buildOption("f", true, "file name", true, "ログファイル指定。(\"-\"指定時は標準入力を使用)"));
+        Option fileOption = buildOption("f", true, "file name", true, "ログファイルまたは再生計画の指定。(\"-\"指定時は標準入力を使用)"
+                + "複数指定時はリクエスト時刻の順にマージして再生する。拡張子が.gzのファイルはgzipとして読み込む");
+        fileOption.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(fileOption);
+        options.addOption(buildOption("v", false, null, false, "応答のステータスとサイズをログと比較し、不一致率をパスとステータスごとに出力する"));
+        options.addOption(buildOption("l", false, null, false, "ログに記録された処理時間(%D)と再生時の応答時間をパーセンタイルごとに比較して出力する"));
+        options.addOption(buildOption("p", true, "plan file", false, "再生せず、-fのログを再生計画にコンパイルして指定ファイルに書き出す"));
+        options.addOption(buildOption("c", true, "seconds", false, "限界性能探索モード。指定秒数ずつ速度を変えて再生し、SLOを満たす最大の速度を探す"));
         CommandLineParser parser = new BasicParser();
         CommandLine commandLine = null;
         try {
@@ -122,7 +409,7 @@ public class LogPlayer {
             help.printHelp("java " + LogPlayer.class.getName(), options, true);
             return;
         }
-        String path = commandLine.getOptionValue("f");
+        String[] paths = commandLine.getOptionValues("f");
         String domain = commandLine.getOptionValue("d", DEFAULT_HOST);
         double rate = 1;
         try {
@@ -130,7 +417,38 @@ public class LogPlayer {
         } catch(NumberFormatException e) {
             
         }
-        LogPlayer logPlayer = new LogPlayer(path, domain, rate);
+        if (commandLine.hasOption("p")) {
+            new LogPlayer(paths, domain, rate).compile(commandLine.getOptionValue("p"));
+            return;
+        }
+        if (commandLine.hasOption("c")) {
+            long stepSeconds = CapacitySearch.DEFAULT_STEP_SECONDS;
+            try {
+                stepSeconds = Long.parseLong(commandLine.getOptionValue("c"));
+            } catch(NumberFormatException e) {
+                
+            }
+            new CapacitySearch(paths, domain, rate, stepSeconds * 1000).search();
+            return;
+        }
+        LogPlayer logPlayer = new LogPlayer(paths, domain, rate);
+        ResponseVerification verification = null;
+        if (commandLine.hasOption("v")) {
+            verification = new ResponseVerification();
+            logPlayer.addListener(verification);
+        }
+        LatencyComparison latencyComparison = null;
+        if (commandLine.hasOption("l")) {
+            latencyComparison = new LatencyComparison();
+            logPlayer.addListener(latencyComparison);
+        }
         logPlayer.play();
+        if (verification != null) {
+            verification.printReport(System.out);
+        }
+        if (latencyComparison != null) {
+            latencyComparison.printReport(System.out);
+        }
+        PipelineMetrics.finishIfEnabled();
     }
 }
\ No newline at end of file
@@ -1,31 +1,80 @@
 package sample.custom_log.tools;
 
+import static sample.custom_log.tools.Constants.BLOCK_INDEX_PROP_KEY;
+import static sample.custom_log.tools.Constants.BLOCK_INDEX_SIZE_PROP_KEY;
 import static sample.custom_log.tools.Constants.CUSTOM_LOG_FORMAT_PROP_KEY;
 import static sample.custom_log.tools.Constants.LOG_FORMAT;
+import static sample.custom_log.tools.Constants.PATH_CACHE_SIZE_PROP_KEY;
+import static sample.custom_log.tools.Constants.PATH_PATTERNS_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_CACHE_DIR_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_OUTPUT_FORMAT_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_OUTPUT_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_SAMPLE_BLOCK_SIZE_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_SAMPLE_RATE_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_SAMPLE_SEED_PROP_KEY;
+import static sample.custom_log.tools.Constants.STRUCTURAL_INDEX_PROP_KEY;
+import static sample.custom_log.tools.Constants.TIME_ZONE_PROP_KEY;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.josql.Query;
 import org.josql.QueryExecutionException;
 import org.josql.QueryParseException;
 import org.josql.QueryResults;
+import org.josql.expressions.Accessor;
+import org.josql.expressions.Expression;
+import org.josql.expressions.SelectItemExpression;
 
 import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParseException.Reason;
 import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
 import sample.custom_log.core.LogRecord;
+import sample.custom_log.core.PathNormalizer;
+import sample.custom_log.tools.QueryResultCache.Change;
+import sample.custom_log.tools.QueryResultCache.Entry;
+import sample.custom_log.tools.QueryResultCache.FileState;
+import sample.custom_log.tools.ResultWriter.Format;
 import sample.custom_log.util.DateFunctionHandler;
+import sample.custom_log.util.PathFunctionHandler;
+import sample.custom_log.util.StatisticsFunctionHandler;
 
-/** JoSQLを使用してApacheのアクセスログを処理するクラス */
+/**
+ * JoSQLを使用してApacheのアクセスログを処理するクラス。
+ * システムプロパティcustom_log.query.cache_dirを指定した場合は結果をキャッシュする(QueryResultCache)。
+ * 結果はResultWriterで、custom_log.query.output_formatの書式(tsv、csv、jsonl、binary。省略時はtsv)で
+ * custom_log.query.outputのファイル(省略時は標準出力)に書き出す。
+ * custom_log.query.sample_rateを指定した場合は、ログの一部のブロックだけを読み込んで結果を推定する(executeSampled())。
+ * custom_log.query.block_indexがtrueの場合は、ブロックごとの索引(BlockIndex)でwhere句に一致し得ないブロックを読み飛ばす。
+ * custom_log.metricsがtrueの場合は、パース、クエリの評価、書き出しの件数と時間を集計して出力する(PipelineMetrics)。
+ */
 public class LogQuery {
+    /** 行ごとに独立したクエリを、読み込みと並行して実行する単位(LogRecordの件数) */
+    private static final int STREAM_CHUNK_SIZE = 10000;
+    private static Log logger = LogFactory.getLog(LogQuery.class);
+    private String queryString;
     private String[] paths;
-    private Query query = new Query();
-    private QueryResults queryResults;
+    private Query query;
+    /** 出力する結果の各行 */
+    private List<Object> resultRows;
 
     public static void main(String[] args) {
         if (args.length < 2) {
@@ -37,17 +86,95 @@ public class LogQuery {
         String query = args[0];
         String[] paths = new String[args.length - 1];
         System.arraycopy(args, 1, paths, 0, paths.length);
+        if (!checkOutputFormat()) {
+            System.exit(-1);
+        }
         
-        LogQuery logQuery;
+        configurePathNormalizer();
+        int exitStatus = 0;
+        ResultWriter writer = null;
         try {
-            logQuery = new LogQuery(query, paths);
-            logQuery.execute();
-            logQuery.printResults();
+            LogQuery logQuery = new LogQuery(query, paths);
+            writer = createResultWriter();
+            logQuery.execute(writer);
         } catch (QueryParseException e) {
             e.printStackTrace();
         } catch (QueryExecutionException e) {
             e.printStackTrace();
+        } catch (LogParseException e) {
+            System.err.println(e.getMessage());
+            exitStatus = -1;
+        } catch (IOException e) {
+            System.err.println("Failed to write results: " + e.getMessage());
+            exitStatus = -1;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to write results: " + e.getMessage());
+                    exitStatus = -1;
+                }
+            }
+            PipelineMetrics.finishIfEnabled();
+        }
+        if (exitStatus != 0) {
+            System.exit(exitStatus);
+        }
+    }
+    /**
+     * システムプロパティ(custom_log.path.*)の設定に従って、normalizedPathとnormalize_path()で
+     * 使用するPathNormalizerを設定する。
+     */
+    static void configurePathNormalizer() {
+        PathNormalizer.setDefault(PathNormalizer.parse(System.getProperty(PATH_PATTERNS_PROP_KEY),
+                Integer.getInteger(PATH_CACHE_SIZE_PROP_KEY, PathNormalizer.DEFAULT_CACHE_SIZE)));
+    }
+    /**
+     * システムプロパティ(custom_log.query.output_format)で指定された書式を取得する。省略時はTSV。
+     * @return 書式。不明な書式の場合はnull
+     */
+    static Format outputFormat() {
+        String formatName = System.getProperty(QUERY_OUTPUT_FORMAT_PROP_KEY, Format.TSV.name());
+        try {
+            return Format.valueOf(formatName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    /**
+     * 指定された書式が不明な場合は、使用できる書式とともにエラーを標準エラー出力に出力する。
+     * 結果を書き出し始める前(出力先のファイルを開く前)に呼び出す。
+     * @return 書式が正しい場合はtrue
+     */
+    static boolean checkOutputFormat() {
+        if (outputFormat() != null) {
+            return true;
+        }
+        StringBuilder names = new StringBuilder();
+        for (Format format : Format.values()) {
+            names.append((names.length() == 0) ? "" : ", ").append(format.name().toLowerCase());
+        }
+        System.err.println("Error: Unknown output format: " + System.getProperty(QUERY_OUTPUT_FORMAT_PROP_KEY)
+                + " (" + names + ")");
+        return false;
+    }
+    /**
+     * システムプロパティの設定に従ってResultWriterを生成する。
+     * 標準出力の場合もSystem.outは使わず(同期と自動フラッシュを避けるため)、直接書き出す。
+     * @return 生成したResultWriter
+     * @throws IOException 出力先のファイルを開けない場合の例外
+     */
+    static ResultWriter createResultWriter() throws IOException {
+        Format format = outputFormat();
+        if (format == null) {
+            throw new IllegalArgumentException("Unknown output format: "
+                    + System.getProperty(QUERY_OUTPUT_FORMAT_PROP_KEY));
         }
+        String output = System.getProperty(QUERY_OUTPUT_PROP_KEY);
+        OutputStream out = (output == null)
+                ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output);
+        return ResultWriter.create(format, out);
     }
     /**
      * @param queryString クエリ文字列
@@ -60,115 +187,589 @@ public class LogQuery {
         if (paths == null || paths.length == 0) {
             throw new IllegalArgumentException("paths is empty.");
         }
-        this.query.addFunctionHandler(new DateFunctionHandler());
-
-        this.query.parse(queryString);
+        this.query = parseQuery(queryString);
+        this.queryString = queryString;
         this.paths = paths.clone();
     }
-    /** クエリを実行する */
-    public void execute() throws QueryExecutionException {
-        List<LogRecord> records = readLogs();
-        this.queryResults = this.query.execute(records);
+    /**
+     * LogQueryで使用する関数を登録したQueryを生成し、クエリ文字列を解析する。
+     * 日付の関数はシステムプロパティcustom_log.time_zoneのタイムゾーン(省略時はデフォルト)を使用する。
+     * @param queryString クエリ文字列
+     * @return 解析済みのQuery
+     */
+    static Query parseQuery(String queryString) throws QueryParseException {
+        Query query = new Query();
+        query.addFunctionHandler(new DateFunctionHandler(queryTimeZone()));
+        query.addFunctionHandler(new StatisticsFunctionHandler());
+        query.addFunctionHandler(new PathFunctionHandler());
+        query.parse(queryString);
+        return query;
+    }
+    /**
+     * クエリを実行し、結果をwriterに書き出す。
+     * キャッシュを使用しない場合、行ごとに独立したクエリ(isRowIndependent())であれば
+     * STREAM_CHUNK_SIZE件読み込むごとに実行し、全体の読み込みを待たずに結果を書き出し始める。
+     * その場合、パースエラー率が上限を超えた時点で、それまでの結果は書き出し済みとなる。
+     * @param writer 結果の書き出し先(閉じない)
+     * @throws LogParseException パースエラー率がcustom_log.error.max_rateを超えた場合の例外
+     * @throws IOException 結果の書き出し時のIO例外
+     */
+    public void execute(ResultWriter writer) throws QueryExecutionException, LogParseException, IOException {
+        if (System.getProperty(QUERY_CACHE_DIR_PROP_KEY) == null
+                && System.getProperty(QUERY_SAMPLE_RATE_PROP_KEY) == null && isRowIndependent()) {
+            executeInChunks(writer);
+            return;
+        }
+        execute();
+        writeResults(writer);
+    }
+    /**
+     * 結果の各行が他の行に依存しないクエリ(入力を分けて実行した結果を連結すると、全体を実行した
+     * 結果と一致するクエリ)か判定する。選択する列がプロパティのみ(または「*」)で、
+     * where句に関数や括弧を含まず、group by、having、order by、limit、distinctを含まない場合とする。
+     * @return 行ごとに独立したクエリであればtrue
+     */
+    private boolean isRowIndependent() {
+        if (query.getGroupByColumns() != null || query.getHavingClause() != null || query.getLimit() != null
+                || queryString.contains(":_")
+                || AggregateMerger.containsKeyword(queryString, new String[] {"ORDER", "LIMIT", "DISTINCT"})) {
+            return false;
+        }
+        Expression where = query.getWhereClause();
+        if (where != null && where.toString().contains("(")) {
+            return false;
+        }
+        for (Object column : query.getColumns()) {
+            if (!(((SelectItemExpression) column).getExpression() instanceof Accessor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // 読み込みと並行してSTREAM_CHUNK_SIZE件ごとにクエリを実行し、結果を書き出す
+    private void executeInChunks(ResultWriter writer)
+            throws QueryExecutionException, LogParseException, IOException {
+        LogParser parser = createParser();
+        ParseErrorPolicy errorPolicy = createErrorPolicy();
+        BlockFilter blockFilter = createBlockFilter();
+        try {
+            for (String path : this.paths) {
+                ChunkExecutor executor = new ChunkExecutor(path, errorPolicy, writer);
+                try {
+                    readFile(path, parser, blockFilter, executor);
+                } catch (IOException e) {
+                    System.err.println("Read Error in file:" + path + " : " + e.getMessage());
+                }
+                executor.finish();
+                if (errorPolicy.isAborted()) {
+                    break;
+                }
+            }
+        } finally {
+            finishErrorPolicy(errorPolicy);
+        }
+        checkAborted(errorPolicy);
+    }
+    /**
+     * クエリを実行する。結果はprintResults()で出力する。
+     * @throws LogParseException パースエラー率がcustom_log.error.max_rateを超えた場合の例外
+     */
+    public void execute() throws QueryExecutionException, LogParseException {
+        String sampleRate = System.getProperty(QUERY_SAMPLE_RATE_PROP_KEY);
+        if (sampleRate != null) {
+            executeSampled(Double.parseDouble(sampleRate));
+            return;
+        }
+        String cacheDirectory = System.getProperty(QUERY_CACHE_DIR_PROP_KEY);
+        if (cacheDirectory != null) {
+            try {
+                executeWithCache(new QueryResultCache(new File(cacheDirectory)));
+                return;
+            } catch (IOException e) {
+                System.err.println("Query cache is not available: " + e.getMessage());
+            }
+        }
+        List<LogRecord> records = readLogs(null, null);
+        this.resultRows = rowsOf(executeQuery(records));
+    }
+    /**
+     * クエリを評価する。PipelineMetricsが有効な場合は評価の時間を計測する。
+     * @param records 評価するLogRecordのリスト
+     * @return クエリの結果
+     */
+    private QueryResults executeQuery(List<LogRecord> records) throws QueryExecutionException {
+        PipelineMetrics metrics = PipelineMetrics.get();
+        if (metrics == null) {
+            return this.query.execute(records);
+        }
+        PipelineMetrics.Span span = metrics.start(PipelineMetrics.Stage.QUERY);
+        QueryResults queryResults = this.query.execute(records);
+        span.endQuery(records.size(), queryResults.getResults().size());
+        return queryResults;
+    }
+    // 日付の関数で使用するタイムゾーン。custom_log.time_zoneの指定がなければデフォルト
+    private static TimeZone queryTimeZone() {
+        String timeZone = System.getProperty(TIME_ZONE_PROP_KEY);
+        return (timeZone == null) ? TimeZone.getDefault() : TimeZone.getTimeZone(timeZone);
+    }
+    /**
+     * クエリの結果に影響する、ログフォーマット以外の設定を結果のキャッシュのキーに含める文字列にする。
+     * 日付の関数のタイムゾーン(指定がない場合のデフォルトを含む)、ログを読み込む文字コード、
+     * normalizedPathとnormalize_path()で使用するパスの正規化の設定(configurePathNormalizer())を含む。
+     * @return 設定を表す文字列
+     */
+    static String querySettings() {
+        String pathPatterns = System.getProperty(PATH_PATTERNS_PROP_KEY);
+        return "time_zone=" + queryTimeZone().getID() + "\ncharset=" + Charset.defaultCharset().name()
+                + "\npath_patterns=" + ((pathPatterns == null) ? "" : pathPatterns)
+                + "\npath_cache_size="
+                + Integer.getInteger(PATH_CACHE_SIZE_PROP_KEY, PathNormalizer.DEFAULT_CACHE_SIZE);
+    }
+    /**
+     * 保存した結果を利用してクエリを実行する。
+     * 入力ファイルが変わっていなければ保存した結果を使い、追記のみでクエリがマージできる場合は
+     * 追記された部分だけを読み込んでマージする。それ以外は全体を読み込んで実行し、結果を保存する。
+     * @param cache 結果の保存先
+     * @throws IOException 入力ファイルの状態を取得できない場合、保存した結果を読み込めない場合の例外
+     */
+    private void executeWithCache(QueryResultCache cache)
+            throws IOException, QueryExecutionException, LogParseException {
+        String format = System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT);
+        String key = QueryResultCache.keyOf(queryString, format, querySettings(), paths);
+        List<FileState> fileStates = new ArrayList<FileState>(paths.length);
+        for (String path : paths) {
+            fileStates.add(FileState.of(path));
+        }
+        AggregateMerger merger = AggregateMerger.forQuery(query, queryString);
+        Entry entry = cache.load(key);
+        long[] starts = new long[paths.length];
+        long[] ends = new long[paths.length];
+        for (int index = 0; index < paths.length; index++) {
+            ends[index] = fileStates.get(index).getProcessedLength();
+        }
+        if (entry != null) {
+            boolean unchanged = true;
+            boolean appendable = merger != null && entry.getGroups() != null;
+            for (int index = 0; index < paths.length; index++) {
+                Change change = fileStates.get(index).compareTo(entry.getFiles().get(index));
+                unchanged &= change == Change.UNCHANGED;
+                appendable &= change != Change.CHANGED;
+                starts[index] = entry.getFiles().get(index).getProcessedLength();
+            }
+            if (unchanged) {
+                this.resultRows = (entry.getGroups() != null)
+                        ? AggregateMerger.rowsOf(entry.getGroups()) : entry.getRows();
+                return;
+            }
+            if (appendable) {
+                Map<List<Object>, List<Object>> groups = entry.getGroups();
+                List<LogRecord> records = readLogs(starts, ends);
+                if (!records.isEmpty()) {
+                    merger.merge(groups, merger.groupsOf(executeQuery(records)));
+                }
+                this.resultRows = AggregateMerger.rowsOf(groups);
+                storeEntry(cache, Entry.ofGroups(key, fileStates, groups));
+                return;
+            }
+            Arrays.fill(starts, 0);
+        }
+        QueryResults queryResults = executeQuery(readLogs(starts, ends));
+        if (merger != null) {
+            Map<List<Object>, List<Object>> groups = merger.groupsOf(queryResults);
+            this.resultRows = AggregateMerger.rowsOf(groups);
+            storeEntry(cache, Entry.ofGroups(key, fileStates, groups));
+        } else {
+            this.resultRows = rowsOf(queryResults);
+            storeEntry(cache, Entry.ofRows(key, fileStates, this.resultRows));
+        }
+    }
+    /**
+     * ログファイルのブロックをrateの確率で選び(BlockSample)、選んだブロックだけを読み込んでクエリを実行する。
+     * AggregateMergerでマージできるgroup byのクエリは、ブロックごとに実行した結果から全体の値を推定し、
+     * count、sumの列の後に95%信頼区間の半幅の列を追加する。それ以外のクエリは、選んだブロックの
+     * LogRecordに対して実行した結果をそのまま戻す(件数等は全体の値に換算しない)。
+     * @param rate ブロックを選ぶ確率(0～1)
+     */
+    private void executeSampled(double rate) throws QueryExecutionException, LogParseException {
+        long seed = Long.getLong(QUERY_SAMPLE_SEED_PROP_KEY, 0);
+        int blockSize = Integer.getInteger(QUERY_SAMPLE_BLOCK_SIZE_PROP_KEY, BlockSample.DEFAULT_BLOCK_SIZE);
+        BlockSample sample;
+        try {
+            sample = BlockSample.select(paths, rate, seed, blockSize);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to sample: " + e.getMessage(), e);
+        }
+        System.err.println("Sampled " + sample.getBlocks().size() + " of " + sample.getTotalBlocks()
+                + " blocks (" + sample.getSampledBytes() + " of " + sample.getTotalBytes() + " bytes)");
+        AggregateMerger merger = AggregateMerger.forQuery(query, queryString);
+        if (merger == null) {
+            System.err.println("The query cannot be estimated; results are computed on the sample only.");
+        }
+        LogParser parser = createParser();
+        ParseErrorPolicy errorPolicy = createErrorPolicy();
+        List<Map<List<Object>, List<Object>>> blockGroups = new ArrayList<Map<List<Object>, List<Object>>>();
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        try {
+            for (BlockSample.Block block : sample.getBlocks()) {
+                if (merger != null) {
+                    records.clear();
+                }
+                try {
+                    if (block.getStart() < block.getEnd()) {
+                        readLog(block.getPath(), block.getStart(), block.getEnd(), parser,
+                                new RecordCollector(block.getPath(), records, errorPolicy));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Read Error in file:" + block.getPath() + " : " + e.getMessage());
+                }
+                if (errorPolicy.isAborted()) {
+                    break;
+                }
+                if (merger != null) {
+                    // 空のブロックも、値0のブロックとして推定に含める
+                    blockGroups.add(records.isEmpty() ? new HashMap<List<Object>, List<Object>>()
+                            : merger.groupsOf(executeQuery(records)));
+                }
+            }
+        } finally {
+            finishErrorPolicy(errorPolicy);
+        }
+        checkAborted(errorPolicy);
+        if (merger == null) {
+            this.resultRows = rowsOf(executeQuery(records));
+        } else if (blockGroups.isEmpty()) {
+            this.resultRows = new ArrayList<Object>();
+        } else {
+            this.resultRows = merger.estimate(blockGroups, sample.getTotalBlocks());
+        }
+    }
+    // 結果を保存する。失敗しても結果の出力は続ける
+    private static void storeEntry(QueryResultCache cache, Entry entry) {
+        try {
+            cache.store(entry);
+        } catch (IOException e) {
+            System.err.println("Failed to store query cache: " + e.getMessage());
+        }
     }
 
     /**
      * pathsに設定されたパスからApacheのログファイルを読み込む。
+     * パースエラーはシステムプロパティ(custom_log.error.*)の設定に従って扱う。
+     * @param starts ファイルごとの読み込み開始位置(バイト)。nullの場合は全体を読み込む
+     * @param ends ファイルごとの読み込み終了位置(バイト)
      * @return 読み込んだログの内容を含むLogRecordのリスト
+     * @throws LogParseException パースエラー率が上限を超えた場合の例外
      */
-    private List<LogRecord> readLogs() {
-        String format = System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT);
-        LogParser parser = new LogParser(format);
+    private List<LogRecord> readLogs(long[] starts, long[] ends) throws LogParseException {
+        LogParser parser = createParser();
+        ParseErrorPolicy errorPolicy = createErrorPolicy();
+        BlockFilter blockFilter = (starts == null) ? createBlockFilter() : null;
         List<LogRecord> records = new ArrayList<LogRecord>();
-        for (String path: this.paths) {
-            List<LogRecord> recordsForFile;
-            try {
-                recordsForFile = readLog(path, parser);
-                records.addAll(recordsForFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.err.println("Read Error in file:" + path + " : " + e.getMessage());
+        try {
+            for (int index = 0; index < this.paths.length; index++) {
+                String path = this.paths[index];
+                RecordCollector collector = new RecordCollector(path, records, errorPolicy);
+                try {
+                    if (starts == null) {
+                        readFile(path, parser, blockFilter, collector);
+                    } else if (starts[index] < ends[index]) {
+                        readLog(path, starts[index], ends[index], parser, collector);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Read Error in file:" + path + " : " + e.getMessage());
+                }
+                if (errorPolicy.isAborted()) {
+                    break;
+                }
             }
+        } finally {
+            finishErrorPolicy(errorPolicy);
         }
+        checkAborted(errorPolicy);
         return records;
     }
+    // custom_log.query.block_indexがtrueの場合、where句からBlockFilterを生成する。使える条件がなければnull
+    private BlockFilter createBlockFilter() {
+        return Boolean.getBoolean(BLOCK_INDEX_PROP_KEY) ? BlockFilter.of(this.query) : null;
+    }
+    /**
+     * 1ファイルからログを読み込む。blockFilterを指定した場合は、索引(BlockIndex)を更新した上で
+     * 条件に一致し得ないブロックを読み飛ばす。索引化されていない末尾は全て読み込む。
+     * @param path ファイルパス
+     * @param parser パーサー
+     * @param blockFilter 読み込むブロックの判定。nullの場合は全体を読み込む
+     * @param handler 読み込んだLogRecordを処理するLogRecordHandler
+     * @throws IOException ファイル読み込み時のIO例外
+     */
+    private static void readFile(String path, LogParser parser, BlockFilter blockFilter, LogRecordHandler handler)
+            throws IOException {
+        if (blockFilter == null) {
+            readLog(path, parser, handler);
+            return;
+        }
+        BlockIndex blockIndex = BlockIndex.update(path,
+                Integer.getInteger(BLOCK_INDEX_SIZE_PROP_KEY, BlockIndex.DEFAULT_BLOCK_SIZE), parser);
+        int readCount = 0;
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        for (BlockIndex.Block block : blockIndex.getBlocks()) {
+            if (!blockFilter.mayMatch(block)) {
+                continue;
+            }
+            readCount++;
+            // 連続するブロックはまとめて読み込む
+            if (block.getStart() != rangeEnd) {
+                if (rangeStart < rangeEnd) {
+                    readLog(path, rangeStart, rangeEnd, parser, handler);
+                }
+                rangeStart = block.getStart();
+            }
+            rangeEnd = block.getEnd();
+        }
+        if (rangeStart < rangeEnd) {
+            readLog(path, rangeStart, rangeEnd, parser, handler);
+        }
+        long length = new File(path).length();
+        if (blockIndex.getIndexedLength() < length) {
+            readLog(path, blockIndex.getIndexedLength(), length, parser, handler);
+        }
+        logger.debug("Block index: read " + readCount + " of " + blockIndex.getBlocks().size()
+                + " blocks in " + path);
+    }
+    // システムプロパティの設定に従ってLogParserを生成する
+    static LogParser createParser() {
+        String format = System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT);
+        LogParser parser = new LogParser(format);
+        parser.setStructuralIndexEnabled(Boolean.getBoolean(STRUCTURAL_INDEX_PROP_KEY));
+        return parser;
+    }
+    // システムプロパティ(custom_log.error.*)の設定に従ってParseErrorPolicyを生成する
+    static ParseErrorPolicy createErrorPolicy() {
+        try {
+            return ParseErrorPolicy.fromSystemProperties();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to open reject file: " + e.getMessage(), e);
+        }
+    }
+    // パースエラーの集計結果を出力し、リジェクトファイルを閉じる
+    static void finishErrorPolicy(ParseErrorPolicy errorPolicy) {
+        errorPolicy.printSummary(System.err);
+        errorPolicy.close();
+    }
+    // パースエラー率が上限を超えていれば例外を投げる
+    static void checkAborted(ParseErrorPolicy errorPolicy) throws LogParseException {
+        if (errorPolicy.isAborted()) {
+            throw new LogParseException(Reason.TOO_MANY_ERRORS, "Too many parse errors: "
+                    + errorPolicy.getErrorCount() + " of " + errorPolicy.getLineCount() + " lines");
+        }
+    }
     /**
      * 1ファイルからログを読み込む
      * @param path ファイルパス
      * @param parser パーサー
-     * @return 読み込んだログの内容を含むLogRecordのリスト
+     * @param handler 読み込んだLogRecordを処理するLogRecordHandler
      * @throws IOException ファイル読み込み時のIO例外
      */
-    private List<LogRecord> readLog(String path, LogParser parser) throws IOException {
-        List<LogRecord> records = new ArrayList<LogRecord>();
-        FileReader fileReader = new FileReader(path);
+    private static void readLog(String path, LogParser parser, LogRecordHandler handler) throws IOException {
+        PipelineMetrics metrics = PipelineMetrics.get();
+        PipelineMetrics.ParseSpan span = (metrics != null) ? metrics.startParse(path, handler) : null;
+        FileInputStream in = new FileInputStream(path);
         try {
-            BufferedReader reader = new BufferedReader(fileReader);
-            int lineNumber = 0;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lineNumber++;
-                try {
-                    LogRecord logRecord = parser.parseLine(line);
-                    records.add(logRecord);
-                } catch (LogParseException e) {
-                    e.printStackTrace();
-                    System.err.println("Parse Error at line:" + lineNumber +
-                            " in file:" + path + " : " + e.getMessage());
-                }
+            if (span != null) {
+                parser.parse(Channels.newChannel(span.countBytes(in)), Charset.defaultCharset(), span);
+            } else {
+                parser.parse(in.getChannel(), Charset.defaultCharset(), handler);
             }
-            return records;
         } finally {
-            fileReader.close();
+            in.close();
+            if (span != null) {
+                span.end();
+            }
         }
     }
     /**
-     * 結果出力をおこなう
+     * 1ファイルのstart～endの範囲からログを読み込む。
+     * パースエラーの行の位置はファイルの先頭からのバイト数で渡す(行番号は範囲の先頭を1行目として数える)。
+     * @param path ファイルパス
+     * @param start 読み込み開始位置(行の先頭であること)
+     * @param end 読み込み終了位置
+     * @param parser パーサー
+     * @param handler 読み込んだLogRecordを処理するLogRecordHandler
+     * @throws IOException ファイル読み込み時のIO例外
      */
-    public void printResults() {
-        Map groupByResults = this.queryResults.getGroupByResults();
-        if (groupByResults == null) {
-            printQueryResults(this.queryResults.getResults());
-        } else {
-            printGroupByResults(this.queryResults.getResults(), groupByResults);
+    static void readLog(String path, long start, final long end, LogParser parser,
+            LogRecordHandler handler) throws IOException {
+        PipelineMetrics metrics = PipelineMetrics.get();
+        PipelineMetrics.ParseSpan span = (metrics != null) ? metrics.startParse(path, handler) : null;
+        FileInputStream in = new FileInputStream(path);
+        try {
+            final FileChannel channel = in.getChannel();
+            final PipelineMetrics.ParseSpan countingSpan = span;
+            channel.position(start);
+            // endまでで読み込みを終えるチャネル
+            ReadableByteChannel rangeChannel = new ReadableByteChannel() {
+                public int read(ByteBuffer dst) throws IOException {
+                    long remaining = end - channel.position();
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int limit = dst.limit();
+                    if (dst.remaining() > remaining) {
+                        dst.limit(dst.position() + (int) remaining);
+                    }
+                    try {
+                        int count = channel.read(dst);
+                        if (countingSpan != null && count > 0) {
+                            countingSpan.addBytes(count);
+                        }
+                        return count;
+                    } finally {
+                        dst.limit(limit);
+                    }
+                }
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+            parser.parse(rangeChannel, Charset.defaultCharset(), start, (span != null) ? span : handler);
+        } finally {
+            in.close();
+            if (span != null) {
+                span.end();
+            }
         }
     }
     /**
-     * 通常の結果出力をおこなう
-     * @param results 結果リスト
+     * クエリの結果から、出力する行の一覧を取り出す。group byの場合は、グループごとに先頭の行を取り出す。
+     * @param queryResults クエリの結果
+     * @return 結果の各行
      */
-    private void printQueryResults(List results) {
-        for (Object o: results) {
-            printSingleResult(o);
+    static List<Object> rowsOf(QueryResults queryResults) {
+        Map<?, ?> groupByResults = queryResults.getGroupByResults();
+        if (groupByResults == null) {
+            return new ArrayList<Object>((List<?>) queryResults.getResults());
+        }
+        // group by order、group by limitはgetResults()のグループの並びにだけ反映され、
+        // Queryからは指定の有無を取得できないため、getGroupByResults()を直接たどらずに並びの順に引く
+        List<Object> rows = new ArrayList<Object>();
+        for (Object groupItem: queryResults.getResults()) {
+            List<?> eachResults = (List<?>) groupByResults.get(groupItem);
+            rows.add(eachResults.isEmpty() ? "" : eachResults.get(0));
         }
+        return rows;
     }
     /**
-     * group by 使用時の結果出力をおこなう
-     * @param results 結果リスト
-     * @param groupByResults QueryResultsから取得したgroup byの結果
+     * execute()の結果をタブ区切りで標準出力(System.out)に出力する
      */
-    private void printGroupByResults(List results, Map groupByResults) {
-        for (Object groupItem: results) {
-            List eachResults = (List) groupByResults.get(groupItem);
-            printSingleResult(eachResults.isEmpty() ? "" : eachResults.get(0));
+    public void printResults() {
+        try {
+            ResultWriter writer = ResultWriter.create(Format.TSV, System.out);
+            writeResults(writer);
+            writer.flush();
+        } catch (IOException e) {
+            // System.outへの書き出しでは発生しない
+            throw new IllegalStateException(e);
         }
     }
+    // execute()の結果をwriterに書き出す
+    private void writeResults(ResultWriter writer) throws IOException {
+        PipelineMetrics metrics = PipelineMetrics.get();
+        PipelineMetrics.Span span = (metrics != null) ? metrics.start(PipelineMetrics.Stage.OUTPUT) : null;
+        for (Object row: this.resultRows) {
+            writer.writeRow(row);
+        }
+        if (span != null) {
+            span.endOutput(this.resultRows.size());
+        }
+    }
+
     /**
-     * 一行分のオブジェクトを出力する。
-     * Listなら要素をタブ区切りで、そうでない場合はtoString()の結果を書き出す。
-     * @param resultObject 出力するオブジェクト
+     * パースしたLogRecordをSTREAM_CHUNK_SIZE件ごとにクエリで処理し、結果を書き出すLogRecordHandler。
+     * コールバック内で発生した例外は読み込みを中止した上でfinish()で投げる。
      */
-    private void printSingleResult(Object resultObject) {
-        if (resultObject instanceof List) {
-            Iterator it = ((List) resultObject).iterator();
-            while (it.hasNext()) {
-                System.out.print(it.next());
-                if (it.hasNext()) {
-                    System.out.print("\t");
-                }
+    private class ChunkExecutor extends RecordCollector {
+        private final List<LogRecord> chunk;
+        private final ResultWriter writer;
+        private QueryExecutionException queryException = null;
+        private IOException writeException = null;
+
+        ChunkExecutor(String path, ParseErrorPolicy errorPolicy, ResultWriter writer) {
+            this(path, new ArrayList<LogRecord>(STREAM_CHUNK_SIZE), errorPolicy, writer);
+        }
+        private ChunkExecutor(String path, List<LogRecord> chunk, ParseErrorPolicy errorPolicy,
+                ResultWriter writer) {
+            super(path, chunk, errorPolicy);
+            this.chunk = chunk;
+            this.writer = writer;
+        }
+        public boolean handleLogRecord(LogRecord logRecord) {
+            super.handleLogRecord(logRecord);
+            if (chunk.size() < STREAM_CHUNK_SIZE) {
+                return true;
             }
-            System.out.println();
-        } else {
-            System.out.println(resultObject.toString());
+            try {
+                executeChunk();
+                return true;
+            } catch (QueryExecutionException e) {
+                queryException = e;
+            } catch (IOException e) {
+                writeException = e;
+            }
+            return false;
+        }
+        /**
+         * 残りのLogRecordを処理し、コールバック内で発生した例外があれば投げる。
+         */
+        void finish() throws QueryExecutionException, IOException {
+            if (queryException != null) {
+                throw queryException;
+            }
+            if (writeException != null) {
+                throw writeException;
+            }
+            executeChunk();
+        }
+        private void executeChunk() throws QueryExecutionException, IOException {
+            if (chunk.isEmpty()) {
+                return;
+            }
+            QueryResults queryResults = executeQuery(chunk);
+            PipelineMetrics metrics = PipelineMetrics.get();
+            PipelineMetrics.Span span = (metrics != null) ? metrics.start(PipelineMetrics.Stage.OUTPUT) : null;
+            long rowCount = 0;
+            for (Object row : queryResults.getResults()) {
+                writer.writeRow(row);
+                rowCount++;
+            }
+            writer.flush();
+            if (span != null) {
+                span.endOutput(rowCount);
+            }
+            chunk.clear();
+        }
+    }
+
+    /** パースしたLogRecordを複製してListに追加するLogRecordHandler */
+    static class RecordCollector implements LogRecordHandler {
+        private final String path;
+        private final List<LogRecord> records;
+        private final ParseErrorPolicy errorPolicy;
+
+        RecordCollector(String path, List<LogRecord> records, ParseErrorPolicy errorPolicy) {
+            this.path = path;
+            this.records = records;
+            this.errorPolicy = errorPolicy;
+        }
+        public boolean handleLogRecord(LogRecord logRecord) {
+            errorPolicy.lineParsed();
+            records.add(logRecord.copy());
+            return true;
+        }
+        public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+            return errorPolicy.parseFailed(path, offset, line, e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.QUERY_OUTPUT_FORMAT_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_OUTPUT_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_SERVER_PORT_PROP_KEY;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import sample.custom_log.tools.ResultWriter.Format;
+
+/**
+ * LogQueryServerにクエリを送信し、結果を受け取るクライアント。
+ * 結果の書式と書き出し先はLogQueryと同じシステムプロパティ(custom_log.query.output_format、
+ * custom_log.query.output)で指定し、受け取った結果をそのまま書き出す。
+ */
+public class LogQueryClient {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Error: Wrong number of args.");
+            System.err.println("Usage: java " + LogQueryClient.class + " <query string>");
+            System.exit(-1);
+        }
+        if (!LogQuery.checkOutputFormat()) {
+            System.exit(-1);
+        }
+        String format = System.getProperty(QUERY_OUTPUT_FORMAT_PROP_KEY, Format.TSV.name());
+        int port = Integer.getInteger(QUERY_SERVER_PORT_PROP_KEY, LogQueryServer.DEFAULT_PORT);
+        String output = System.getProperty(QUERY_OUTPUT_PROP_KEY);
+        try {
+            OutputStream out = (output == null)
+                    ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output);
+            try {
+                String error = query(port, format, args[0], out);
+                if (error != null) {
+                    System.err.println(error);
+                    System.exit(-1);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to query: " + e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * クエリを送信し、結果をoutに書き出す。
+     * @param port LogQueryServerのポート
+     * @param format 結果の書式名
+     * @param queryString クエリ文字列
+     * @param out 結果の書き出し先(閉じない)
+     * @return サーバがエラーを戻した場合はそのメッセージ。成功した場合はnull
+     * @throws IOException 通信時、書き出し時のIO例外
+     */
+    public static String query(int port, String format, String queryString, OutputStream out)
+            throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("localhost"), port);
+        try {
+            String request = format + "\t" + queryString.replace('\r', ' ').replace('\n', ' ') + "\n";
+            socket.getOutputStream().write(request.getBytes(LogQueryServer.CHARSET));
+            socket.getOutputStream().flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            String status = readStatus(in);
+            if (status == null) {
+                return "Connection closed by server.";
+            }
+            if (!status.equals(LogQueryServer.OK)) {
+                return status;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+            return null;
+        } finally {
+            socket.close();
+        }
+    }
+    // 応答の状態の一行を読み込む。LFの前に接続が閉じられた場合はnull
+    private static String readStatus(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toString(LogQueryServer.CHARSET);
+    }
+}
@@ -0,0 +1,209 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.QUERY_SERVER_PORT_PROP_KEY;
+import static sample.custom_log.tools.Constants.QUERY_SERVER_THREADS_PROP_KEY;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.josql.Query;
+import org.josql.QueryExecutionException;
+import org.josql.QueryParseException;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogRecord;
+import sample.custom_log.tools.ResultWriter.Format;
+
+/**
+ * ログを一度だけ読み込んでメモリ上に保持し(LogDataset)、LogQueryClientから受け付けたクエリを実行し続けるサーバ。
+ * クエリごとのJVMの起動とログの読み込みを省く。ループバックアドレスのみで待ち受け、
+ * 接続ごとにスレッドプールのスレッドでクエリを実行する。クエリの実行前に、ファイルに追記された部分を読み込む。
+ * <pre>
+ * 要求 : 書式名(tsv、csv、jsonl、binary) TAB クエリ文字列 LF (UTF-8)
+ * 応答 : 「OK」LF の後に結果を指定された書式で書き出し、接続を閉じる
+ *        エラーの場合は「ERROR メッセージ」LF を書き出し、接続を閉じる
+ * </pre>
+ * 待ち受けるポートはcustom_log.query.server_port、スレッド数はcustom_log.query.server_threadsで指定する。
+ */
+public class LogQueryServer implements Runnable {
+    /** 待ち受けるポートの既定値 */
+    static final int DEFAULT_PORT = 9010;
+    /** 要求の行の長さの上限(バイト) */
+    static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    static final String CHARSET = "UTF-8";
+    static final String OK = "OK";
+    static final String ERROR = "ERROR";
+
+    private final LogDataset dataset;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private volatile boolean running = true;
+    private Log logger = LogFactory.getLog(LogQueryServer.class);
+
+    /**
+     * @param dataset クエリの対象(読み込み済みであること)
+     * @param port 待ち受けるポート。0の場合は空いているポートを使う
+     * @param threads クエリを実行するスレッド数
+     * @throws IOException ポートを開けない場合の例外
+     */
+    public LogQueryServer(LogDataset dataset, int port, int threads) throws IOException {
+        this.dataset = dataset;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName("localhost"));
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /** @return 待ち受けているポート */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    /** 待ち受けを終了する。実行中のクエリは最後まで処理し、run()は速やかに戻る */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /** stop()が呼ばれるまで接続を受け付ける */
+    public void run() {
+        try {
+            while (running) {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } catch (SocketException e) {
+            // stop()で閉じられた
+        } catch (IOException e) {
+            logger.warn("Query server stopped: " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // 1接続分の要求を処理する
+    private void handle(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            String request = readRequest(new BufferedInputStream(socket.getInputStream()));
+            int separator = (request == null) ? -1 : request.indexOf('\t');
+            if (separator < 0) {
+                writeStatus(out, ERROR + " Malformed request.");
+                return;
+            }
+            Format format;
+            try {
+                format = Format.valueOf(request.substring(0, separator).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                writeStatus(out, ERROR + " Unknown output format: " + request.substring(0, separator));
+                return;
+            }
+            String queryString = request.substring(separator + 1);
+            List<Object> rows;
+            try {
+                rows = execute(queryString);
+            } catch (QueryParseException e) {
+                writeStatus(out, ERROR + " " + e.getMessage());
+                return;
+            } catch (QueryExecutionException e) {
+                writeStatus(out, ERROR + " " + e.getMessage());
+                return;
+            } catch (LogParseException e) {
+                writeStatus(out, ERROR + " " + e.getMessage());
+                return;
+            }
+            writeStatus(out, OK);
+            ResultWriter writer = ResultWriter.create(format, out);
+            for (Object row : rows) {
+                writer.writeRow(row);
+            }
+            writer.close();
+        } catch (IOException e) {
+            logger.debug("Connection closed: " + e.getMessage(), e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+    /**
+     * ファイルに追記された部分を読み込んだ上で、保持しているLogRecordに対してクエリを実行する。
+     * 他のクエリが読み込み中の場合は、完了を待たずにそれまでに読み込んだLogRecordに対して実行する。
+     * LogRecordのListは複製して渡し、JoSQLによる並べ替え等が他のクエリに影響しないようにする。
+     * @param queryString クエリ文字列
+     * @return 結果の各行
+     */
+    List<Object> execute(String queryString)
+            throws QueryParseException, QueryExecutionException, LogParseException, IOException {
+        Query query = LogQuery.parseQuery(queryString);
+        dataset.refresh();
+        List<LogRecord> records = new ArrayList<LogRecord>(dataset.snapshot());
+        long start = System.currentTimeMillis();
+        List<Object> rows = LogQuery.rowsOf(query.execute(records));
+        if (logger.isDebugEnabled()) {
+            logger.debug(rows.size() + " rows from " + records.size() + " records in "
+                    + (System.currentTimeMillis() - start) + " ms: " + queryString);
+        }
+        return rows;
+    }
+    // LFまでの一行を読み込む。LFの前に接続が閉じられた場合はnull
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1 || line.size() >= MAX_REQUEST_SIZE) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toString(CHARSET);
+    }
+    // 応答の状態を一行書き出す。メッセージ中の改行は空白に置き換える
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write((status.replace('\r', ' ').replace('\n', ' ') + "\n").getBytes(CHARSET));
+        out.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Error: Too few args.");
+            System.err.println("Usage: java " + LogQueryServer.class + " <filpath> [<filepath> ...]");
+            System.exit(-1);
+        }
+        LogQuery.configurePathNormalizer();
+        LogDataset dataset = new LogDataset(args);
+        long start = System.currentTimeMillis();
+        try {
+            dataset.refresh();
+        } catch (LogParseException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+        System.err.println("loaded " + dataset.snapshot().size() + " records in "
+                + (System.currentTimeMillis() - start) + " ms");
+        int port = Integer.getInteger(QUERY_SERVER_PORT_PROP_KEY, DEFAULT_PORT);
+        int threads = Integer.getInteger(QUERY_SERVER_THREADS_PROP_KEY,
+                Runtime.getRuntime().availableProcessors());
+        LogQueryServer server = new LogQueryServer(dataset, port, threads);
+        System.out.println("listening on localhost:" + server.getPort());
+        server.run();
+    }
+}
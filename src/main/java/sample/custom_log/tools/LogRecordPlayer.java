@@ -1,15 +1,13 @@
 package sample.custom_log.tools;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -28,33 +26,58 @@ import sample.custom_log.core.LogRecord;
 import sample.custom_log.util.NoncancelableTask;
 
 public class LogRecordPlayer implements Runnable {
-    private final LogRecord logRecord;
+    /** レスポンスボディを読み捨てる為のバッファのサイズ */
+    private static final int DRAIN_BUFFER_SIZE = 64 * 1024;
+    /** レスポンスボディを読み捨てる為の、スレッドごとに使い回すバッファ */
+    private static final ThreadLocal<byte[]> DRAIN_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DRAIN_BUFFER_SIZE];
+        }
+    };
+    private final ReplayRequest replayRequest;
     private final LogPlayerSettings settings;
+    /** 送信に使用するHttpClient。nullの場合はリクエストごとに生成する */
+    private final HttpClient httpClient;
+    /** 結果を受け取る為のもの。受け取らない場合はnull */
+    private final ReplayListener listener;
     private Log logger = LogFactory.getLog(LogRecordPlayer.class);
 
     public LogRecordPlayer(LogRecord logRecord, LogPlayerSettings settings) {
-        this.logRecord = logRecord;
+        this(ReplayRequest.fromLogRecord(logRecord), settings, null, null);
+    }
+    /**
+     * @param replayRequest 再生するリクエスト。nullの場合は何もしない
+     * @param settings 再生の設定
+     * @param httpClient 送信に使用するHttpClient(スレッドセーフである事)。nullの場合はリクエストごとに生成する
+     * @param listener 結果を受け取る為のもの。受け取らない場合はnull
+     */
+    public LogRecordPlayer(ReplayRequest replayRequest, LogPlayerSettings settings,
+            HttpClient httpClient, ReplayListener listener) {
+        this.replayRequest = replayRequest;
         this.settings = settings;
+        this.httpClient = httpClient;
+        this.listener = listener;
     }
 
     @Override
     public void run() {
         try {
-            playRecord(logRecord);
+            playRecord(replayRequest);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-    // HEADとGETのみ対応
-    private static final List<String> SUPPORTED_METHODS = Arrays.asList(HttpGet.METHOD_NAME, HttpHead.METHOD_NAME);
-    private void playRecord(LogRecord logRecord) throws URISyntaxException, IOException {
-        if (! SUPPORTED_METHODS.contains(logRecord.getMethod().toUpperCase())) {
+    private void playRecord(ReplayRequest replayRequest) throws URISyntaxException, IOException {
+        // HEADとGETのみ対応
+        if (replayRequest == null || !ReplayRequest.isSupportedMethod(replayRequest.getMethod())) {
             return;
         }
         
-        long requestTime = logRecord.getRequestTime().getTime(); 
-        long timeToWait = (long)((requestTime - settings.recordOrigin) * settings.rate) -
-                            (System.currentTimeMillis() - settings.startTime);
+        long requestTime = replayRequest.getRequestTime(); 
+        long scheduledTime = settings.startTime +
+                            (long)((requestTime - settings.recordOrigin) * settings.rate);
+        long timeToWait = scheduledTime - System.currentTimeMillis();
         if (timeToWait > 0) {
             logger.debug(String.format("waiting (%d msec)", timeToWait));
             new NoncancelableTask(){
@@ -65,43 +88,107 @@ public class LogRecordPlayer implements Runnable {
                 }
             }.runWithLimit(timeToWait);
         } else {
-            logger.warn(String.format("delaying (%d msec)", -timeToWait));
+            logger.debug(String.format("delaying (%d msec)", -timeToWait));
         }
         
-        HttpClient httpClient = new DefaultHttpClient();
-        HttpUriRequest request = prepareRequest(logRecord);
-        HttpResponse response = httpClient.execute(request);
+        HttpClient httpClient = (this.httpClient != null) ? this.httpClient : new DefaultHttpClient();
+        HttpUriRequest request = prepareRequest(replayRequest);
+        long sentTime = System.currentTimeMillis();
+        long sentNanos = System.nanoTime();
+        PipelineMetrics metrics = PipelineMetrics.get();
+        PipelineMetrics.Span span = (metrics != null) ? metrics.start(PipelineMetrics.Stage.REPLAY) : null;
+        HttpResponse response;
+        long responseBytes;
+        try {
+            response = httpClient.execute(request);
+            responseBytes = drain(response);
+        } catch (IOException e) {
+            if (span != null) {
+                span.endReplay(replayRequest.getRequestUri(), sentTime - scheduledTime, ReplayListener.NO_RESPONSE, 0);
+            }
+            notifyCompleted(sentTime - scheduledTime, sentNanos, ReplayListener.NO_RESPONSE, 0);
+            throw e;
+        }
+        if (span != null) {
+            span.endReplay(replayRequest.getRequestUri(), sentTime - scheduledTime,
+                    response.getStatusLine().getStatusCode(), responseBytes);
+        }
+        notifyCompleted(sentTime - scheduledTime, sentNanos,
+                response.getStatusLine().getStatusCode(), responseBytes);
         if (logger.isDebugEnabled()) {
-            logger.debug(String.format("[%s] %s : %s",
-                logRecord.getRequestTime(), logRecord.getRequestUri(), response.getStatusLine()));
+            logger.debug(String.format("[%tc] %s : %s",
+                requestTime, replayRequest.getRequestUri(), response.getStatusLine()));
             if (response.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_TEMPORARILY) {
                 logger.debug("  to:" + response.getLastHeader("Location"));
             }
         }
     }
-    // logRecordからHttpUriRequestを生成する
-    private HttpUriRequest prepareRequest(LogRecord logRecord) throws URISyntaxException {
-        URI uri = URIUtils.createURI("http", settings.domain, -1, logRecord.getRequestUri(),
-                null, null);
+    /**
+     * レスポンスボディをバッファに溜めずに最後まで読み捨て、接続を再利用できる状態に戻す。
+     * @param response レスポンス
+     * @return 読み捨てたバイト数
+     * @throws IOException 読み込み時のIO例外
+     */
+    private static long drain(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return 0;
+        }
+        InputStream in = entity.getContent();
+        if (in == null) {
+            return 0;
+        }
+        byte[] buffer = DRAIN_BUFFER.get();
+        long total = 0;
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+    // 結果を受け取る対象がある場合、送信の遅れと応答時間等を通知する
+    private void notifyCompleted(long lagMillis, long sentNanos, int status, long responseBytes) {
+        if (listener != null) {
+            listener.requestCompleted(replayRequest, lagMillis,
+                    (System.nanoTime() - sentNanos) / 1000, status, responseBytes);
+        }
+    }
+    /**
+     * 送信先のURIを生成する。
+     * @param domain 送信先のドメイン名
+     * @param requestUri リクエストURI
+     * @return 生成したURI
+     * @throws URISyntaxException URIとして不正な場合の例外
+     */
+    public static URI createUri(String domain, String requestUri) throws URISyntaxException {
+        return URIUtils.createURI("http", domain, -1, requestUri, null, null);
+    }
+    // replayRequestからHttpUriRequestを生成する
+    private HttpUriRequest prepareRequest(ReplayRequest replayRequest) throws URISyntaxException {
+        URI uri = replayRequest.getUri();
+        if (uri == null) {
+            uri = createUri(settings.domain, replayRequest.getRequestUri());
+        }
 
         HttpUriRequest request;
-        if (logRecord.getMethod().equalsIgnoreCase(HttpHead.METHOD_NAME)) {
+        if (replayRequest.getMethod().equals(HttpHead.METHOD_NAME)) {
             request = new HttpHead(uri);
         } else {
             request = new HttpGet(uri);
         }
-        for (Map.Entry<String, String> headerEntry : logRecord.getHeader().entrySet()) {
-            request.addHeader(headerEntry.getKey(), headerEntry.getValue());
-        }
-        String referer = logRecord.getReferer();
-        if (!StringUtils.isEmpty(referer) && !referer.equals("-")) {
-            request.addHeader("Referer", logRecord.getReferer());
+        String[] headers = replayRequest.getHeaders();
+        for (int index = 0; index + 1 < headers.length; index += 2) {
+            request.addHeader(headers[index], headers[index + 1]);
         }
         // パラメータ
         HttpParams params = new BasicHttpParams();
         HttpProtocolParamBean paramsBean = new HttpProtocolParamBean(params);
         paramsBean.setVersion(HttpVersion.HTTP_1_1);
-        paramsBean.setUserAgent(logRecord.getUserAgent());
+        paramsBean.setUserAgent(replayRequest.getUserAgent());
         params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
         request.setParams(params);
         return request;
@@ -0,0 +1,252 @@
+package sample.custom_log.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+
+/**
+ * 複数のログファイル(または再生計画)を、ファイルごとの読み込みスレッドで並行して読み込み、
+ * リクエスト時刻の順にマージして一つの列として戻すクラス(k-wayマージ)。
+ * 各ファイルはリクエスト時刻の順に並んでいる事を前提とする(時刻が同じ場合は指定したファイルの順)。
+ * ファイルごとの先読みはREAD_AHEAD件までに制限するため、メモリ使用量はファイル数×READ_AHEAD件分で済み、
+ * 全体を読み終える前に最初のリクエストを戻せる。
+ * ファイルはLogPlayer.openLog()で開く(拡張子が.gzのファイルはgzipとして展開する)。
+ * パースエラーは全ファイルで一つのParseErrorPolicyを使って扱う。
+ * 読み込み時のIO例外はログに出力し、そのファイルは読み終えたものとして残りのファイルのマージを続ける。
+ * それ以外の例外で読み込みスレッドが終了した場合は、next()がIOExceptionを投げる。
+ * スレッドセーフではない！(next()は一つのスレッドから呼び出す事)
+ */
+public class MergedRequestReader {
+    /** ファイルごとに先読みするリクエストの件数 */
+    static final int READ_AHEAD = 64;
+    /** close()で読み込みスレッドの終了を待つ時間(ミリ秒) */
+    private static final long CLOSE_TIMEOUT = 1000;
+    /** ファイルの終わりを表すもの */
+    private static final Object END = new Object();
+
+    private final String format;
+    private final boolean structuralIndexEnabled;
+    private final String domain;
+    private final ParseErrorPolicy errorPolicy;
+    private final Source[] sources;
+    /** 次のリクエストを持つファイルの、リクエスト時刻(同じ場合はファイルの順)の順のキュー */
+    private final PriorityQueue<Source> heads;
+    private boolean started = false;
+    private Log logger = LogFactory.getLog(MergedRequestReader.class);
+
+    /**
+     * ファイルごとの読み込みスレッドを開始する。
+     * @param paths ログファイルまたは再生計画のパス("-"は標準入力)
+     * @param format ログの書式
+     * @param structuralIndexEnabled ログのパースに構造文字の索引(StructuralIndex)を使用する場合はtrue
+     * @param domain 再生計画のリクエストを送信するドメイン名
+     * @param errorPolicy パースエラーの扱い(全ファイルで共有し、呼び出しは同期する)
+     */
+    public MergedRequestReader(String[] paths, String format, boolean structuralIndexEnabled, String domain,
+            ParseErrorPolicy errorPolicy) {
+        this.format = format;
+        this.structuralIndexEnabled = structuralIndexEnabled;
+        this.domain = domain;
+        this.errorPolicy = errorPolicy;
+        this.sources = new Source[paths.length];
+        this.heads = new PriorityQueue<Source>(Math.max(paths.length, 1), new Comparator<Source>() {
+            public int compare(Source source1, Source source2) {
+                long time1 = source1.head.getRequestTime();
+                long time2 = source2.head.getRequestTime();
+                if (time1 != time2) {
+                    return (time1 < time2) ? -1 : 1;
+                }
+                return source1.index - source2.index;
+            }
+        });
+        for (int index = 0; index < paths.length; index++) {
+            sources[index] = new Source(index, paths[index]);
+            Thread thread = new Thread(sources[index], "log-reader-" + index);
+            thread.setDaemon(true);
+            sources[index].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * リクエスト時刻が最も早いリクエストを戻す。先読みがない場合は、そのファイルの読み込みを待つ。
+     * @return 次のリクエスト。全ファイルを読み終えた場合はnull
+     * @throws InterruptedIOException 待機中に割り込まれた場合の例外
+     * @throws IOException 読み込みスレッドで想定外の例外(RuntimeException、Error)が発生した場合の例外
+     */
+    public ReplayRequest next() throws IOException {
+        if (!started) {
+            started = true;
+            for (Source source : sources) {
+                advance(source);
+            }
+        }
+        Source source = heads.poll();
+        if (source == null) {
+            return null;
+        }
+        ReplayRequest replayRequest = source.head;
+        advance(source);
+        return replayRequest;
+    }
+    // ファイルの次のリクエストを取り出し、あればキューに戻す
+    private void advance(Source source) throws IOException {
+        Object next;
+        try {
+            next = source.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + source.path);
+        }
+        if (next == END) {
+            source.head = null;
+            if (source.failure != null) {
+                throw new IOException("Failed to read " + source.path + " : " + source.failure, source.failure);
+            }
+            return;
+        }
+        source.head = (ReplayRequest) next;
+        heads.add(source);
+    }
+
+    /**
+     * 読み込みを中止し、読み込みスレッドの終了をCLOSE_TIMEOUTミリ秒まで待つ
+     * (標準入力の読み込み中等、割り込みで止まらないスレッドはデーモンスレッドとして残す)。
+     */
+    public void close() {
+        for (Source source : sources) {
+            source.thread.interrupt();
+        }
+        try {
+            for (Source source : sources) {
+                source.thread.join(CLOSE_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** 一つのファイルを読み込み、リクエストをqueueに入れるもの */
+    private class Source implements Runnable {
+        private final int index;
+        private final String path;
+        /** 先読みしたリクエスト。最後にENDを入れる */
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(READ_AHEAD);
+        private Thread thread;
+        /** 読み込み中に発生した想定外の例外。ENDを取り出した時点でnext()から投げる */
+        private volatile Throwable failure;
+        /** マージ中の先頭のリクエスト(next()を呼び出すスレッドのみが使う) */
+        private ReplayRequest head;
+
+        Source(int index, String path) {
+            this.index = index;
+            this.path = path;
+        }
+        public void run() {
+            boolean closed = false;
+            try {
+                if (!path.equals(LogPlayer.STDIN_NAME) && ReplayPlanReader.isPlan(new File(path))) {
+                    readPlan();
+                } else {
+                    readLog();
+                }
+            } catch (InterruptedException e) {
+                // close()で中止された(以降next()は呼び出されないため、ENDは入れない)
+                closed = true;
+            } catch (IOException e) {
+                logger.warn("Error occurs while processing file:" + path + " : " + e.getMessage(), e);
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Error e) {
+                failure = e;
+            } finally {
+                if (!closed) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // close()で中止された
+                    }
+                }
+            }
+        }
+        private void readPlan() throws IOException, InterruptedException {
+            ReplayPlanReader reader = new ReplayPlanReader(new File(path), domain);
+            try {
+                ReplayRequest replayRequest;
+                while ((replayRequest = reader.next()) != null) {
+                    queue.put(replayRequest);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        private void readLog() throws IOException, InterruptedException {
+            LogParser parser = new LogParser(format);
+            parser.setStructuralIndexEnabled(structuralIndexEnabled);
+            InputStream in = LogPlayer.openLog(path);
+            // コールバック内で割り込まれた場合にtrue
+            final boolean[] interrupted = new boolean[1];
+            LogRecordHandler handler = new LogRecordHandler() {
+                public boolean handleLogRecord(LogRecord logRecord) {
+                    synchronized (errorPolicy) {
+                        // 他のファイルでエラー率が上限を超えた場合も中止する
+                        if (errorPolicy.isAborted()) {
+                            return false;
+                        }
+                        errorPolicy.lineParsed();
+                    }
+                    ReplayRequest replayRequest = ReplayRequest.fromLogRecord(logRecord);
+                    if (replayRequest == null) {
+                        return true;
+                    }
+                    try {
+                        queue.put(replayRequest);
+                        return true;
+                    } catch (InterruptedException e) {
+                        interrupted[0] = true;
+                        return false;
+                    }
+                }
+                public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+                    synchronized (errorPolicy) {
+                        return errorPolicy.parseFailed(path, offset, line, e);
+                    }
+                }
+            };
+            PipelineMetrics metrics = PipelineMetrics.get();
+            PipelineMetrics.ParseSpan span = (metrics != null) ? metrics.startParse(path, handler) : null;
+            try {
+                if (span != null) {
+                    parser.parse(Channels.newChannel(span.countBytes(in)), Charset.defaultCharset(), span);
+                } else {
+                    parser.parse(Channels.newChannel(in), Charset.defaultCharset(), handler);
+                }
+            } finally {
+                if (span != null) {
+                    span.end();
+                }
+                if (in != System.in) {
+                    in.close();
+                }
+            }
+            if (interrupted[0]) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
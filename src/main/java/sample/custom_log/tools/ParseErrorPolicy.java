@@ -0,0 +1,175 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.ERROR_MAX_RATE_PROP_KEY;
+import static sample.custom_log.tools.Constants.ERROR_MIN_LINES_PROP_KEY;
+import static sample.custom_log.tools.Constants.ERROR_REJECT_FILE_PROP_KEY;
+import static sample.custom_log.tools.Constants.ERROR_SAMPLES_PROP_KEY;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParseException.Reason;
+
+/**
+ * ログのパースエラーの扱いを決めるクラス。
+ * <ul>
+ * <li>エラーを理由ごとに数える</li>
+ * <li>エラーの内容は最初の数件のみ出力する</li>
+ * <li>エラーになった行を、ファイル名、ファイル内の位置(バイト)、理由とともにリジェクトファイルに書き出す</li>
+ * <li>エラー率が上限を超えた時点で、読み込みの中止を指示する</li>
+ * </ul>
+ * 複数のファイルを読み込む場合は、一つのParseErrorPolicyで全ファイルを集計する。
+ * 位置は範囲を分けて読み込んだ場合もファイルの先頭からのバイト数で記録する(gzipのファイルは展開後の位置)。
+ * リジェクトファイルには追記するため、限界性能探索のように何度も生成する場合も前の内容は消えない。
+ * スレッドセーフではない！
+ */
+public class ParseErrorPolicy {
+    private static final int DEFAULT_SAMPLES = 10;
+    private static final long DEFAULT_MIN_LINES = 1000;
+    /** エラーの内容を出力する最大件数 */
+    private final int sampleLimit;
+    /** 中止するエラー率。負の値なら中止しない */
+    private final double maxErrorRate;
+    /** エラー率による中止を判定し始める行数 */
+    private final long minLines;
+    /** エラーの内容の出力先 */
+    private final PrintStream out;
+    /** リジェクトファイル。書き出さない場合はnull */
+    private Writer rejectWriter;
+    private long lineCount = 0;
+    private long errorCount = 0;
+    /** 理由ごとのエラー件数(添え字はReason.ordinal()) */
+    private final long[] reasonCounts = new long[Reason.values().length];
+    private boolean aborted = false;
+
+    /**
+     * @param sampleLimit エラーの内容を出力する最大件数
+     * @param rejectPath リジェクトファイルのパス(既にある場合は追記する)。書き出さない場合はnull
+     * @param maxErrorRate 中止するエラー率(0～1)。負の値なら中止しない
+     * @param minLines エラー率による中止を判定し始める行数
+     * @param out エラーの内容の出力先
+     * @throws IOException リジェクトファイルを開けない場合の例外
+     */
+    public ParseErrorPolicy(int sampleLimit, String rejectPath, double maxErrorRate, long minLines,
+            PrintStream out) throws IOException {
+        this.sampleLimit = sampleLimit;
+        this.maxErrorRate = maxErrorRate;
+        this.minLines = minLines;
+        this.out = out;
+        if (rejectPath != null) {
+            this.rejectWriter = new BufferedWriter(new FileWriter(rejectPath, true));
+        }
+    }
+    /**
+     * システムプロパティ(custom_log.error.*)の設定に従うParseErrorPolicyを生成する。
+     * エラーの内容は標準エラー出力に出力する。
+     * @return 生成したParseErrorPolicy
+     * @throws IOException リジェクトファイルを開けない場合の例外
+     */
+    public static ParseErrorPolicy fromSystemProperties() throws IOException {
+        int sampleLimit = Integer.parseInt(
+                System.getProperty(ERROR_SAMPLES_PROP_KEY, String.valueOf(DEFAULT_SAMPLES)));
+        double maxErrorRate = Double.parseDouble(System.getProperty(ERROR_MAX_RATE_PROP_KEY, "-1"));
+        long minLines = Long.parseLong(
+                System.getProperty(ERROR_MIN_LINES_PROP_KEY, String.valueOf(DEFAULT_MIN_LINES)));
+        return new ParseErrorPolicy(sampleLimit, System.getProperty(ERROR_REJECT_FILE_PROP_KEY),
+                maxErrorRate, minLines, System.err);
+    }
+
+    /** パースに成功した行を数える */
+    public void lineParsed() {
+        lineCount++;
+    }
+    /**
+     * パースに失敗した行を記録する。
+     * @param source ファイル名
+     * @param offset 行の先頭のファイル内の位置(バイト)
+     * @param line 行の内容
+     * @param e パース時の例外
+     * @return 読み込みを続ける場合はtrue、エラー率が上限を超えて中止する場合はfalse
+     */
+    public boolean parseFailed(String source, long offset, String line, LogParseException e) {
+        lineCount++;
+        errorCount++;
+        reasonCounts[e.getReason().ordinal()]++;
+        if (errorCount <= sampleLimit) {
+            out.println("Parse Error at offset:" + offset + " in file:" + source + " : " + e.getMessage());
+            if (errorCount == sampleLimit) {
+                out.println("(Further parse errors are only counted)");
+            }
+        }
+        if (rejectWriter != null) {
+            writeReject(source, offset, line, e.getReason());
+        }
+        if (maxErrorRate >= 0 && lineCount >= minLines && errorCount > maxErrorRate * lineCount) {
+            aborted = true;
+        }
+        return !aborted;
+    }
+    // リジェクトファイルに「ファイル名 TAB 位置(バイト) TAB 理由 TAB 行の内容」を書き出す
+    private void writeReject(String source, long offset, String line, Reason reason) {
+        try {
+            rejectWriter.write(source + "\t" + offset + "\t" + reason + "\t");
+            rejectWriter.write(line);
+            rejectWriter.write('\n');
+        } catch (IOException ex) {
+            out.println("Failed to write reject file: " + ex.getMessage());
+            closeRejectWriter();
+        }
+    }
+
+    /** @return エラー率が上限を超えて中止した場合true */
+    public boolean isAborted() {
+        return aborted;
+    }
+    /** @return 読み込んだ行数(エラー行を含む) */
+    public long getLineCount() {
+        return lineCount;
+    }
+    /** @return エラー行数 */
+    public long getErrorCount() {
+        return errorCount;
+    }
+    /**
+     * @param reason 理由
+     * @return その理由によるエラー行数
+     */
+    public long getErrorCount(Reason reason) {
+        return reasonCounts[reason.ordinal()];
+    }
+    /**
+     * エラーがあった場合、エラー件数と理由ごとの内訳を書き出す。
+     * @param out 出力先
+     */
+    public void printSummary(PrintStream out) {
+        if (errorCount == 0) {
+            return;
+        }
+        out.println(String.format("Parse errors: %d of %d lines (%.2f%%)%s", errorCount, lineCount,
+                errorCount * 100.0 / lineCount, aborted ? ", aborted" : ""));
+        for (Reason reason : Reason.values()) {
+            if (reasonCounts[reason.ordinal()] > 0) {
+                out.println("  " + reason + ": " + reasonCounts[reason.ordinal()]);
+            }
+        }
+    }
+    /** リジェクトファイルを閉じる */
+    public void close() {
+        closeRejectWriter();
+    }
+    private void closeRejectWriter() {
+        if (rejectWriter == null) {
+            return;
+        }
+        try {
+            rejectWriter.close();
+        } catch (IOException e) {
+            out.println("Failed to close reject file: " + e.getMessage());
+        }
+        rejectWriter = null;
+    }
+}
@@ -0,0 +1,390 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.METRICS_PROGRESS_PROP_KEY;
+import static sample.custom_log.tools.Constants.METRICS_PROP_KEY;
+import static sample.custom_log.tools.Constants.METRICS_SUMMARY_PROP_KEY;
+
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+import sample.custom_log.util.Histogram;
+
+/**
+ * ログの読み込み・パース、クエリの評価、結果の書き出し、リクエストの再生の各段階について、
+ * 件数と所要時間を集計するクラス。遅い原因がどの段階にあるかを調べるために使用する。
+ * システムプロパティcustom_log.metricsがtrueの場合のみ有効となり、無効の場合はget()がnullを戻す
+ * (呼び出し側はnullの判定のみで済むため、無効時の負荷はほぼない)。
+ * <ul>
+ * <li>custom_log.metrics.progressを指定した場合は、指定秒数ごとに進捗を1行で標準エラー出力に出力する</li>
+ * <li>finish()で、集計結果をJSONで標準エラー出力(custom_log.metrics.summaryを指定した場合はそのファイル)に出力する</li>
+ * <li>JDK Flight Recorder(jdk.jfr)が使え、jfrサブプロジェクトのPipelineEventsがクラスパスにある場合は、
+ * 各段階の処理ごとにイベントを記録する</li>
+ * </ul>
+ * 読み込み中にクエリの評価や書き出しをおこなう場合(LogQueryの行ごとに独立したクエリ)は、
+ * その時間を除いたものをパースの時間とする。スレッドセーフ。
+ */
+public class PipelineMetrics {
+    /** 集計する段階 */
+    public enum Stage {
+        /** ログの読み込みとパース。件数はパースした行数 */
+        PARSE,
+        /** クエリの評価。件数は評価したLogRecordの数 */
+        QUERY,
+        /** 結果の書き出し。件数は書き出した行数 */
+        OUTPUT,
+        /** リクエストの再生(送信から応答を読み終えるまで)。件数はリクエスト数 */
+        REPLAY
+    }
+
+    /** 進捗に反映するため、パース中の行数等を集計に加える間隔(行数。2のべき乗) */
+    private static final int PUBLISH_INTERVAL = 4096;
+    private static final PipelineMetrics INSTANCE = Boolean.getBoolean(METRICS_PROP_KEY)
+            ? new PipelineMetrics(createEventSink()) : null;
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    /** 段階ごとの所要時間の合計(ナノ秒。添え字はStage.ordinal()) */
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    /** 段階ごとの処理の回数 */
+    private final AtomicLongArray stageCounts = new AtomicLongArray(Stage.values().length);
+    /** 段階ごとに処理した件数 */
+    private final AtomicLongArray stageItems = new AtomicLongArray(Stage.values().length);
+    /** 再生の予定時刻から実際に送信した時刻までの遅れ(ミリ秒) */
+    private final Histogram dispatchLag = new Histogram();
+    /** 現在のスレッドで、パース中に入れ子で実行した段階に費やした時間の合計(ナノ秒) */
+    private final ThreadLocal<long[]> nestedNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    /** JFRのイベントを記録するもの。jdk.jfrが使えない場合はnull */
+    private final EventSink eventSink;
+    private Thread progressThread;
+
+    private PipelineMetrics(EventSink eventSink) {
+        this.eventSink = eventSink;
+        long interval = (long) (Double.parseDouble(System.getProperty(METRICS_PROGRESS_PROP_KEY, "0")) * 1000);
+        if (interval > 0) {
+            startProgress(interval);
+        }
+    }
+    // jdk.jfrとPipelineEvents(jfrサブプロジェクト。jdk.jfrのないJDKではビルドしない)がある場合のみ読み込む
+    private static EventSink createEventSink() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (EventSink) Class.forName(PipelineMetrics.class.getPackage().getName() + ".PipelineEvents")
+                    .newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 集計に使うPipelineMetrics。custom_log.metricsがtrueでない場合はnull
+     */
+    public static PipelineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * ログの読み込みとパースの計測を開始する。
+     * 戻り値をLogParserに渡すLogRecordHandlerとして使い、読み込み後にend()を呼び出す事。
+     * @param path 読み込むファイルのパス
+     * @param handler パースしたLogRecordを処理するLogRecordHandler
+     * @return handlerに委譲しつつ行数とエラー数を数えるLogRecordHandler
+     */
+    public ParseSpan startParse(String path, LogRecordHandler handler) {
+        return new ParseSpan(path, handler);
+    }
+    /**
+     * クエリの評価、結果の書き出し、リクエストの再生の計測を開始する。
+     * @param stage 計測する段階(PARSE以外)
+     * @return 処理の終了時にend()を呼び出すSpan
+     */
+    public Span start(Stage stage) {
+        if (stage == Stage.PARSE) {
+            throw new IllegalArgumentException("Use startParse() for " + stage);
+        }
+        return new Span(stage);
+    }
+    // 段階の処理一回分を集計に加える
+    private void add(Stage stage, long nanos, long items) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        stageCounts.incrementAndGet(stage.ordinal());
+        stageItems.addAndGet(stage.ordinal(), items);
+    }
+
+    /**
+     * 読み込みとパース一回分の計測。パースした行とエラーを数えながらhandlerに委譲する。
+     * 進捗に反映するため、行数とバイト数はPUBLISH_INTERVAL行ごとに集計に加える。
+     */
+    public class ParseSpan implements LogRecordHandler {
+        private final String path;
+        private final LogRecordHandler handler;
+        private final long startNanos = System.nanoTime();
+        private final long nestedStart = nestedNanos.get()[0];
+        private final Object event = (eventSink != null) ? eventSink.begin(Stage.PARSE) : null;
+        private long records = 0;
+        private long errors = 0;
+        private long bytes = 0;
+        /** 集計に加えた行数、エラー数、バイト数 */
+        private long publishedRecords = 0;
+        private long publishedErrors = 0;
+        private long publishedBytes = 0;
+
+        ParseSpan(String path, LogRecordHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+        public boolean handleLogRecord(LogRecord logRecord) {
+            if ((++records & (PUBLISH_INTERVAL - 1)) == 0) {
+                publish();
+            }
+            return handler.handleLogRecord(logRecord);
+        }
+        public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+            errors++;
+            return handler.handleParseError(lineNumber, offset, line, e);
+        }
+        /**
+         * 読み込んだバイト数を加える。
+         * @param count 読み込んだバイト数
+         */
+        public void addBytes(long count) {
+            bytes += count;
+        }
+        /**
+         * 読み込んだバイト数を数えるInputStreamを戻す。
+         * @param in 読み込むInputStream
+         * @return inから読み込み、バイト数をaddBytes()で加えるInputStream
+         */
+        public InputStream countBytes(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes++;
+                    }
+                    return b;
+                }
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    if (count > 0) {
+                        bytes += count;
+                    }
+                    return count;
+                }
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    bytes += skipped;
+                    return skipped;
+                }
+            };
+        }
+        // 前回から増えた分を集計に加える
+        private void publish() {
+            stageItems.addAndGet(Stage.PARSE.ordinal(), records - publishedRecords);
+            parseErrors.addAndGet(errors - publishedErrors);
+            bytesRead.addAndGet(bytes - publishedBytes);
+            publishedRecords = records;
+            publishedErrors = errors;
+            publishedBytes = bytes;
+        }
+        /**
+         * 計測を終了する。
+         */
+        public void end() {
+            publish();
+            long nanos = System.nanoTime() - startNanos - (nestedNanos.get()[0] - nestedStart);
+            add(Stage.PARSE, nanos, 0);
+            if (event != null) {
+                eventSink.commitParse(event, path, bytes, records, errors);
+            }
+        }
+    }
+
+    /** クエリの評価、結果の書き出し、リクエストの再生一回分の計測 */
+    public class Span {
+        private final Stage stage;
+        private final long startNanos = System.nanoTime();
+        private final Object event;
+
+        Span(Stage stage) {
+            this.stage = stage;
+            this.event = (eventSink != null) ? eventSink.begin(stage) : null;
+        }
+        // 計測を終了し、所要時間を戻す。パース中の場合はパースの時間から除く
+        private long finish(long items) {
+            long nanos = System.nanoTime() - startNanos;
+            add(stage, nanos, items);
+            nestedNanos.get()[0] += nanos;
+            return nanos;
+        }
+        /**
+         * クエリの評価の計測を終了する。
+         * @param records 評価したLogRecordの数
+         * @param rows 結果の行数
+         */
+        public void endQuery(long records, long rows) {
+            finish(records);
+            if (event != null) {
+                eventSink.commitQuery(event, records, rows);
+            }
+        }
+        /**
+         * 結果の書き出しの計測を終了する。
+         * @param rows 書き出した行数
+         */
+        public void endOutput(long rows) {
+            finish(rows);
+            if (event != null) {
+                eventSink.commitOutput(event, rows);
+            }
+        }
+        /**
+         * リクエストの再生の計測を終了する。
+         * @param uri リクエストURI
+         * @param lagMillis 予定時刻から実際に送信した時刻までの遅れ(ミリ秒)
+         * @param status 応答のステータス。応答がない場合はReplayListener.NO_RESPONSE
+         * @param responseBytes 受信したレスポンスボディのバイト数
+         */
+        public void endReplay(String uri, long lagMillis, int status, long responseBytes) {
+            finish(1);
+            dispatchLag.record(lagMillis);
+            if (event != null) {
+                eventSink.commitReplay(event, uri, lagMillis, status, responseBytes);
+            }
+        }
+    }
+
+    // interval(ミリ秒)ごとに進捗を出力するデーモンスレッドを開始する
+    private void startProgress(final long interval) {
+        progressThread = new Thread("pipeline-metrics-progress") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        System.err.println(progressLine());
+                    }
+                } catch (InterruptedException e) {
+                    // finish()で終了
+                }
+            }
+        };
+        progressThread.setDaemon(true);
+        progressThread.start();
+    }
+    /** @return 進捗を表す1行の文字列 */
+    public String progressLine() {
+        double seconds = elapsedSeconds();
+        long records = stageItems.get(Stage.PARSE.ordinal());
+        StringBuilder line = new StringBuilder(String.format(Locale.US,
+                "[metrics] %.1fs read %.1f MB (%.1f MB/s), %d records (%.0f/s), %d errors, query %.2fs, output %.2fs",
+                seconds, bytesRead.get() / 1e6, bytesRead.get() / 1e6 / seconds, records, records / seconds,
+                parseErrors.get(), stageSeconds(Stage.QUERY), stageSeconds(Stage.OUTPUT)));
+        if (dispatchLag.getCount() > 0) {
+            line.append(String.format(Locale.US, ", replay %d requests (lag p99 %dms, max %dms)",
+                    dispatchLag.getCount(), dispatchLag.getPercentile(99), dispatchLag.getMax()));
+        }
+        return line.toString();
+    }
+    private double elapsedSeconds() {
+        return Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+    }
+    private double stageSeconds(Stage stage) {
+        return stageNanos.get(stage.ordinal()) / 1e9;
+    }
+
+    /**
+     * 進捗の出力を止め、集計結果をJSONで出力する。
+     * custom_log.metrics.summaryを指定した場合はそのファイルに、それ以外は標準エラー出力に出力する。
+     */
+    public void finish() {
+        if (progressThread != null) {
+            progressThread.interrupt();
+        }
+        String summaryPath = System.getProperty(METRICS_SUMMARY_PROP_KEY);
+        if (summaryPath == null) {
+            System.err.println(toJson());
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(summaryPath), "UTF-8");
+            try {
+                writer.write(toJson());
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write metrics summary: " + e.getMessage());
+        }
+    }
+    /** @return 集計結果のJSON */
+    public String toJson() {
+        double seconds = elapsedSeconds();
+        long records = stageItems.get(Stage.PARSE.ordinal());
+        long lines = records + parseErrors.get();
+        StringBuilder json = new StringBuilder("{");
+        json.append(String.format(Locale.US, "\"elapsed_seconds\":%.3f,\"bytes_read\":%d,\"lines\":%d,"
+                + "\"records\":%d,\"parse_errors\":%d,\"bytes_per_second\":%.1f,\"lines_per_second\":%.1f,"
+                + "\"records_per_second\":%.1f,\"stages\":{",
+                seconds, bytesRead.get(), lines, records, parseErrors.get(),
+                bytesRead.get() / seconds, lines / seconds, records / seconds));
+        for (Stage stage : Stage.values()) {
+            if (stage.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "\"%s\":{\"seconds\":%.3f,\"count\":%d,\"items\":%d}",
+                    stage.name().toLowerCase(Locale.US), stageSeconds(stage), stageCounts.get(stage.ordinal()),
+                    stageItems.get(stage.ordinal())));
+        }
+        json.append("},\"dispatch_lag_millis\":");
+        if (dispatchLag.getCount() == 0) {
+            json.append("null");
+        } else {
+            json.append(String.format(Locale.US, "{\"count\":%d,\"mean\":%.3f,\"p50\":%d,\"p99\":%d,\"max\":%d}",
+                    dispatchLag.getCount(), dispatchLag.getMean(), dispatchLag.getPercentile(50),
+                    dispatchLag.getPercentile(99), dispatchLag.getMax()));
+        }
+        return json.append('}').toString();
+    }
+    /**
+     * 有効な場合のみ集計結果を出力する。mainの終了時に呼び出す。
+     */
+    public static void finishIfEnabled() {
+        if (INSTANCE != null) {
+            INSTANCE.finish();
+        }
+    }
+
+    /**
+     * 段階の処理ごとのイベントを記録するもの。
+     * begin()で処理の開始時にイベントを生成し、終了時に段階に応じたcommit*()で記録する。
+     */
+    interface EventSink {
+        Object begin(Stage stage);
+        void commitParse(Object event, String path, long bytes, long records, long errors);
+        void commitQuery(Object event, long records, long rows);
+        void commitOutput(Object event, long rows);
+        void commitReplay(Object event, String uri, long lagMillis, int status, long responseBytes);
+    }
+}
@@ -0,0 +1,91 @@
+package sample.custom_log.tools;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * LogPlayer自身の性能を計測するクラス。
+ * 同じプロセス内でStubServerを起動し、そこに向けてログを再生して、
+ * 1秒あたりのリクエスト数と、予定時刻から実際の送信までの遅れ(ディスパッチのジッタ)を出力する。
+ * 速度指定に0を指定すると全リクエストを即座に送信し、LogPlayerの処理能力の上限を計測できる。
+ */
+public class PlayerBenchmark {
+    private final String path;
+    private final double rate;
+    private final long latencyMillis;
+
+    /**
+     * @param path ログファイルまたは再生計画のパス
+     * @param rate 速度指定(LogPlayerの-rと同じ)
+     * @param latencyMillis StubServerが応答を遅らせる時間(ミリ秒)
+     */
+    public PlayerBenchmark(String path, double rate, long latencyMillis) {
+        this.path = path;
+        this.rate = rate;
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * 計測を行い、結果を標準出力に書き出す。
+     * @return 計測結果
+     * @throws IOException ログの読み込みやStubServerの起動に失敗した場合の例外
+     */
+    public ReplayStatistics run() throws IOException {
+        StubServer server = new StubServer(StubServer.loadResponses(path), 0, latencyMillis);
+        Thread serverThread = new Thread(server, "stub-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        ReplayStatistics statistics = new ReplayStatistics();
+        try {
+            LogPlayer logPlayer = new LogPlayer(path, "localhost:" + server.getPort(), rate);
+            logPlayer.addListener(statistics);
+            logPlayer.play();
+        } finally {
+            server.stop();
+        }
+        System.out.println(String.format("requests=%d, errors=%d, elapsed=%dms, %.1f requests/sec",
+                statistics.getRequestCount(), statistics.getErrorCount(),
+                statistics.getElapsedMillis(), statistics.getRequestsPerSecond()));
+        System.out.println(String.format("latency(ms): p50=%.2f p99=%.2f",
+                statistics.getLatencyMillis(50), statistics.getLatencyMillis(99)));
+        System.out.println(String.format("dispatch jitter(ms): p50=%d p90=%d p99=%d max=%d",
+                statistics.getLagMillis(50), statistics.getLagMillis(90),
+                statistics.getLagMillis(99), statistics.getLagMillis(100)));
+        return statistics;
+    }
+
+    private static Option buildOption(String opt, boolean hasArg, String argName, boolean required, String description) {
+        Option option = new Option(opt, hasArg, description);
+        option.setArgName(argName);
+        option.setRequired(required);
+        return option;
+    }
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        options.addOption(buildOption("f", true, "file name", true, "ログファイルまたは再生計画の指定"));
+        options.addOption(buildOption("r", true, "rate", false, "速度指定。0なら待たずに全て送信する(省略時は0)"));
+        options.addOption(buildOption("l", true, "msec", false, "StubServerが応答を遅らせる時間(省略時は0)"));
+        CommandLineParser parser = new BasicParser();
+        CommandLine commandLine = null;
+        try {
+            commandLine = parser.parse(options, args, false);
+        } catch (ParseException e) {
+        }
+        if (commandLine == null) {
+            HelpFormatter help = new HelpFormatter();
+            help.setWidth(Integer.MAX_VALUE);
+            help.printHelp("java " + PlayerBenchmark.class.getName(), options, true);
+            return;
+        }
+        double rate = Double.parseDouble(commandLine.getOptionValue("r", "0"));
+        long latency = Long.parseLong(commandLine.getOptionValue("l", "0"));
+        new PlayerBenchmark(commandLine.getOptionValue("f"), rate, latency).run();
+    }
+}
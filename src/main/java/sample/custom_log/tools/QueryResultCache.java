@@ -0,0 +1,433 @@
+package sample.custom_log.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * LogQueryの結果をディレクトリに保存し、同じクエリを同じファイルに対して再実行する際に再利用するクラス。
+ * キーは正規化したクエリ文字列、ログフォーマット、結果に影響するその他の設定(タイムゾーン等)、入力ファイルのパスで、
+ * キーごとに一つのファイルに保存する。
+ * 入力ファイルごとにiノード番号等(fileKey)、長さ、更新時刻、先頭と処理済み範囲の末尾のチェックサムを記録しておき、
+ * <ul>
+ * <li>全ファイルが変わっていなければ保存した結果をそのまま使う</li>
+ * <li>追記されただけであれば、集約の途中結果(Entry.getGroups())に追記分の結果をマージする(AggregateMerger)</li>
+ * <li>それ以外の変更があれば最初から実行し直す</li>
+ * </ul>
+ * 追記の途中で読み込んだ場合に備え、改行で終わっていない最終行は処理済みとせず、次回以降に処理する。
+ * スレッドセーフではない！
+ */
+public class QueryResultCache {
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".cache";
+    /** チェックサムを計算する先頭および末尾の範囲のバイト数 */
+    private static final int CHECK_BLOCK_SIZE = 4096;
+
+    private final File directory;
+
+    /**
+     * @param directory 結果を保存するディレクトリ。存在しない場合は作成する
+     */
+    public QueryResultCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 引用符の外の連続する空白を一つの半角空白にまとめ、前後の空白を除く。
+     * @param query クエリ文字列
+     * @return 正規化したクエリ文字列
+     */
+    public static String normalizeQuery(String query) {
+        StringBuilder builder = new StringBuilder(query.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int index = 0; index < query.length(); index++) {
+            char c = query.charAt(index);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = builder.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                builder.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+    /**
+     * 結果を保存する際のキーを生成する。
+     * @param query クエリ文字列
+     * @param format ログフォーマット
+     * @param settings クエリの結果に影響するその他の設定(日付の関数のタイムゾーン等)を表す文字列
+     * @param paths 入力ファイルのパス
+     * @return キー
+     * @throws IOException パスを正規化できない場合の例外
+     */
+    public static String keyOf(String query, String format, String settings, String[] paths) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(normalizeQuery(query)).append('\n').append(format).append('\n').append(settings);
+        for (String path : paths) {
+            builder.append('\n').append(new File(path).getCanonicalPath());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * keyに対して保存した結果を読み込む。
+     * @param key キー
+     * @return 保存した結果。保存されていない場合、形式が異なる場合はnull
+     * @throws IOException 読み込み時のIO例外
+     */
+    public Entry load(String key) throws IOException {
+        ObjectInputStream in;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileOf(key))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            int fileCount = in.readInt();
+            List<FileState> files = new ArrayList<FileState>(fileCount);
+            for (int index = 0; index < fileCount; index++) {
+                files.add(FileState.read(in));
+            }
+            Entry entry = new Entry(key, files);
+            if (in.readBoolean()) {
+                entry.groups = castGroups(in.readObject());
+            } else {
+                entry.rows = castRows(in.readObject());
+            }
+            return entry;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Broken cache file for: " + key, e);
+        } catch (ClassCastException e) {
+            throw new IOException("Broken cache file for: " + key, e);
+        } finally {
+            in.close();
+        }
+    }
+    /**
+     * entryを保存する。一時ファイルに書き出してから置き換えるため、途中で失敗しても以前の内容は壊れない。
+     * 結果に含まれる値のうち、文字列、数値、日付以外は文字列(toString()の結果)として保存する。
+     * @param entry 保存する結果
+     * @throws IOException 書き出し時のIO例外
+     */
+    public void store(Entry entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + directory);
+        }
+        File file = fileOf(entry.key);
+        // 同じ結果を並行して保存しても重ならないよう、一時ファイルの名前は毎回変える
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        boolean replaced = false;
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(entry.key);
+                out.writeInt(entry.files.size());
+                for (FileState fileState : entry.files) {
+                    fileState.write(out);
+                }
+                out.writeBoolean(entry.groups != null);
+                if (entry.groups != null) {
+                    Map<Object, Object> groups = new LinkedHashMap<Object, Object>();
+                    for (Map.Entry<List<Object>, List<Object>> group : entry.groups.entrySet()) {
+                        groups.put(storable(group.getKey()), storable(group.getValue()));
+                    }
+                    out.writeObject(groups);
+                } else {
+                    out.writeObject(storable(entry.rows));
+                }
+            } finally {
+                out.close();
+            }
+            replaced = temporary.renameTo(file) || (file.delete() && temporary.renameTo(file));
+            if (!replaced) {
+                throw new IOException("Failed to replace cache file: " + file);
+            }
+        } finally {
+            if (!replaced) {
+                temporary.delete();
+            }
+        }
+    }
+    // keyを保存するファイル。ファイル名はkeyのMD5の16進表記
+    private File fileOf(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(directory, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    // 保存できる形に変換する。Listは要素ごとに変換し、文字列、数値、日付、真偽値以外はtoString()の結果とする
+    private static Object storable(Object value) {
+        if (value == null || value instanceof String || value instanceof Number
+                || value instanceof Date || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(storable(element));
+            }
+            return list;
+        }
+        return value.toString();
+    }
+    @SuppressWarnings("unchecked")
+    private static Map<List<Object>, List<Object>> castGroups(Object object) {
+        return (Map<List<Object>, List<Object>>) object;
+    }
+    @SuppressWarnings("unchecked")
+    private static List<Object> castRows(Object object) {
+        return (List<Object>) object;
+    }
+
+    /**
+     * 保存した結果一件分。
+     */
+    public static class Entry {
+        private final String key;
+        private final List<FileState> files;
+        /** 集約の途中結果。キー=group byの値のList、値=結果の一行。マージできないクエリの場合はnull */
+        private Map<List<Object>, List<Object>> groups;
+        /** 結果の各行。groupsがある場合はnull */
+        private List<Object> rows;
+
+        private Entry(String key, List<FileState> files) {
+            this.key = key;
+            this.files = files;
+        }
+        /**
+         * マージできるクエリの結果
+         * @param key キー
+         * @param files 入力ファイルの状態
+         * @param groups 集約の途中結果
+         * @return 生成したEntry
+         */
+        public static Entry ofGroups(String key, List<FileState> files, Map<List<Object>, List<Object>> groups) {
+            Entry entry = new Entry(key, files);
+            entry.groups = groups;
+            return entry;
+        }
+        /**
+         * マージできないクエリの結果
+         * @param key キー
+         * @param files 入力ファイルの状態
+         * @param rows 結果の各行
+         * @return 生成したEntry
+         */
+        public static Entry ofRows(String key, List<FileState> files, List<Object> rows) {
+            Entry entry = new Entry(key, files);
+            entry.rows = rows;
+            return entry;
+        }
+        /** @return 入力ファイルの状態(パスの順) */
+        public List<FileState> getFiles() {
+            return files;
+        }
+        /** @return 集約の途中結果。マージできないクエリの場合はnull */
+        public Map<List<Object>, List<Object>> getGroups() {
+            return groups;
+        }
+        /** @return 結果の各行。集約の途中結果がある場合はnull */
+        public List<Object> getRows() {
+            return rows;
+        }
+    }
+
+    /** 前回からのファイルの変化 */
+    public enum Change {
+        /** 変化なし */
+        UNCHANGED,
+        /** 追記のみ */
+        APPENDED,
+        /** 追記以外の変更(書き換え、ローテーション等) */
+        CHANGED
+    }
+
+    /**
+     * 入力ファイルの状態。同じファイルであることは、BasicFileAttributes.fileKey()(Unixではデバイスとiノード番号)
+     * と先頭CHECK_BLOCK_SIZEバイトのチェックサムで判定する。fileKeyはJava 6でもビルドできるようリフレクションで
+     * 取得し、取得できない場合(Java 7より前、fileKeyのないファイルシステム)はチェックサムのみで判定する。
+     */
+    public static class FileState {
+        private final String path;
+        /** fileKey()の文字列。取得できない場合はnull */
+        private final String fileKey;
+        private final long length;
+        private final long lastModified;
+        /** 処理済みの範囲の終了位置(最後の改行の次の位置) */
+        private final long processedLength;
+        /** 先頭から最大CHECK_BLOCK_SIZEバイト(処理済みの範囲内)のチェックサム */
+        private final long headChecksum;
+        /** 処理済みの範囲の末尾最大CHECK_BLOCK_SIZEバイトのチェックサム */
+        private final long tailChecksum;
+
+        private FileState(String path, String fileKey, long length, long lastModified, long processedLength,
+                long headChecksum, long tailChecksum) {
+            this.path = path;
+            this.fileKey = fileKey;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.processedLength = processedLength;
+            this.headChecksum = headChecksum;
+            this.tailChecksum = tailChecksum;
+        }
+        /**
+         * ファイルの現在の状態を取得する。
+         * @param path ファイルのパス
+         * @return ファイルの状態
+         * @throws IOException ファイルを読み込めない場合の例外
+         */
+        public static FileState of(String path) throws IOException {
+            File file = new File(path);
+            long lastModified = file.lastModified();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                long processedLength = lineEnd(raf, length);
+                return new FileState(path, fileKeyOf(file), length, lastModified, processedLength,
+                        checksum(raf, 0, Math.min(CHECK_BLOCK_SIZE, processedLength)),
+                        checksum(raf, Math.max(0, processedLength - CHECK_BLOCK_SIZE), processedLength));
+            } finally {
+                raf.close();
+            }
+        }
+        /**
+         * previousの状態からの変化を判定する。fileKeyが変わっていれば(ローテーション等で別のファイルに
+         * なった場合)CHANGEDとする。追記であることは、previousの時点の先頭と末尾の
+         * チェックサムが変わっていない事で確認する。
+         * @param previous 前回の状態(同じパス)
+         * @return 変化
+         * @throws IOException ファイルを読み込めない場合の例外
+         */
+        public Change compareTo(FileState previous) throws IOException {
+            if (fileKey != null && previous.fileKey != null && !fileKey.equals(previous.fileKey)) {
+                return Change.CHANGED;
+            }
+            if (length == previous.length && lastModified == previous.lastModified
+                    && processedLength == previous.processedLength
+                    && headChecksum == previous.headChecksum && tailChecksum == previous.tailChecksum) {
+                return Change.UNCHANGED;
+            }
+            if (length <= previous.length || processedLength < previous.processedLength) {
+                return Change.CHANGED;
+            }
+            RandomAccessFile raf = new RandomAccessFile(path, "r");
+            try {
+                long previousEnd = previous.processedLength;
+                boolean sameHead = checksum(raf, 0, Math.min(CHECK_BLOCK_SIZE, previousEnd)) == previous.headChecksum;
+                boolean sameTail = checksum(raf, Math.max(0, previousEnd - CHECK_BLOCK_SIZE), previousEnd)
+                        == previous.tailChecksum;
+                return (sameHead && sameTail) ? Change.APPENDED : Change.CHANGED;
+            } finally {
+                raf.close();
+            }
+        }
+        /** @return ファイルのパス */
+        public String getPath() {
+            return path;
+        }
+        /** @return 処理済みの範囲の終了位置。改行で終わっていない最終行は含まない */
+        public long getProcessedLength() {
+            return processedLength;
+        }
+        // 最後の改行の次の位置。改行がなければ0
+        private static long lineEnd(RandomAccessFile raf, long length) throws IOException {
+            byte[] buffer = new byte[CHECK_BLOCK_SIZE];
+            long end = length;
+            while (end > 0) {
+                int size = (int) Math.min(buffer.length, end);
+                raf.seek(end - size);
+                raf.readFully(buffer, 0, size);
+                for (int index = size - 1; index >= 0; index--) {
+                    if (buffer[index] == '\n') {
+                        return end - size + index + 1;
+                    }
+                }
+                end -= size;
+            }
+            return 0;
+        }
+        // BasicFileAttributes.fileKey()の文字列。取得できない場合はnull
+        private static String fileKeyOf(File file) {
+            try {
+                Object path = File.class.getMethod("toPath").invoke(file);
+                Class<?> attributesClass = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+                Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+                Object attributes = Class.forName("java.nio.file.Files")
+                        .getMethod("readAttributes", Class.forName("java.nio.file.Path"), Class.class,
+                                Array.newInstance(linkOptionClass, 0).getClass())
+                        .invoke(null, path, attributesClass, Array.newInstance(linkOptionClass, 0));
+                Object fileKey = attributesClass.getMethod("fileKey").invoke(attributes);
+                return (fileKey != null) ? fileKey.toString() : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        // start～endのCRC32
+        private static long checksum(RandomAccessFile raf, long start, long end) throws IOException {
+            byte[] buffer = new byte[(int) (end - start)];
+            raf.seek(start);
+            raf.readFully(buffer);
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            return crc.getValue();
+        }
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(path);
+            out.writeBoolean(fileKey != null);
+            if (fileKey != null) {
+                out.writeUTF(fileKey);
+            }
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeLong(processedLength);
+            out.writeLong(headChecksum);
+            out.writeLong(tailChecksum);
+        }
+        static FileState read(DataInput in) throws IOException {
+            String path = in.readUTF();
+            String fileKey = in.readBoolean() ? in.readUTF() : null;
+            return new FileState(path, fileKey, in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readLong());
+        }
+    }
+}
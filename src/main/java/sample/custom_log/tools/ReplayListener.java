@@ -0,0 +1,29 @@
+package sample.custom_log.tools;
+
+/**
+ * LogPlayerによる再生の経過を受け取るインターフェース。
+ * requestCompleted()は複数のスレッドから同時に呼び出されるため、スレッドセーフに実装する事。
+ */
+public interface ReplayListener {
+    /** 応答を受け取れなかった事を表すステータス */
+    int NO_RESPONSE = -1;
+
+    /**
+     * 再生を開始する時に呼ばれる。
+     */
+    void replayStarted();
+    /**
+     * リクエスト一件の応答を最後まで受け取った時、または送受信に失敗した時に呼ばれる。
+     * @param replayRequest 再生したリクエスト
+     * @param lagMillis 予定時刻から実際に送信した時刻までの遅れ(ミリ秒)
+     * @param latencyMicros 送信から応答を最後まで受け取るまでの時間(マイクロ秒)
+     * @param status 応答のステータス。送受信に失敗した場合はNO_RESPONSE
+     * @param responseBytes 受け取ったレスポンスボディのバイト数
+     */
+    void requestCompleted(ReplayRequest replayRequest, long lagMillis, long latencyMicros,
+            int status, long responseBytes);
+    /**
+     * すべてのリクエストの再生が終わった時に呼ばれる。
+     */
+    void replayFinished();
+}
@@ -0,0 +1,211 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.ReplayPlanWriter.HEADER_SIZE;
+import static sample.custom_log.tools.ReplayPlanWriter.MAGIC;
+import static sample.custom_log.tools.ReplayPlanWriter.METHOD_HEAD;
+import static sample.custom_log.tools.ReplayPlanWriter.TRAILER_MAGIC;
+import static sample.custom_log.tools.ReplayPlanWriter.TRAILER_SIZE;
+import static sample.custom_log.tools.ReplayPlanWriter.VERSION;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+
+import sample.custom_log.core.LogRecord;
+
+/**
+ * ReplayPlanWriterで書き出した再生計画を、メモリマップしたファイルから順に読み込むクラス。
+ * URIは辞書の文字列ごとに一度だけ生成し、同じURIのリクエスト間で共有する。
+ * スレッドセーフではない！
+ */
+public class ReplayPlanReader {
+    /** 一度にマップする最大バイト数 */
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+    /** 1エントリの最大バイト数。残りがこれを下回ったらマップし直す */
+    private static final int MAX_ENTRY_SIZE = 1 << 20;
+    private static final String[] NO_HEADERS = new String[0];
+    private static final String CHARSET = "UTF-8";
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String domain;
+    /** IDの順に並べた文字列 */
+    private final String[] strings;
+    /** 文字列IDごとの送信先URI。未生成の場合はnull */
+    private final URI[] uris;
+    /** エントリ部分の終了位置(=辞書の位置) */
+    private final long entriesEnd;
+    private final long entryCount;
+    /** 現在マップしている範囲 */
+    private MappedByteBuffer window;
+    /** windowの先頭のファイル上の位置 */
+    private long windowOffset;
+    /** 再生計画のバージョン */
+    private final byte version;
+    private long readCount = 0;
+    private long previousTime = 0;
+
+    /**
+     * 指定したファイルが再生計画かどうかを先頭のMAGICで判定する。
+     * @param file 判定するファイル
+     * @return 再生計画ならtrue
+     */
+    public static boolean isPlan(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        byte[] head = new byte[MAGIC.length];
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int length = 0;
+                int count;
+                while (length < head.length && (count = in.read(head, length, head.length - length)) > 0) {
+                    length += count;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(head, MAGIC);
+    }
+
+    /**
+     * @param path 再生計画のファイル
+     * @param domain リクエストを送信するドメイン名
+     * @throws IOException ファイルの読み込み時のIO例外、または再生計画として不正な場合の例外
+     */
+    public ReplayPlanReader(File path, String domain) throws IOException {
+        this.domain = domain;
+        this.file = new RandomAccessFile(path, "r");
+        try {
+            this.channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Not a replay plan: " + path);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            this.version = header.get();
+            if (!Arrays.equals(magic, MAGIC) || version < 1 || version > VERSION) {
+                throw new IOException("Unsupported replay plan: " + path);
+            }
+            MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    size - TRAILER_SIZE, TRAILER_SIZE);
+            this.entriesEnd = trailer.getLong();
+            this.entryCount = trailer.getLong();
+            if (trailer.getInt() != TRAILER_MAGIC
+                    || entriesEnd < HEADER_SIZE || entriesEnd > size - TRAILER_SIZE) {
+                throw new IOException("Broken replay plan: " + path);
+            }
+            MappedByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY,
+                    entriesEnd, size - TRAILER_SIZE - entriesEnd);
+            this.strings = new String[(int) readVarLong(dictionary)];
+            for (int id = 0; id < strings.length; id++) {
+                byte[] bytes = new byte[(int) readVarLong(dictionary)];
+                dictionary.get(bytes);
+                strings[id] = new String(bytes, CHARSET);
+            }
+            this.uris = new URI[strings.length];
+            mapWindow(HEADER_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw new IOException("Broken replay plan: " + path + " : " + e);
+        }
+    }
+
+    /**
+     * 次のリクエストを読み込む。
+     * @return 読み込んだリクエスト。終端に達した場合はnull
+     * @throws IOException 読み込み時のIO例外
+     */
+    public ReplayRequest next() throws IOException {
+        if (readCount >= entryCount) {
+            return null;
+        }
+        if (window.remaining() < MAX_ENTRY_SIZE
+                && windowOffset + window.limit() < entriesEnd) {
+            mapWindow(windowOffset + window.position());
+        }
+        long zigzag = readVarLong(window);
+        long requestTime = previousTime + ((zigzag >>> 1) ^ -(zigzag & 1));
+        previousTime = requestTime;
+        String method = (window.get() == METHOD_HEAD) ? HttpHead.METHOD_NAME : HttpGet.METHOD_NAME;
+        int uriId = (int) readVarLong(window);
+        int userAgentId = (int) readVarLong(window);
+        int headerCount = (int) readVarLong(window);
+        String[] headers = NO_HEADERS;
+        if (headerCount > 0) {
+            headers = new String[headerCount * 2];
+            for (int index = 0; index < headers.length; index++) {
+                headers[index] = strings[(int) readVarLong(window)];
+            }
+        }
+        int status = 0;
+        long responseSize = 0;
+        if (version >= 2) {
+            status = (int) readVarLong(window);
+            responseSize = readVarLong(window);
+        }
+        long timeTaken = LogRecord.NOT_LOGGED;
+        if (version >= 3) {
+            timeTaken = readVarLong(window) - 1;
+        }
+        readCount++;
+        return new ReplayRequest(requestTime, method, strings[uriId],
+                userAgentId == 0 ? null : strings[userAgentId - 1], headers,
+                status, responseSize, timeTaken, uri(uriId));
+    }
+    /** @return 再生計画に含まれるエントリ数 */
+    public long getEntryCount() {
+        return entryCount;
+    }
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // 文字列IDに対応するURIを戻す。URIとして不正な場合はnull(再生時に改めて例外となる)
+    private URI uri(int id) {
+        URI uri = uris[id];
+        if (uri == null) {
+            try {
+                uri = LogRecordPlayer.createUri(domain, strings[id]);
+                uris[id] = uri;
+            } catch (URISyntaxException e) {
+            }
+        }
+        return uri;
+    }
+    // offsetからエントリ部分の終わりまで(最大MAX_WINDOW_SIZE)をマップする
+    private void mapWindow(long offset) throws IOException {
+        long size = Math.min(entriesEnd - offset, MAX_WINDOW_SIZE);
+        this.window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        this.windowOffset = offset;
+    }
+    private static long readVarLong(MappedByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
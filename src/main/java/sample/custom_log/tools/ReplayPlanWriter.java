@@ -0,0 +1,147 @@
+package sample.custom_log.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.methods.HttpHead;
+
+/**
+ * 再生するリクエストをコンパイル済みの再生計画(バイナリ形式)として書き出すクラス。
+ * 書き出したファイルはReplayPlanReaderで読み込み、LogPlayerで再生できる。
+ * <pre>
+ * ヘッダ   : MAGIC(8バイト) VERSION(1バイト)
+ * エントリ : 時刻の差分(zigzag可変長) メソッド(1バイト) URI(文字列ID)
+ *            User-Agent(文字列ID+1、なしは0) ヘッダ数 (ヘッダ名ID ヘッダ値ID)*
+ *            ステータス レスポンスのバイト数 (VERSION 2以降)
+ *            処理時間(マイクロ秒+1、記録なしは0) (VERSION 3以降)
+ * 辞書     : 文字列数 (バイト長 UTF-8バイト列)*
+ * トレイラ : 辞書の位置(8バイト) エントリ数(8バイト) TRAILER_MAGIC(4バイト)
+ * </pre>
+ * 可変長整数は7ビットずつ下位から書き出す形式。スレッドセーフではない！
+ */
+public class ReplayPlanWriter {
+    static final byte[] MAGIC = {'C', 'L', 'T', 'P', 'L', 'A', 'N', 0};
+    static final byte VERSION = 3;
+    static final int HEADER_SIZE = MAGIC.length + 1;
+    static final int TRAILER_MAGIC = 0x434c5450;
+    static final int TRAILER_SIZE = 8 + 8 + 4;
+    static final byte METHOD_GET = 0;
+    static final byte METHOD_HEAD = 1;
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    /** 文字列とIDの対応 */
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    /** IDの順に並べた文字列 */
+    private final List<String> strings = new ArrayList<String>();
+    /** 書き出したバイト数 */
+    private long position = 0;
+    private long entryCount = 0;
+    private long previousTime = 0;
+
+    /**
+     * @param file 書き出すファイル
+     * @throws IOException ファイルを開けない場合の例外
+     */
+    public ReplayPlanWriter(File file) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        writeBytes(MAGIC);
+        writeByte(VERSION);
+    }
+
+    /**
+     * リクエストを一件書き出す。
+     * @param replayRequest 書き出すリクエスト
+     * @throws IOException 書き出し時のIO例外
+     */
+    public void write(ReplayRequest replayRequest) throws IOException {
+        long requestTime = replayRequest.getRequestTime();
+        long delta = requestTime - previousTime;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        previousTime = requestTime;
+        writeByte(replayRequest.getMethod().equals(HttpHead.METHOD_NAME) ? METHOD_HEAD : METHOD_GET);
+        writeVarLong(stringId(replayRequest.getRequestUri()));
+        String userAgent = replayRequest.getUserAgent();
+        writeVarLong(userAgent == null ? 0 : stringId(userAgent) + 1);
+        String[] headers = replayRequest.getHeaders();
+        writeVarLong(headers.length / 2);
+        for (int index = 0; index + 1 < headers.length; index += 2) {
+            writeVarLong(stringId(headers[index]));
+            writeVarLong(stringId(headers[index + 1]));
+        }
+        writeVarLong(replayRequest.getStatus());
+        writeVarLong(replayRequest.getResponseSize());
+        writeVarLong(replayRequest.getTimeTaken() + 1);
+        entryCount++;
+    }
+    /** @return これまでに書き出したエントリ数 */
+    public long getEntryCount() {
+        return entryCount;
+    }
+    /**
+     * 辞書とトレイラを書き出してファイルを閉じる。
+     * @throws IOException 書き出し時のIO例外
+     */
+    public void close() throws IOException {
+        try {
+            long dictionaryOffset = position;
+            writeVarLong(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(CHARSET);
+                writeVarLong(bytes.length);
+                writeBytes(bytes);
+            }
+            writeLong(dictionaryOffset);
+            writeLong(entryCount);
+            writeLong(TRAILER_MAGIC, 4);
+        } finally {
+            out.close();
+        }
+    }
+
+    // 文字列に対応するIDを戻す。未登録の場合は登録する
+    private int stringId(String string) {
+        if (string == null) {
+            string = "";
+        }
+        Integer id = dictionary.get(string);
+        if (id == null) {
+            id = strings.size();
+            dictionary.put(string, id);
+            strings.add(string);
+        }
+        return id.intValue();
+    }
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+    private void writeLong(long value) throws IOException {
+        writeLong(value, 8);
+    }
+    // valueの下位bytesバイトをビッグエンディアンで書き出す
+    private void writeLong(long value, int bytes) throws IOException {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            writeByte((int) (value >>> shift));
+        }
+    }
+    private void writeByte(int value) throws IOException {
+        out.write(value);
+        position++;
+    }
+    private void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+}
@@ -0,0 +1,127 @@
+package sample.custom_log.tools;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+
+import sample.custom_log.core.LogRecord;
+
+/**
+ * 再生する1リクエスト分の情報を保持するクラス。
+ * LogRecordから生成するか、ReplayPlanReaderでコンパイル済みの再生計画から読み込む。
+ */
+public class ReplayRequest {
+    private static final String[] NO_HEADERS = new String[0];
+    /** リクエストを受け付けた時刻(エポックミリ秒) */
+    private final long requestTime;
+    /** HTTPメソッド(大文字) */
+    private final String method;
+    /** リクエストURI。例: 「/a.cgi?category=aaa」 */
+    private final String requestUri;
+    /** User-Agent。ない場合はnull */
+    private final String userAgent;
+    /** User-Agent以外のリクエストヘッダ。名前と値を交互に並べたもの */
+    private final String[] headers;
+    /** ログに記録されたステータス */
+    private final int status;
+    /** ログに記録されたレスポンスのバイト数 */
+    private final long responseSize;
+    /** ログに記録された処理時間(マイクロ秒)。記録されていない場合はLogRecord.NOT_LOGGED */
+    private final long timeTaken;
+    /** 送信先のURI。生成済みの場合のみ非null */
+    private final URI uri;
+
+    public ReplayRequest(long requestTime, String method, String requestUri,
+            String userAgent, String[] headers, int status, long responseSize, long timeTaken, URI uri) {
+        this.requestTime = requestTime;
+        this.method = method;
+        this.requestUri = requestUri;
+        this.userAgent = userAgent;
+        this.headers = headers;
+        this.status = status;
+        this.responseSize = responseSize;
+        this.timeTaken = timeTaken;
+        this.uri = uri;
+    }
+
+    /**
+     * 再生可能なメソッドかどうかを判定する。HEADとGETのみ対応。
+     * @param method HTTPメソッド
+     * @return 再生可能ならtrue
+     */
+    public static boolean isSupportedMethod(String method) {
+        return method != null && (method.equalsIgnoreCase(HttpGet.METHOD_NAME)
+                || method.equalsIgnoreCase(HttpHead.METHOD_NAME));
+    }
+    /**
+     * LogRecordから再生するリクエストを生成する。
+     * @param logRecord ログ一件分の情報
+     * @return 生成したReplayRequest。再生できないリクエストの場合はnull
+     */
+    public static ReplayRequest fromLogRecord(LogRecord logRecord) {
+        if (logRecord.getRequestTime() == null || !isSupportedMethod(logRecord.getMethod())) {
+            return null;
+        }
+        Map<String, String> headerMap = logRecord.getHeader();
+        String referer = logRecord.getReferer();
+        boolean hasReferer = !StringUtils.isEmpty(referer) && !referer.equals("-");
+        String[] headers = NO_HEADERS;
+        if (!headerMap.isEmpty() || hasReferer) {
+            headers = new String[(headerMap.size() + (hasReferer ? 1 : 0)) * 2];
+            int index = 0;
+            for (Map.Entry<String, String> headerEntry : headerMap.entrySet()) {
+                headers[index++] = headerEntry.getKey();
+                headers[index++] = headerEntry.getValue();
+            }
+            if (hasReferer) {
+                headers[index++] = "Referer";
+                headers[index++] = referer;
+            }
+        }
+        return new ReplayRequest(logRecord.getRequestTime().getTime(),
+                logRecord.getMethod().toUpperCase(), logRecord.getRequestUri(),
+                logRecord.getUserAgent(), headers,
+                logRecord.getStatus(), logRecord.getResponseSize(), logRecord.getTimeTaken(), null);
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+    public String getMethod() {
+        return method;
+    }
+    public String getRequestUri() {
+        return requestUri;
+    }
+    public String getUserAgent() {
+        return userAgent;
+    }
+    /** @return 名前と値を交互に並べたリクエストヘッダの配列(変更しない事) */
+    public String[] getHeaders() {
+        return headers;
+    }
+    /** @return ログに記録されたステータス */
+    public int getStatus() {
+        return status;
+    }
+    /** @return ログに記録されたレスポンスのバイト数 */
+    public long getResponseSize() {
+        return responseSize;
+    }
+    /** @return ログに記録された処理時間(マイクロ秒)。記録されていない場合はLogRecord.NOT_LOGGED */
+    public long getTimeTaken() {
+        return timeTaken;
+    }
+    /** @return リクエストURIからクエリ文字列を除いたパス */
+    public String getRequestPath() {
+        int pos = requestUri.indexOf('?');
+        return (pos == -1) ? requestUri : requestUri.substring(0, pos);
+    }
+    /** @return 送信先のURI。生成されていない場合はnull */
+    public URI getUri() {
+        return uri;
+    }
+}
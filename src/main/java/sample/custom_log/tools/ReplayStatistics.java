@@ -0,0 +1,99 @@
+package sample.custom_log.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import sample.custom_log.util.Histogram;
+
+/**
+ * 再生したリクエストの応答時間、エラー数、予定時刻からの遅れ、受信バイト数を集計するクラス。
+ * 複数のLogRecordPlayerから同時に呼び出されるため、スレッドセーフである事。
+ */
+public class ReplayStatistics implements ReplayListener {
+    /** 応答時間(マイクロ秒) */
+    private final Histogram latency = new Histogram();
+    /** 予定時刻からの遅れ(ミリ秒) */
+    private final Histogram lag = new Histogram();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private volatile long startTime = System.currentTimeMillis();
+    private volatile long endTime = 0;
+
+    /**
+     * 一件分のリクエストの結果を記録する。
+     * @param lagMillis 予定時刻から実際に送信した時刻までの遅れ(ミリ秒)
+     * @param latencyMicros 送信から応答までの時間(マイクロ秒)
+     * @param error 通信エラーまたはサーバエラー(5xx)の場合true
+     */
+    public void record(long lagMillis, long latencyMicros, boolean error) {
+        lag.record(lagMillis);
+        latency.record(latencyMicros);
+        if (error) {
+            errorCount.incrementAndGet();
+        }
+    }
+    /**
+     * 通信エラーまたはサーバエラー(5xx)をエラーとして記録する。
+     */
+    public void requestCompleted(ReplayRequest replayRequest, long lagMillis, long latencyMicros,
+            int status, long responseBytes) {
+        record(lagMillis, latencyMicros, status == NO_RESPONSE || status >= 500);
+        this.responseBytes.addAndGet(responseBytes);
+    }
+    /** 集計の開始時刻を現在時刻にする */
+    public void replayStarted() {
+        this.startTime = System.currentTimeMillis();
+    }
+    /** 集計の終了時刻を現在時刻にする */
+    public void replayFinished() {
+        this.endTime = System.currentTimeMillis();
+    }
+
+    /** @return 記録したリクエスト数を戻す */
+    public long getRequestCount() {
+        return latency.getCount();
+    }
+    /** @return エラーになったリクエスト数を戻す */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+    /** @return 受信したレスポンスボディの合計バイト数を戻す */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+    /** @return エラー率(0～1)を戻す */
+    public double getErrorRate() {
+        long count = getRequestCount();
+        return count == 0 ? 0 : (double) getErrorCount() / count;
+    }
+    /** @return 開始から終了(終了前なら現在)までの経過ミリ秒を戻す */
+    public long getElapsedMillis() {
+        long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+        return Math.max(end - startTime, 1);
+    }
+    /** @return 1秒あたりのリクエスト数を戻す */
+    public double getRequestsPerSecond() {
+        return getRequestCount() * 1000.0 / getElapsedMillis();
+    }
+    /**
+     * @param percentile パーセンタイル(0～100)
+     * @return 応答時間のパーセンタイル値(ミリ秒)を戻す
+     */
+    public double getLatencyMillis(double percentile) {
+        return latency.getPercentile(percentile) / 1000.0;
+    }
+    /**
+     * @param percentile パーセンタイル(0～100)
+     * @return 予定時刻からの遅れのパーセンタイル値(ミリ秒)を戻す
+     */
+    public long getLagMillis(double percentile) {
+        return lag.getPercentile(percentile);
+    }
+
+    public String toString() {
+        return String.format(
+                "requests=%d, rps=%.1f, latency(ms) p50=%.1f p95=%.1f p99=%.1f, errors=%.2f%%, lag(ms) p99=%d, bytes=%d",
+                getRequestCount(), getRequestsPerSecond(),
+                getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(99),
+                getErrorRate() * 100, getLagMillis(99), getResponseBytes());
+    }
+}
@@ -0,0 +1,88 @@
+package sample.custom_log.tools;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpHead;
+
+/**
+ * 再生時の応答のステータスとサイズを、ログに記録された値(%&gt;sと%b)と比較するクラス。
+ * 不一致の件数をパスとログ上のステータスの組ごとに集計する。
+ * HEADリクエストはボディを持たないため、サイズは比較しない。
+ */
+public class ResponseVerification implements ReplayListener {
+    /** キー=パスとログ上のステータス、値=その組の集計結果 */
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    public void replayStarted() {
+    }
+    public void requestCompleted(ReplayRequest replayRequest, long lagMillis, long latencyMicros,
+            int status, long responseBytes) {
+        String key = replayRequest.getRequestPath() + "\t" + replayRequest.getStatus();
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.requests.incrementAndGet();
+        counter.expectedBytes.addAndGet(replayRequest.getResponseSize());
+        counter.receivedBytes.addAndGet(responseBytes);
+        if (status != replayRequest.getStatus()) {
+            counter.statusMismatches.incrementAndGet();
+        }
+        if (!replayRequest.getMethod().equals(HttpHead.METHOD_NAME)
+                && status != NO_RESPONSE && responseBytes != replayRequest.getResponseSize()) {
+            counter.sizeMismatches.incrementAndGet();
+        }
+    }
+    public void replayFinished() {
+    }
+
+    /**
+     * パスとログ上のステータスの組ごとに、件数と不一致率をタブ区切りで書き出す。
+     * @param out 出力先
+     */
+    public void printReport(PrintStream out) {
+        out.println("path\tstatus\trequests\tstatus_mismatch\tsize_mismatch\texpected_bytes\treceived_bytes");
+        Counter total = new Counter();
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            Counter counter = entry.getValue();
+            out.println(entry.getKey() + "\t" + counter);
+            total.add(counter);
+        }
+        out.println("TOTAL\t-\t" + total);
+    }
+
+    /** パスとステータスの組ごとの集計結果 */
+    private static class Counter {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong statusMismatches = new AtomicLong();
+        final AtomicLong sizeMismatches = new AtomicLong();
+        final AtomicLong expectedBytes = new AtomicLong();
+        final AtomicLong receivedBytes = new AtomicLong();
+
+        void add(Counter other) {
+            requests.addAndGet(other.requests.get());
+            statusMismatches.addAndGet(other.statusMismatches.get());
+            sizeMismatches.addAndGet(other.sizeMismatches.get());
+            expectedBytes.addAndGet(other.expectedBytes.get());
+            receivedBytes.addAndGet(other.receivedBytes.get());
+        }
+        // 件数に対する割合(%)
+        private String rate(AtomicLong count) {
+            long total = requests.get();
+            return String.format("%.2f%%", total == 0 ? 0 : count.get() * 100.0 / total);
+        }
+        public String toString() {
+            return requests + "\t" + rate(statusMismatches) + "\t" + rate(sizeMismatches)
+                    + "\t" + expectedBytes + "\t" + receivedBytes;
+        }
+    }
+}
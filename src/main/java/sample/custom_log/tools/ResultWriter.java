@@ -0,0 +1,309 @@
+package sample.custom_log.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * LogQueryの結果を一行ずつ書き出すクラス。出力はBUFFER_SIZE単位でまとめて書き出す。
+ * 結果の一行はListであれば各要素を列とし、そうでなければ値一つの行として扱う。
+ * 書式はFormatで指定する。スレッドセーフではない！
+ */
+public abstract class ResultWriter {
+    /** 出力をまとめるバッファのサイズ */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /** 出力の書式 */
+    public enum Format {
+        /** タブ区切り。値はtoString()の結果をそのまま書き出す(従来のLogQueryの出力と同じ) */
+        TSV,
+        /** RFC 4180形式のCSV。改行はCRLF */
+        CSV,
+        /** 一行を一つのJSON配列とするJSON Lines */
+        JSONL,
+        /** バイナリ形式(BinaryWriterを参照) */
+        BINARY
+    }
+
+    /**
+     * 書式を指定してResultWriterを生成する。
+     * @param format 書式
+     * @param out 出力先。close()で閉じる
+     * @return 生成したResultWriter
+     * @throws IOException 書き出し時のIO例外
+     */
+    public static ResultWriter create(Format format, OutputStream out) throws IOException {
+        switch (format) {
+            case TSV:
+                return new TsvWriter(out);
+            case CSV:
+                return new CsvWriter(out);
+            case JSONL:
+                return new JsonLinesWriter(out);
+            case BINARY:
+                return new BinaryWriter(out);
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    /**
+     * 結果を一行書き出す。
+     * @param row 結果の一行
+     * @throws IOException 書き出し時のIO例外
+     */
+    public void writeRow(Object row) throws IOException {
+        if (row instanceof List) {
+            writeColumns((List<?>) row);
+        } else {
+            writeColumns(Collections.singletonList(row));
+        }
+    }
+    /**
+     * 一行分の列を書き出す。
+     * @param columns 各列の値
+     * @throws IOException 書き出し時のIO例外
+     */
+    protected abstract void writeColumns(List<?> columns) throws IOException;
+    /**
+     * バッファの内容を出力先に書き出す。
+     * @throws IOException 書き出し時のIO例外
+     */
+    public abstract void flush() throws IOException;
+    /**
+     * バッファの内容を書き出し、出力先を閉じる。
+     * @throws IOException 書き出し時のIO例外
+     */
+    public abstract void close() throws IOException;
+
+    /** テキスト形式のResultWriter。文字コードはプラットフォームのデフォルト */
+    private abstract static class TextWriter extends ResultWriter {
+        protected final Writer writer;
+
+        TextWriter(OutputStream out) {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+        }
+        public void flush() throws IOException {
+            writer.flush();
+        }
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /** タブ区切りで書き出すResultWriter */
+    private static class TsvWriter extends TextWriter {
+        private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+        TsvWriter(OutputStream out) {
+            super(out);
+        }
+        protected void writeColumns(List<?> columns) throws IOException {
+            for (int index = 0; index < columns.size(); index++) {
+                if (index > 0) {
+                    writer.write('\t');
+                }
+                writer.write(String.valueOf(columns.get(index)));
+            }
+            writer.write(LINE_SEPARATOR);
+        }
+    }
+
+    /** RFC 4180形式のCSVで書き出すResultWriter。nullは空の値とする */
+    private static class CsvWriter extends TextWriter {
+        CsvWriter(OutputStream out) {
+            super(out);
+        }
+        protected void writeColumns(List<?> columns) throws IOException {
+            for (int index = 0; index < columns.size(); index++) {
+                if (index > 0) {
+                    writer.write(',');
+                }
+                Object value = columns.get(index);
+                if (value != null) {
+                    writeField(value.toString());
+                }
+            }
+            writer.write("\r\n");
+        }
+        // 区切り文字、引用符、改行を含む場合は引用符で囲み、引用符は二重にする
+        private void writeField(String value) throws IOException {
+            boolean quote = false;
+            for (int index = 0; index < value.length() && !quote; index++) {
+                char c = value.charAt(index);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            for (int index = 0; index < value.length(); index++) {
+                char c = value.charAt(index);
+                if (c == '"') {
+                    writer.write('"');
+                }
+                writer.write(c);
+            }
+            writer.write('"');
+        }
+    }
+
+    /**
+     * 一行を一つのJSON配列として書き出すResultWriter。
+     * 数値と真偽値はそのまま、日付はISO 8601形式(UTC)の文字列、その他はtoString()の結果の文字列とする。
+     */
+    private static class JsonLinesWriter extends TextWriter {
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+
+        JsonLinesWriter(OutputStream out) {
+            super(out);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        protected void writeColumns(List<?> columns) throws IOException {
+            writer.write('[');
+            for (int index = 0; index < columns.size(); index++) {
+                if (index > 0) {
+                    writer.write(',');
+                }
+                writeValue(columns.get(index));
+            }
+            writer.write("]\n");
+        }
+        private void writeValue(Object value) throws IOException {
+            if (value == null || value instanceof Boolean) {
+                writer.write(String.valueOf(value));
+            } else if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                // NaNと無限大はJSONの数値で表せないため文字列とする
+                if (Double.isNaN(number) || Double.isInfinite(number)) {
+                    writeString(value.toString());
+                } else {
+                    writer.write(value.toString());
+                }
+            } else if (value instanceof Date) {
+                writeString(dateFormat.format((Date) value));
+            } else {
+                writeString(value.toString());
+            }
+        }
+        private void writeString(String value) throws IOException {
+            writer.write('"');
+            for (int index = 0; index < value.length(); index++) {
+                char c = value.charAt(index);
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writer.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            writer.write(c);
+                        }
+                }
+            }
+            writer.write('"');
+        }
+    }
+
+    /**
+     * バイナリ形式で書き出すResultWriter。
+     * <pre>
+     * ヘッダ : MAGIC(8バイト) VERSION(1バイト)
+     * 行     : 列数(可変長) 値*
+     * 値     : 型(1バイト) 内容
+     *          TYPE_NULL    内容なし
+     *          TYPE_LONG    整数(zigzag可変長)。Integer、Long、Short、Byte
+     *          TYPE_DOUBLE  IEEE 754(8バイト)。Double、Float
+     *          TYPE_DATE    エポックミリ秒(zigzag可変長)
+     *          TYPE_TRUE / TYPE_FALSE 内容なし
+     *          TYPE_STRING  バイト長(可変長) UTF-8バイト列。その他の値はtoString()の結果
+     * </pre>
+     * 可変長整数は7ビットずつ下位から書き出す形式(ReplayPlanWriterと同じ)。
+     */
+    static class BinaryWriter extends ResultWriter {
+        static final byte[] MAGIC = {'C', 'L', 'T', 'R', 'O', 'W', 'S', 0};
+        static final byte VERSION = 1;
+        static final byte TYPE_NULL = 0;
+        static final byte TYPE_LONG = 1;
+        static final byte TYPE_DOUBLE = 2;
+        static final byte TYPE_DATE = 3;
+        static final byte TYPE_TRUE = 4;
+        static final byte TYPE_FALSE = 5;
+        static final byte TYPE_STRING = 6;
+        private final DataOutputStream out;
+
+        BinaryWriter(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            this.out.write(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+        protected void writeColumns(List<?> columns) throws IOException {
+            writeVarLong(columns.size());
+            for (Object value : columns) {
+                writeValue(value);
+            }
+        }
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                out.writeByte(TYPE_LONG);
+                writeZigzag(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof Date) {
+                out.writeByte(TYPE_DATE);
+                writeZigzag(((Date) value).getTime());
+            } else if (value instanceof Boolean) {
+                out.writeByte(((Boolean) value) ? TYPE_TRUE : TYPE_FALSE);
+            } else {
+                byte[] bytes = value.toString().getBytes("UTF-8");
+                out.writeByte(TYPE_STRING);
+                writeVarLong(bytes.length);
+                out.write(bytes);
+            }
+        }
+        private void writeZigzag(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+        public void flush() throws IOException {
+            out.flush();
+        }
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.SESSION_MAX_CLIENTS_PROP_KEY;
+import static sample.custom_log.tools.Constants.SESSION_TIMEOUT_PROP_KEY;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+
+/**
+ * リクエストをクライアント(リモートホストとUser-Agentの組)ごとのセッション(訪問)にまとめるクラス。
+ * 同じクライアントのリクエストの間隔がタイムアウトを超えた所でセッションを分ける。
+ * 全レコードを保持して並べ替える代わりに、クライアントごとの開いているセッションだけを保持し、
+ * リクエスト時刻がタイムアウトを過ぎたセッションから順に閉じてSessionHandlerに渡す。
+ * 保持するセッション数が上限を超えた場合は、最も長くリクエストのないセッションを閉じる。
+ * ログはおおむね時刻順に並んでいる事を前提とする。スレッドセーフではない！
+ */
+public class Sessionizer {
+    /** タイムアウトの既定値(秒) */
+    public static final long DEFAULT_TIMEOUT_SECONDS = 30 * 60;
+    /** 保持するセッション数の上限の既定値 */
+    public static final int DEFAULT_MAX_CLIENTS = 1000000;
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /** 閉じたセッションを受け取るインターフェース */
+    public interface SessionHandler {
+        /**
+         * セッションを閉じた時に呼ばれる。
+         * @param session 閉じたセッション(呼び出し後に変更されない)
+         * @throws IOException 書き出し時のIO例外
+         */
+        void sessionClosed(Session session) throws IOException;
+    }
+
+    private final long timeoutMillis;
+    private final int maxClients;
+    private final SessionHandler handler;
+    /** キー=クライアント、値=開いているセッション。最後のリクエストが古い順 */
+    private final LinkedHashMap<String, Session> sessions;
+    /** これまでに現れた最も新しいリクエスト時刻 */
+    private long latestTime = NO_TIME;
+    private long evictedCount = 0;
+
+    /**
+     * @param timeoutMillis セッションを分けるリクエストの間隔(ミリ秒)
+     * @param maxClients 保持するセッション数の上限
+     * @param handler 閉じたセッションを受け取るSessionHandler
+     */
+    public Sessionizer(long timeoutMillis, int maxClients, SessionHandler handler) {
+        if (maxClients <= 0) {
+            throw new IllegalArgumentException("maxClients must be positive: " + maxClients);
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.maxClients = maxClients;
+        this.handler = handler;
+        this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true);
+    }
+
+    /**
+     * リクエストを一件追加する。リクエスト時刻のないLogRecordは無視する。
+     * LogRecordの内容は必要な値だけを取り出し、LogRecord自体は保持しない。
+     * @param logRecord 追加するリクエスト
+     * @throws IOException SessionHandlerが投げたIO例外
+     */
+    public void add(LogRecord logRecord) throws IOException {
+        long time = logRecord.getRequestTimeMillis();
+        if (time == NO_TIME) {
+            return;
+        }
+        if (time > latestTime) {
+            latestTime = time;
+            closeExpired();
+        }
+        String remoteHost = logRecord.getRemoteHost();
+        String userAgent = logRecord.getUserAgent();
+        String key = remoteHost + '\t' + userAgent;
+        Session session = sessions.get(key);
+        if (session != null && time - session.endTime > timeoutMillis) {
+            sessions.remove(key);
+            handler.sessionClosed(session);
+            session = null;
+        }
+        if (session == null) {
+            if (sessions.size() >= maxClients) {
+                evictEldest();
+            }
+            session = new Session(remoteHost, userAgent, time, logRecord.getRequestPath());
+            sessions.put(key, session);
+        }
+        session.add(time, Math.max(logRecord.getResponseSize(), 0), logRecord.getRequestPath());
+    }
+    // 最後のリクエストからタイムアウトを過ぎたセッションを、古い順に閉じる
+    private void closeExpired() throws IOException {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (latestTime - session.endTime <= timeoutMillis) {
+                // 以降のセッションは、これより後にリクエストがある
+                break;
+            }
+            it.remove();
+            handler.sessionClosed(session);
+        }
+    }
+    // 最も長くリクエストのないセッションを閉じる
+    private void evictEldest() throws IOException {
+        Iterator<Session> it = sessions.values().iterator();
+        Session session = it.next();
+        it.remove();
+        evictedCount++;
+        handler.sessionClosed(session);
+    }
+    /**
+     * 開いている全セッションを閉じる。全リクエストを追加した後に呼び出す事。
+     * @throws IOException SessionHandlerが投げたIO例外
+     */
+    public void finish() throws IOException {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            it.remove();
+            handler.sessionClosed(session);
+        }
+    }
+    /** @return 保持するセッション数の上限を超えたため、タイムアウト前に閉じたセッションの数 */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /** 一つのセッション */
+    public static class Session {
+        private final String remoteHost;
+        private final String userAgent;
+        private final long startTime;
+        private long endTime;
+        private long requestCount = 0;
+        private long bytes = 0;
+        private final String entryPath;
+        private String exitPath;
+
+        Session(String remoteHost, String userAgent, long startTime, String entryPath) {
+            this.remoteHost = remoteHost;
+            this.userAgent = userAgent;
+            this.startTime = startTime;
+            this.endTime = startTime;
+            this.entryPath = entryPath;
+        }
+        void add(long time, long responseSize, String path) {
+            endTime = Math.max(endTime, time);
+            requestCount++;
+            bytes += responseSize;
+            exitPath = path;
+        }
+        /** @return リモートホスト */
+        public String getRemoteHost() {
+            return remoteHost;
+        }
+        /** @return User-Agent */
+        public String getUserAgent() {
+            return userAgent;
+        }
+        /** @return 最初のリクエスト時刻(エポックミリ秒) */
+        public long getStartTime() {
+            return startTime;
+        }
+        /** @return 最後のリクエスト時刻(エポックミリ秒) */
+        public long getEndTime() {
+            return endTime;
+        }
+        /** @return 最初のリクエストから最後のリクエストまでの時間(ミリ秒) */
+        public long getDuration() {
+            return endTime - startTime;
+        }
+        /** @return リクエスト数 */
+        public long getRequestCount() {
+            return requestCount;
+        }
+        /** @return レスポンスのバイト数の合計 */
+        public long getBytes() {
+            return bytes;
+        }
+        /** @return 最初のリクエストのパス */
+        public String getEntryPath() {
+            return entryPath;
+        }
+        /** @return 最後のリクエストのパス */
+        public String getExitPath() {
+            return exitPath;
+        }
+    }
+
+    /**
+     * ログファイルを読み込んでセッションにまとめ、一行一セッションで書き出す。
+     * 列はリモートホスト、User-Agent、開始時刻、時間(ミリ秒)、リクエスト数、バイト数、入口のパス、出口のパス。
+     * 書式と書き出し先はLogQueryと同じシステムプロパティで指定する。
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Error: Too few args.");
+            System.err.println("Usage: java " + Sessionizer.class + " <filpath> [<filepath> ...]");
+            System.exit(-1);
+        }
+        if (!LogQuery.checkOutputFormat()) {
+            System.exit(-1);
+        }
+        long timeoutMillis = Long.getLong(SESSION_TIMEOUT_PROP_KEY, DEFAULT_TIMEOUT_SECONDS) * 1000;
+        int maxClients = Integer.getInteger(SESSION_MAX_CLIENTS_PROP_KEY, DEFAULT_MAX_CLIENTS);
+        int exitStatus = 0;
+        ResultWriter writer = null;
+        ParseErrorPolicy errorPolicy = null;
+        try {
+            writer = LogQuery.createResultWriter();
+            final ResultWriter sessionWriter = writer;
+            Sessionizer sessionizer = new Sessionizer(timeoutMillis, maxClients, new SessionHandler() {
+                public void sessionClosed(Session session) throws IOException {
+                    sessionWriter.writeRow(Arrays.<Object>asList(session.getRemoteHost(), session.getUserAgent(),
+                            new Date(session.getStartTime()), session.getDuration(), session.getRequestCount(),
+                            session.getBytes(), session.getEntryPath(), session.getExitPath()));
+                }
+            });
+            LogParser parser = LogQuery.createParser();
+            errorPolicy = LogQuery.createErrorPolicy();
+            for (String path : args) {
+                SessionCollector collector = new SessionCollector(path, sessionizer, errorPolicy);
+                FileInputStream in = new FileInputStream(path);
+                try {
+                    parser.parse(in.getChannel(), Charset.defaultCharset(), collector);
+                } finally {
+                    in.close();
+                }
+                collector.finish();
+                if (errorPolicy.isAborted()) {
+                    break;
+                }
+            }
+            sessionizer.finish();
+            if (sessionizer.getEvictedCount() > 0) {
+                System.err.println(sessionizer.getEvictedCount() + " sessions were closed early because "
+                        + maxClients + " clients were open.");
+            }
+            LogQuery.checkAborted(errorPolicy);
+        } catch (LogParseException e) {
+            System.err.println(e.getMessage());
+            exitStatus = -1;
+        } catch (IOException e) {
+            System.err.println("Failed to sessionize: " + e.getMessage());
+            exitStatus = -1;
+        } finally {
+            if (errorPolicy != null) {
+                LogQuery.finishErrorPolicy(errorPolicy);
+            }
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to write sessions: " + e.getMessage());
+                    exitStatus = -1;
+                }
+            }
+        }
+        if (exitStatus != 0) {
+            System.exit(exitStatus);
+        }
+    }
+
+    /**
+     * パースしたLogRecordをSessionizerに追加するLogRecordHandler。
+     * コールバック内で発生したIO例外は読み込みを中止した上でfinish()で投げる。
+     */
+    private static class SessionCollector implements LogRecordHandler {
+        private final String path;
+        private final Sessionizer sessionizer;
+        private final ParseErrorPolicy errorPolicy;
+        private IOException exception = null;
+
+        SessionCollector(String path, Sessionizer sessionizer, ParseErrorPolicy errorPolicy) {
+            this.path = path;
+            this.sessionizer = sessionizer;
+            this.errorPolicy = errorPolicy;
+        }
+        public boolean handleLogRecord(LogRecord logRecord) {
+            errorPolicy.lineParsed();
+            try {
+                sessionizer.add(logRecord);
+                return true;
+            } catch (IOException e) {
+                exception = e;
+                return false;
+            }
+        }
+        public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+            return errorPolicy.parseFailed(path, offset, line, e);
+        }
+        void finish() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+}
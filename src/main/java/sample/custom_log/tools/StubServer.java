@@ -0,0 +1,440 @@
+package sample.custom_log.tools;
+
+import static sample.custom_log.tools.Constants.CUSTOM_LOG_FORMAT_PROP_KEY;
+import static sample.custom_log.tools.Constants.LOG_FORMAT;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sample.custom_log.core.LogParseException;
+import sample.custom_log.core.LogParser;
+import sample.custom_log.core.LogParser.LogRecordHandler;
+import sample.custom_log.core.LogRecord;
+
+/**
+ * LogPlayerの送信先として使う、NIOによる軽量なスタブHTTPサーバ。
+ * リクエストURIごとに、ログに記録されたステータスとサイズの応答(ボディは0埋め)を戻す。
+ * ログにないURIには404を戻す。指定した場合は、応答を一定時間、またはログに記録された処理時間(%D)だけ遅らせる。
+ * 1スレッドで全接続を処理し、Keep-Aliveに対応する。
+ */
+public class StubServer implements Runnable {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_REQUEST_HEADER_SIZE = 64 * 1024;
+    private static final String CHARSET = "ISO-8859-1";
+    /** ボディとして書き出す0埋めのバッファ */
+    private static final ByteBuffer ZERO_BODY = ByteBuffer.allocateDirect(64 * 1024);
+    private static final Response NOT_FOUND = new Response(404, 0);
+
+    private final Map<String, Response> responses;
+    /** 応答を遅らせる時間(ミリ秒) */
+    private final long latencyMillis;
+    /** trueの場合、ログに記録された処理時間だけ応答を遅らせる */
+    private final boolean timeTakenDelay;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    /** 遅延中の応答。送信予定時刻の順 */
+    private final PriorityQueue<Connection> delayed = new PriorityQueue<Connection>();
+    private volatile boolean running = true;
+    private Log logger = LogFactory.getLog(StubServer.class);
+
+    /**
+     * @param responses キー=リクエストURI、値=戻す応答
+     * @param port 待ち受けるポート。0の場合は空いているポートを使う
+     * @param latencyMillis 応答を遅らせる時間(ミリ秒)
+     * @throws IOException ポートを開けない場合の例外
+     */
+    public StubServer(Map<String, Response> responses, int port, long latencyMillis) throws IOException {
+        this(responses, port, latencyMillis, false);
+    }
+    /**
+     * @param responses キー=リクエストURI、値=戻す応答
+     * @param port 待ち受けるポート。0の場合は空いているポートを使う
+     * @param latencyMillis 応答を遅らせる時間(ミリ秒)。timeTakenDelayの場合は処理時間が記録されていない応答に使う
+     * @param timeTakenDelay trueの場合、ログに記録された処理時間だけ応答を遅らせる
+     * @throws IOException ポートを開けない場合の例外
+     */
+    public StubServer(Map<String, Response> responses, int port, long latencyMillis, boolean timeTakenDelay)
+            throws IOException {
+        this.responses = responses;
+        this.latencyMillis = latencyMillis;
+        this.timeTakenDelay = timeTakenDelay;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress("localhost", port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * ログファイル(または再生計画)を読み込み、リクエストURIごとの応答を作る。
+     * 同じURIが複数回記録されている場合は、最初に記録された応答を使う。
+     * 処理時間はURIごとに記録された順に全て保持する(Response.nextDelayMillis())。
+     * @param path ログファイルまたは再生計画のパス
+     * @return キー=リクエストURI、値=応答のMap
+     * @throws IOException ファイル読み込み時のIO例外
+     */
+    public static Map<String, Response> loadResponses(String path) throws IOException {
+        final Map<String, Response> responses = new HashMap<String, Response>();
+        if (ReplayPlanReader.isPlan(new File(path))) {
+            ReplayPlanReader reader = new ReplayPlanReader(new File(path), "localhost");
+            try {
+                ReplayRequest replayRequest;
+                while ((replayRequest = reader.next()) != null) {
+                    addResponse(responses, replayRequest);
+                }
+            } finally {
+                reader.close();
+            }
+            return responses;
+        }
+        LogParser parser = new LogParser(System.getProperty(CUSTOM_LOG_FORMAT_PROP_KEY, LOG_FORMAT));
+        FileReader reader = new FileReader(path);
+        try {
+            parser.parse(reader, new LogRecordHandler() {
+                public boolean handleLogRecord(LogRecord logRecord) {
+                    ReplayRequest replayRequest = ReplayRequest.fromLogRecord(logRecord);
+                    if (replayRequest != null) {
+                        addResponse(responses, replayRequest);
+                    }
+                    return true;
+                }
+                public boolean handleParseError(long lineNumber, long offset, String line, LogParseException e) {
+                    // 応答を作れない行は無視する
+                    return true;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        return responses;
+    }
+    private static void addResponse(Map<String, Response> responses, ReplayRequest replayRequest) {
+        Response response = responses.get(replayRequest.getRequestUri());
+        if (response == null) {
+            response = new Response(replayRequest.getStatus(), replayRequest.getResponseSize());
+            responses.put(replayRequest.getRequestUri(), response);
+        }
+        if (replayRequest.getTimeTaken() != LogRecord.NOT_LOGGED) {
+            response.addTimeTaken(replayRequest.getTimeTaken());
+        }
+    }
+
+    /** @return 待ち受けているポート */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+    /** 待ち受けを終了する。run()は速やかに戻る */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** stop()が呼ばれるまで接続を処理する */
+    public void run() {
+        try {
+            while (running) {
+                long timeout = flushDelayed();
+                selector.select(timeout);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Stub server stopped: " + e.getMessage(), e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+                clientKey.attach(new Connection(clientKey));
+            }
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        if (key.isReadable()) {
+            int count = ((SocketChannel) key.channel()).read(connection.in);
+            if (count == -1) {
+                close(key);
+                return;
+            }
+            processRequests(connection);
+        } else if (key.isWritable()) {
+            if (connection.write()) {
+                processRequests(connection);
+            }
+        }
+    }
+    // 受信済みのリクエストを応答の送信中でない限り処理する
+    private void processRequests(Connection connection) throws IOException {
+        while (!connection.isBusy()) {
+            String requestLine = connection.takeRequestLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            Response response = (parts.length >= 2) ? responses.get(parts[1]) : null;
+            if (response == null) {
+                response = NOT_FOUND;
+            }
+            boolean head = parts[0].equalsIgnoreCase("HEAD");
+            connection.prepare(response, head);
+            long delayMillis = timeTakenDelay ? response.nextDelayMillis(latencyMillis) : latencyMillis;
+            if (delayMillis > 0) {
+                connection.dueTime = System.currentTimeMillis() + delayMillis;
+                connection.key.interestOps(0);
+                delayed.add(connection);
+                return;
+            }
+            if (!connection.write()) {
+                return;
+            }
+        }
+    }
+    // 送信予定時刻を過ぎた応答を送信し、次の送信予定時刻までのミリ秒を戻す(なければ0)
+    private long flushDelayed() throws IOException {
+        long now = System.currentTimeMillis();
+        Connection connection;
+        while ((connection = delayed.peek()) != null && connection.dueTime <= now) {
+            delayed.poll();
+            if (!connection.key.isValid()) {
+                continue;
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+            try {
+                if (connection.write()) {
+                    processRequests(connection);
+                }
+            } catch (IOException e) {
+                close(connection.key);
+            }
+        }
+        return (connection == null) ? 0 : Math.max(connection.dueTime - now, 1);
+    }
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    /** 戻す応答のステータスとボディのサイズ、およびログに記録された処理時間 */
+    public static class Response {
+        public final int status;
+        public final long size;
+        /** ログに記録された処理時間(マイクロ秒)。timeTakenCount件まで有効 */
+        private long[] timesTaken = new long[0];
+        private int timeTakenCount = 0;
+        /** 次の応答で使う処理時間の位置 */
+        private int nextTimeTaken = 0;
+
+        public Response(int status, long size) {
+            this.status = status;
+            this.size = size;
+        }
+        /**
+         * ログに記録された処理時間を追加する。
+         * @param timeTaken 処理時間(マイクロ秒)
+         */
+        public void addTimeTaken(long timeTaken) {
+            if (timeTakenCount == timesTaken.length) {
+                long[] larger = new long[Math.max(timesTaken.length * 2, 1)];
+                System.arraycopy(timesTaken, 0, larger, 0, timeTakenCount);
+                timesTaken = larger;
+            }
+            timesTaken[timeTakenCount++] = timeTaken;
+        }
+        /**
+         * 記録された処理時間を、記録された順に一件ずつ(最後まで使ったら先頭に戻って)取り出す。
+         * @param defaultMillis 処理時間が記録されていない場合の遅延(ミリ秒)
+         * @return 応答を遅らせる時間(ミリ秒)
+         */
+        long nextDelayMillis(long defaultMillis) {
+            if (timeTakenCount == 0) {
+                return defaultMillis;
+            }
+            long timeTaken = timesTaken[nextTimeTaken];
+            nextTimeTaken = (nextTimeTaken + 1) % timeTakenCount;
+            return (timeTaken + 500) / 1000;
+        }
+        /** @return ボディを持てるステータスならtrue */
+        boolean hasBody() {
+            return status >= 200 && status != 204 && status != 304;
+        }
+    }
+
+    /** 1接続分の状態 */
+    private static class Connection implements Comparable<Connection> {
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** 送信中のヘッダ。送信していない場合はnull */
+        ByteBuffer header;
+        /** 送信するボディの残りバイト数 */
+        long bodyRemaining;
+        /** 遅延中の場合の送信予定時刻 */
+        long dueTime;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+        boolean isBusy() {
+            return header != null;
+        }
+        /**
+         * 受信済みのデータから、ヘッダまで揃ったリクエストを一件取り出してリクエスト行を戻す。
+         * @return リクエスト行。揃っていない場合はnull
+         * @throws IOException ヘッダが大きすぎる場合の例外
+         */
+        String takeRequestLine() throws IOException {
+            int end = -1;
+            for (int pos = 3; pos < in.position(); pos++) {
+                if (in.get(pos) == '\n' && in.get(pos - 1) == '\r'
+                        && in.get(pos - 2) == '\n' && in.get(pos - 3) == '\r') {
+                    end = pos + 1;
+                    break;
+                }
+            }
+            if (end == -1) {
+                if (!in.hasRemaining()) {
+                    if (in.capacity() >= MAX_REQUEST_HEADER_SIZE) {
+                        throw new IOException("Request header too large.");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    larger.put(in);
+                    in = larger;
+                }
+                return null;
+            }
+            int lineEnd = 0;
+            while (in.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            byte[] line = new byte[lineEnd];
+            in.flip();
+            in.get(line);
+            in.position(end);
+            in.compact();
+            return new String(line, CHARSET);
+        }
+        void prepare(Response response, boolean head) throws IOException {
+            StringBuilder builder = new StringBuilder(64);
+            builder.append("HTTP/1.1 ").append(response.status).append(" Stub\r\n");
+            if (response.hasBody()) {
+                builder.append("Content-Length: ").append(response.size).append("\r\n");
+            }
+            builder.append("\r\n");
+            header = ByteBuffer.wrap(builder.toString().getBytes(CHARSET));
+            bodyRemaining = (response.hasBody() && !head) ? response.size : 0;
+        }
+        /**
+         * 応答をできるだけ書き出す。
+         * @return 書き終えた場合true。ソケットのバッファが一杯の場合はOP_WRITEを待ちfalse
+         */
+        boolean write() throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+            while (bodyRemaining > 0) {
+                ByteBuffer body = ZERO_BODY.duplicate();
+                body.limit((int) Math.min(body.capacity(), bodyRemaining));
+                int count = channel.write(body);
+                bodyRemaining -= count;
+                if (body.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+            header = null;
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+        public int compareTo(Connection other) {
+            return (dueTime < other.dueTime) ? -1 : ((dueTime == other.dueTime) ? 0 : 1);
+        }
+    }
+
+    private static Option buildOption(String opt, boolean hasArg, String argName, boolean required, String description) {
+        Option option = new Option(opt, hasArg, description);
+        option.setArgName(argName);
+        option.setRequired(required);
+        return option;
+    }
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        options.addOption(buildOption("f", true, "file name", true, "応答の元にするログファイルまたは再生計画"));
+        options.addOption(buildOption("p", true, "port", false, "待ち受けるポート(省略時は8080)"));
+        options.addOption(buildOption("l", true, "msec", false, "応答を遅らせる時間(省略時は0)"));
+        options.addOption(buildOption("t", false, null, false,
+                "ログに記録された処理時間(%D)だけ応答を遅らせる(記録されていない応答は-lの時間)"));
+        CommandLineParser parser = new BasicParser();
+        CommandLine commandLine = null;
+        try {
+            commandLine = parser.parse(options, args, false);
+        } catch (ParseException e) {
+        }
+        if (commandLine == null) {
+            HelpFormatter help = new HelpFormatter();
+            help.setWidth(Integer.MAX_VALUE);
+            help.printHelp("java " + StubServer.class.getName(), options, true);
+            return;
+        }
+        int port = Integer.parseInt(commandLine.getOptionValue("p", String.valueOf(DEFAULT_PORT)));
+        long latency = Long.parseLong(commandLine.getOptionValue("l", "0"));
+        StubServer server = new StubServer(loadResponses(commandLine.getOptionValue("f")), port, latency,
+                commandLine.hasOption("t"));
+        System.out.println("listening on localhost:" + server.getPort());
+        server.run();
+    }
+}
@@ -0,0 +1,109 @@
+package sample.custom_log.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 文字列の集合に含まれるかを、偽陽性を許して判定するブルームフィルタ。
+ * mightContain()がfalseを戻した文字列は集合に含まれない事が保証される。
+ * 要素1つあたり10ビット、ハッシュ関数7つの場合、偽陽性率は約1%となる。
+ * スレッドセーフではない！
+ */
+public class BloomFilter {
+    /** 要素1つあたりのビット数の既定値 */
+    public static final int DEFAULT_BITS_PER_ELEMENT = 10;
+    /** ハッシュ関数の数の既定値 */
+    public static final int DEFAULT_HASH_COUNT = 7;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    /**
+     * @param expectedElements 追加する要素数の見込み
+     * @param bitsPerElement 要素1つあたりのビット数
+     * @param hashCount ハッシュ関数の数
+     */
+    public BloomFilter(int expectedElements, int bitsPerElement, int hashCount) {
+        this(new long[Math.max(1, (int) (((long) expectedElements * bitsPerElement + 63) >>> 6))], hashCount);
+    }
+    private BloomFilter(long[] bits, int hashCount) {
+        if (hashCount <= 0) {
+            throw new IllegalArgumentException("hashCount must be positive: " + hashCount);
+        }
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * 要素を追加する。
+     * @param value 追加する文字列
+     */
+    public void add(String value) {
+        long hash = hash64(value);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long bitCount = (long) bits.length << 6;
+        for (int index = 0; index < hashCount; index++) {
+            long bit = ((hash1 + index * hash2) & 0x7FFFFFFFL) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+    /**
+     * 要素が含まれる可能性があるか判定する。
+     * @param value 判定する文字列
+     * @return 含まれる可能性があればtrue。falseの場合は含まれない
+     */
+    public boolean mightContain(String value) {
+        long hash = hash64(value);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long bitCount = (long) bits.length << 6;
+        for (int index = 0; index < hashCount; index++) {
+            long bit = ((hash1 + index * hash2) & 0x7FFFFFFFL) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // FNV-1a(64bit)の後、上位ビットを下位に混ぜる
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < value.length(); index++) {
+            hash ^= value.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * 内容を書き出す。
+     * @param out 書き出し先
+     * @throws IOException 書き出し時のIO例外
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(hashCount);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+    /**
+     * write()で書き出した内容を読み込む。
+     * @param in 読み込み元
+     * @return 読み込んだBloomFilter
+     * @throws IOException 読み込み時のIO例外
+     */
+    public static BloomFilter read(DataInput in) throws IOException {
+        int hashCount = in.readByte();
+        long[] bits = new long[in.readInt()];
+        for (int index = 0; index < bits.length; index++) {
+            bits[index] = in.readLong();
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+}
@@ -2,12 +2,139 @@ package sample.custom_log.util;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
 
 import org.josql.functions.AbstractFunctionHandler;
 
-/** 日付変換を行う為のFunctionHandler。JoSQLで使用する。  */
+/**
+ * 日付変換を行う為のFunctionHandler。JoSQLで使用する。
+ * 時刻の引数はDate(requestTime)またはエポックミリ秒の数値(requestTimeMillis)を受け付ける。
+ * 時刻の丸め(floor_minute、floor_hour、floor_day、bucket)はエポックミリ秒の演算のみでおこない、
+ * 結果をエポックミリ秒で戻す。境界はコンストラクタで指定したタイムゾーンで求める。
+ * 例: 「select to_char(floor_hour(requestTimeMillis), 'yyyy-MM-dd HH'), count(:_allobjs) from ...
+ * group by floor_hour(requestTimeMillis)」
+ */
 public class DateFunctionHandler extends AbstractFunctionHandler {
-    public String to_char(Date date, String format) {
-        return new SimpleDateFormat(format).format(date);
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private final TimeZone timeZone;
+    /** to_char()で使用するパターンごとのフォーマット。SimpleDateFormatはスレッドセーフでないためスレッドごとに持つ */
+    private final ThreadLocal<Map<String, CachedFormat>> formats = new ThreadLocal<Map<String, CachedFormat>>() {
+        @Override
+        protected Map<String, CachedFormat> initialValue() {
+            return new HashMap<String, CachedFormat>();
+        }
+    };
+
+    /** デフォルトのタイムゾーンを使用する */
+    public DateFunctionHandler() {
+        this(TimeZone.getDefault());
+    }
+    /**
+     * @param timeZone to_char()の書式化と時刻の丸めに使用するタイムゾーン
+     */
+    public DateFunctionHandler(TimeZone timeZone) {
+        this.timeZone = (TimeZone) timeZone.clone();
+    }
+
+    /**
+     * 時刻を書式化する。パターンごとのフォーマットと、直前に書式化した時刻の結果を再利用する
+     * (floor_hour()等で丸めた時刻を書式化する場合、ほとんどの行は直前と同じ結果となる)。
+     * @param time 時刻(Dateまたはエポックミリ秒)
+     * @param format SimpleDateFormatのパターン
+     * @return 書式化した文字列。timeがnullの場合はnull
+     */
+    public String to_char(Object time, String format) {
+        if (time == null) {
+            return null;
+        }
+        Map<String, CachedFormat> formatsOfThread = formats.get();
+        CachedFormat cachedFormat = formatsOfThread.get(format);
+        if (cachedFormat == null) {
+            cachedFormat = new CachedFormat(format, timeZone);
+            formatsOfThread.put(format, cachedFormat);
+        }
+        return cachedFormat.format(millisOf(time));
+    }
+    /**
+     * @param time 時刻(Dateまたはエポックミリ秒)
+     * @return 分の初めに切り捨てた時刻(エポックミリ秒)
+     */
+    public long floor_minute(Object time) {
+        return floor(millisOf(time), MINUTE_MILLIS);
+    }
+    /**
+     * @param time 時刻(Dateまたはエポックミリ秒)
+     * @return 時の初めに切り捨てた時刻(エポックミリ秒)
+     */
+    public long floor_hour(Object time) {
+        return floor(millisOf(time), HOUR_MILLIS);
+    }
+    /**
+     * @param time 時刻(Dateまたはエポックミリ秒)
+     * @return 日の初め(タイムゾーンでの0時)に切り捨てた時刻(エポックミリ秒)
+     */
+    public long floor_day(Object time) {
+        return floor(millisOf(time), DAY_MILLIS);
+    }
+    /**
+     * 時刻を、タイムゾーンでの1970-01-01 0時を起点とするseconds秒ごとの区間の初めに切り捨てる。
+     * @param time 時刻(Dateまたはエポックミリ秒)
+     * @param seconds 区間の長さ(秒)
+     * @return 切り捨てた時刻(エポックミリ秒)
+     */
+    public long bucket(Object time, Number seconds) {
+        long unit = (long) (seconds.doubleValue() * 1000);
+        if (unit <= 0) {
+            throw new IllegalArgumentException("seconds must be positive: " + seconds);
+        }
+        return floor(millisOf(time), unit);
+    }
+    // タイムゾーンでの現地時刻をunit単位で切り捨て、エポックミリ秒に戻す
+    private long floor(long millis, long unit) {
+        long offset = timeZone.getOffset(millis);
+        long local = millis + offset;
+        long floored = local - mod(local, unit);
+        // 切り捨てた時刻が夏時間の切り替えをまたぐ場合は、その時刻のオフセットで戻す
+        return floored - timeZone.getOffset(floored - offset);
+    }
+    private static long mod(long value, long unit) {
+        long remainder = value % unit;
+        return (remainder < 0) ? remainder + unit : remainder;
+    }
+    // Dateまたは数値からエポックミリ秒を取り出す
+    private static long millisOf(Object time) {
+        if (time instanceof Date) {
+            return ((Date) time).getTime();
+        }
+        if (time instanceof Number) {
+            return ((Number) time).longValue();
+        }
+        throw new IllegalArgumentException("Not a time: " + time);
+    }
+
+    /** パターンごとのフォーマットと、直前の書式化の結果 */
+    private static class CachedFormat {
+        private final SimpleDateFormat dateFormat;
+        private final Date date = new Date();
+        private long lastMillis = Long.MIN_VALUE;
+        private String lastText;
+
+        CachedFormat(String pattern, TimeZone timeZone) {
+            this.dateFormat = new SimpleDateFormat(pattern);
+            this.dateFormat.setTimeZone(timeZone);
+        }
+        String format(long millis) {
+            if (millis != lastMillis || lastText == null) {
+                date.setTime(millis);
+                lastText = dateFormat.format(date);
+                lastMillis = millis;
+            }
+            return lastText;
+        }
     }
 }
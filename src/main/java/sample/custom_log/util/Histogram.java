@@ -0,0 +1,126 @@
+package sample.custom_log.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 0以上のlong値の分布を記録し、パーセンタイルを求めるためのヒストグラム。
+ * 値を2のべき乗ごとの区間に分け、各区間をさらに16分割したバケットで数えるため、
+ * 値の個数によらず使用メモリは一定で、誤差は相対値で約6%以内となる。
+ * スレッドセーフ。
+ */
+public class Histogram {
+    /** 2のべき乗区間ごとの分割数のビット数 */
+    private static final int SUB_BUCKET_BITS = 4;
+    /** 2のべき乗区間ごとの分割数 */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** バケット数(Long.MAX_VALUEまで扱える数) */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * 値を一つ記録する。負の値は0として扱う。
+     * @param value 記録する値
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value));
+        while (value < (current = min.get()) && !min.compareAndSet(current, value));
+    }
+    /** @return 記録した値の個数を戻す */
+    public long getCount() {
+        return totalCount.get();
+    }
+    /** @return 記録した値の合計を戻す */
+    public long getSum() {
+        return sum.get();
+    }
+    /** @return 記録した値の平均を戻す。値がない場合は0 */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+    /** @return 記録した値の最大値を戻す。値がない場合は0 */
+    public long getMax() {
+        return getCount() == 0 ? 0 : max.get();
+    }
+    /** @return 記録した値の最小値を戻す。値がない場合は0 */
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+    /**
+     * パーセンタイル値を戻す。値は該当するバケットの上限(ただし最大値を超えない)となる。
+     * @param percentile パーセンタイル(0～100)
+     * @return パーセンタイル値。値がない場合は0
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(index), getMax());
+            }
+        }
+        return getMax();
+    }
+    /**
+     * otherに記録された値をthisにも記録する。
+     * @param other 加算するヒストグラム
+     */
+    public void add(Histogram other) {
+        if (other.getCount() == 0) {
+            return;
+        }
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            long count = other.counts.get(index);
+            if (count > 0) {
+                counts.addAndGet(index, count);
+            }
+        }
+        totalCount.addAndGet(other.getCount());
+        sum.addAndGet(other.getSum());
+        long value = other.getMax();
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value));
+        value = other.getMin();
+        while (value < (current = min.get()) && !min.compareAndSet(current, value));
+    }
+
+    /** 値に対応するバケットのインデックスを戻す */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+    /** インデックスに対応するバケットに含まれる最大の値を戻す */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
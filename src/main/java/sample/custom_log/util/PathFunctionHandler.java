@@ -0,0 +1,20 @@
+package sample.custom_log.util;
+
+import org.josql.functions.AbstractFunctionHandler;
+
+import sample.custom_log.core.PathNormalizer;
+
+/**
+ * リクエストパスを扱う為のFunctionHandler。JoSQLで使用する。
+ * 例: 「select normalize_path(requestPath), count(:_allobjs) from ... group by normalize_path(requestPath)」
+ */
+public class PathFunctionHandler extends AbstractFunctionHandler {
+    /**
+     * パスのIDやハッシュ値のセグメントをプレースホルダに置き換える(PathNormalizer.getDefault()を使用する)。
+     * @param path リクエストパス
+     * @return 変換したパス
+     */
+    public String normalize_path(String path) {
+        return PathNormalizer.getDefault().normalize(path);
+    }
+}
@@ -0,0 +1,58 @@
+package sample.custom_log.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.josql.QueryExecutionException;
+import org.josql.expressions.Expression;
+import org.josql.functions.AbstractFunctionHandler;
+
+/**
+ * 統計値を求める為のFunctionHandler。JoSQLで使用する。
+ * 例: 「select requestPath, percentile(:_allobjs, timeTaken, 99) from ... group by requestPath」
+ */
+public class StatisticsFunctionHandler extends AbstractFunctionHandler {
+    /**
+     * 全オブジェクトについてexpの値のパーセンタイルを求める。
+     * @param exp 値を取り出す式
+     * @param percentile パーセンタイル(0～100)
+     * @return パーセンタイル値
+     * @throws QueryExecutionException 値を取り出せない場合の例外
+     */
+    public Double percentile(Expression exp, Number percentile) throws QueryExecutionException {
+        return percentile(q.getAllObjects(), exp, percentile);
+    }
+    /**
+     * objectsについてexpの値のパーセンタイルを求める(nearest-rank法)。
+     * 値がnullまたは負(LogRecord.NOT_LOGGED等、記録されていない値)のオブジェクトは除く。
+     * group by使用時はobjectsに「:_allobjs」を指定するとグループごとの値となる。
+     * @param objects 対象のオブジェクト
+     * @param exp 値を取り出す式
+     * @param percentile パーセンタイル(0～100)
+     * @return パーセンタイル値。対象の値がない場合は0
+     * @throws QueryExecutionException 値を取り出せない場合の例外
+     */
+    public Double percentile(List<?> objects, Expression exp, Number percentile) throws QueryExecutionException {
+        double[] values = new double[objects.size()];
+        int count = 0;
+        Object currentObject = q.getCurrentObject();
+        try {
+            for (Object object : objects) {
+                q.setCurrentObject(object);
+                Object value = exp.getValue(object, q);
+                if (value instanceof Number && ((Number) value).doubleValue() >= 0) {
+                    values[count++] = ((Number) value).doubleValue();
+                }
+            }
+        } finally {
+            q.setCurrentObject(currentObject);
+        }
+        if (count == 0) {
+            return 0.0;
+        }
+        Arrays.sort(values, 0, count);
+        double p = Math.max(0, Math.min(100, percentile.doubleValue()));
+        int rank = (int) Math.ceil(p / 100 * count);
+        return values[Math.max(rank, 1) - 1];
+    }
+}
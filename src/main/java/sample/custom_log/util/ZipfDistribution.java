@@ -0,0 +1,46 @@
+package sample.custom_log.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 0～size-1の順位をZipf分布(順位kの出現確率が1/(k+1)^exponentに比例)に従って選ぶクラス。
+ * 累積確率の表を持ち、二分探索で選ぶ。生成後は変更しないため、スレッドセーフ。
+ */
+public class ZipfDistribution {
+    /** cumulative[k] = 順位0～kの累積確率 */
+    private final double[] cumulative;
+
+    /**
+     * @param size 順位の数(1以上)
+     * @param exponent 分布の偏り。大きいほど上位に集中する(通常1前後)
+     */
+    public ZipfDistribution(int size, double exponent) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive.");
+        }
+        cumulative = new double[size];
+        double sum = 0;
+        for (int rank = 0; rank < size; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++) {
+            cumulative[rank] /= sum;
+        }
+        cumulative[size - 1] = 1.0;
+    }
+
+    /**
+     * @param random 使用する乱数
+     * @return 選んだ順位(0始まり)
+     */
+    public int sample(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return (index >= 0) ? index : -index - 1;
+    }
+    /** @return 順位の数 */
+    public int size() {
+        return cumulative.length;
+    }
+}